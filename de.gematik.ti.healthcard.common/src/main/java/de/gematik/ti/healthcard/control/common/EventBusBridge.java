@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common;
+
+import org.greenrobot.eventbus.EventBus;
+import org.greenrobot.eventbus.Subscribe;
+
+/**
+ * Subscriber of the default EventBus, which forwards every event to a private EventBus. <br/>
+ * Events of other modules, e.g. the card reader providers and the {@code CommonEventTransmitter} and {@code RequestTransmitter}, are
+ * posted to the default EventBus and reach the subscribers of a private EventBus in this way.
+ */
+public final class EventBusBridge {
+    private final EventBus target;
+
+    EventBusBridge(final EventBus target) {
+        this.target = target;
+    }
+
+    /**
+     * Forward an event of the default EventBus
+     * @param event posted event
+     */
+    @Subscribe
+    public void forward(final Object event) {
+        target.post(event);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common;
+
+import java.util.concurrent.ExecutorService;
+
+import org.greenrobot.eventbus.EventBus;
+import org.greenrobot.eventbus.meta.SubscriberInfoIndex;
+
+/**
+ * Supplier of the {@link EventBus} used by {@link CardDetector}, the TrustedChannelPaceKeyRequestHandler and the PinVerfiyLauncher. <br/>
+ * Without configuration the default EventBus is used. A private EventBus has to be set before the detection or handling is started. <br/>
+ * The events of the default EventBus, e.g. card reader events and the events of {@code CommonEventTransmitter} and {@code RequestTransmitter},
+ * are forwarded to a private EventBus, so its subscribers receive them as well. <br/>
+ * The default EventBus is left as the application created it. EventBuses created by {@link #createEventBus()} register the subscribers of this
+ * module by the generated {@link HealthCardControlEventBusIndex} instead of reflection.
+ */
+public final class EventBusProvider {
+    private static final SubscriberInfoIndex SUBSCRIBER_INDEX = new HealthCardControlEventBusIndex();
+    private static volatile EventBus eventBus;
+    private static EventBusBridge bridge;
+
+    private EventBusProvider() {
+    }
+
+    /**
+     * Get the configured EventBus
+     * @return configured EventBus or the default EventBus
+     */
+    public static EventBus getEventBus() {
+        final EventBus configured = eventBus;
+        return configured != null ? configured : EventBus.getDefault();
+    }
+
+    /**
+     * Get the subscriber index of this module, e.g. to add it to the default EventBus by
+     * {@code EventBus.builder().addIndex(EventBusProvider.getSubscriberIndex()).installDefaultEventBus()} at start of the application
+     * @return generated subscriber index
+     */
+    public static SubscriberInfoIndex getSubscriberIndex() {
+        return SUBSCRIBER_INDEX;
+    }
+
+    /**
+     * Set a private EventBus. All events posted to the default EventBus are forwarded to it, so a subscriber should not be registered on
+     * both EventBuses.
+     * @param privateEventBus EventBus to use or null for the default EventBus
+     */
+    public static synchronized void setEventBus(final EventBus privateEventBus) {
+        final EventBus defaultBus = EventBus.getDefault();
+        if (bridge != null) {
+            defaultBus.unregister(bridge);
+            bridge = null;
+        }
+        if (privateEventBus != null && privateEventBus != defaultBus) {
+            bridge = new EventBusBridge(privateEventBus);
+            defaultBus.register(bridge);
+        }
+        eventBus = privateEventBus;
+    }
+
+    /**
+     * Create a private EventBus with the subscriber index of this module
+     * @return new EventBus
+     */
+    public static EventBus createEventBus() {
+        return EventBus.builder().addIndex(SUBSCRIBER_INDEX).build();
+    }
+
+    /**
+     * Create a private EventBus with the subscriber index of this module, which runs subscribers with {@code ThreadMode.ASYNC} and
+     * {@code ThreadMode.BACKGROUND} on the executor. Use a {@link java.util.concurrent.ThreadPoolExecutor} to observe the number of waiting
+     * subscriber calls by its queue; EventBus has no queue per subscriber, an executor per EventBus gives the depth per group of subscribers.
+     * @param subscriberExecutor executor for asynchronous subscribers
+     * @return new EventBus
+     */
+    public static EventBus createEventBus(final ExecutorService subscriberExecutor) {
+        return EventBus.builder().addIndex(SUBSCRIBER_INDEX).executorService(subscriberExecutor).build();
+    }
+}
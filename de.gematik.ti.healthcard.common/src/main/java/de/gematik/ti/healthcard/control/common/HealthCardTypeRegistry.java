@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.function.BiFunction;
+
+import cardfilesystem.Egk2FileSystem;
+import cardfilesystem.Hba2FileSystem;
+import cardfilesystem.Smcb2FileSystem;
+import de.gematik.ti.cardreader.provider.api.ICardReader;
+import de.gematik.ti.healthcard.control.common.event.absent.*;
+import de.gematik.ti.healthcard.control.common.event.present.*;
+import de.gematik.ti.healthcardaccess.IHealthCard;
+import de.gematik.ti.healthcardaccess.IHealthCardType;
+import de.gematik.ti.healthcardaccess.healthcards.*;
+import de.gematik.ti.utils.codec.Hex;
+
+/**
+ * Registry of the known health card types. <br/>
+ * The AID of the root application and the card generation resolve to a shared {@link IHealthCardType} instance with the factories of its
+ * present and absent events. Lookups compare the AID bytes directly and do not allocate. New card types or generations are added with
+ * {@link #register(byte[], CardGeneration, IHealthCardType, BiFunction, BiFunction)}.
+ */
+public final class HealthCardTypeRegistry {
+    private final Entry unknownEntry = new Entry(new Unknown(), UnknownCardPresentEvent::new, UnknownCardAbsentEvent::new);
+    private volatile Application[] applications = new Application[0];
+    private volatile Map<IHealthCardType, Entry> entriesByType = new IdentityHashMap<>();
+
+    HealthCardTypeRegistry() {
+    }
+
+    /**
+     * Create a registry containing eGK, HBA and SMC-B of generation G2 and G2.1
+     * @return registry with the default health card types
+     */
+    static HealthCardTypeRegistry createDefault() {
+        final HealthCardTypeRegistry registry = new HealthCardTypeRegistry();
+        final byte[] aidEgk = Hex.decode(Egk2FileSystem.AID);
+        final byte[] aidHba = Hex.decode(Hba2FileSystem.AID);
+        final byte[] aidSmcb = Hex.decode(Smcb2FileSystem.AID);
+        registry.register(aidEgk, CardGeneration.G2, new Egk2(), Egk2HealthCardPresentEvent::new, Egk2HealthCardAbsentEvent::new);
+        registry.register(aidEgk, CardGeneration.G2_1, new Egk21(), Egk21HealthCardPresentEvent::new, Egk21HealthCardAbsentEvent::new);
+        registry.register(aidHba, CardGeneration.G2, new Hba2(), Hba2HealthCardPresentEvent::new, Hba2HealthCardAbsentEvent::new);
+        registry.register(aidHba, CardGeneration.G2_1, new Hba21(), Hba21HealthCardPresentEvent::new, Hba21HealthCardAbsentEvent::new);
+        registry.register(aidSmcb, CardGeneration.G2, new Smcb2(), Smcb2HealthCardPresentEvent::new, Smcb2HealthCardAbsentEvent::new);
+        registry.register(aidSmcb, CardGeneration.G2_1, new Smcb21(), Smcb21HealthCardPresentEvent::new, Smcb21HealthCardAbsentEvent::new);
+        return registry;
+    }
+
+    /**
+     * Register a health card type. An existing registration for the same AID and card generation is replaced.
+     * @param applicationId AID of the root application
+     * @param cardGeneration card generation
+     * @param healthCardType shared instance of the health card type
+     * @param presentEventFactory creates the present event of this type
+     * @param absentEventFactory creates the absent event of this type
+     */
+    public synchronized void register(final byte[] applicationId, final CardGeneration cardGeneration, final IHealthCardType healthCardType,
+            final BiFunction<ICardReader, IHealthCard, ? extends AbstractHealthCardPresentEvent> presentEventFactory,
+            final BiFunction<ICardReader, IHealthCard, ? extends AbstractHealthCardAbsentEvent> absentEventFactory) {
+        final Entry entry = new Entry(healthCardType, presentEventFactory, absentEventFactory);
+        final Application[] current = applications;
+        int index = 0;
+        while (index < current.length && !Arrays.equals(current[index].applicationId, applicationId)) {
+            index++;
+        }
+        final Application[] updated = Arrays.copyOf(current, Math.max(current.length, index + 1));
+        final Application application = index < current.length ? new Application(current[index]) : new Application(applicationId.clone());
+        application.entries.put(cardGeneration, entry);
+        updated[index] = application;
+
+        final Map<IHealthCardType, Entry> updatedEntriesByType = new IdentityHashMap<>(entriesByType);
+        updatedEntriesByType.put(healthCardType, entry);
+        entriesByType = updatedEntriesByType;
+        applications = updated;
+    }
+
+    /**
+     * Find the health card type
+     * @param applicationId AID of the root application
+     * @param cardGeneration card generation
+     * @return registered entry or the entry for unknown cards
+     */
+    public Entry lookup(final byte[] applicationId, final CardGeneration cardGeneration) {
+        for (final Application application : applications) {
+            if (Arrays.equals(application.applicationId, applicationId)) {
+                final Entry entry = application.entries.get(cardGeneration);
+                return entry != null ? entry : unknownEntry;
+            }
+        }
+        return unknownEntry;
+    }
+
+    /**
+     * Find the entry of a registered health card type instance
+     * @param healthCardType health card type
+     * @return registered entry or the entry for unknown cards
+     */
+    public Entry lookup(final IHealthCardType healthCardType) {
+        final Entry entry = entriesByType.get(healthCardType);
+        return entry != null ? entry : unknownEntry;
+    }
+
+    /**
+     * Get the entry used for unknown cards
+     * @return entry for unknown cards
+     */
+    public Entry getUnknownEntry() {
+        return unknownEntry;
+    }
+
+    /**
+     * AID of a root application with the entries of its card generations
+     */
+    private static final class Application {
+        private final byte[] applicationId;
+        private final Map<CardGeneration, Entry> entries;
+
+        private Application(final byte[] applicationId) {
+            this.applicationId = applicationId;
+            entries = new EnumMap<>(CardGeneration.class);
+        }
+
+        private Application(final Application application) {
+            applicationId = application.applicationId;
+            entries = new EnumMap<>(application.entries);
+        }
+    }
+
+    /**
+     * Registered health card type with the factories of its events
+     */
+    public static final class Entry {
+        private final IHealthCardType healthCardType;
+        private final BiFunction<ICardReader, IHealthCard, ? extends AbstractHealthCardPresentEvent> presentEventFactory;
+        private final BiFunction<ICardReader, IHealthCard, ? extends AbstractHealthCardAbsentEvent> absentEventFactory;
+
+        private Entry(final IHealthCardType healthCardType,
+                final BiFunction<ICardReader, IHealthCard, ? extends AbstractHealthCardPresentEvent> presentEventFactory,
+                final BiFunction<ICardReader, IHealthCard, ? extends AbstractHealthCardAbsentEvent> absentEventFactory) {
+            this.healthCardType = healthCardType;
+            this.presentEventFactory = presentEventFactory;
+            this.absentEventFactory = absentEventFactory;
+        }
+
+        /**
+         * Shared instance of the health card type
+         * @return health card type
+         */
+        public IHealthCardType getHealthCardType() {
+            return healthCardType;
+        }
+
+        /**
+         * Create the present event for this health card type
+         * @param cardReader card reader with the card
+         * @param healthCard health card
+         * @return present event
+         */
+        public AbstractHealthCardPresentEvent createPresentEvent(final ICardReader cardReader, final IHealthCard healthCard) {
+            return presentEventFactory.apply(cardReader, healthCard);
+        }
+
+        /**
+         * Create the absent event for this health card type
+         * @param cardReader card reader of the card
+         * @param healthCard health card
+         * @return absent event
+         */
+        public AbstractHealthCardAbsentEvent createAbsentEvent(final ICardReader cardReader, final IHealthCard healthCard) {
+            return absentEventFactory.apply(cardReader, healthCard);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.gematik.ti.cardreader.provider.api.ICardReader;
+import de.gematik.ti.healthcardaccess.IHealthCard;
+import de.gematik.ti.healthcardaccess.IHealthCardType;
+import de.gematik.ti.healthcardaccess.healthcards.HealthCardStatusValid;
+
+/**
+ * Registry of all health cards currently present in a card reader and known by the {@link CardDetector}. <br/>
+ * All queries are lock-free and return read-only live views, which are created once and not per query.
+ */
+public final class PresentHealthCardRegistry {
+    private final Map<ICardReader, Entry> entries = new ConcurrentHashMap<>();
+    private final CardSet allHealthCards = new CardSet();
+    private final Map<Class<? extends IHealthCardType>, CardSet> healthCardsByType = new ConcurrentHashMap<>();
+    private final Map<CardGeneration, CardSet> healthCardsByGeneration = new EnumMap<>(CardGeneration.class);
+
+    PresentHealthCardRegistry() {
+        for (final CardGeneration cardGeneration : CardGeneration.values()) {
+            healthCardsByGeneration.put(cardGeneration, new CardSet());
+        }
+    }
+
+    /**
+     * Get the health card present in the card reader
+     * @param cardReader card reader
+     * @return health card or null if no known health card is present
+     */
+    public IHealthCard getHealthCard(final ICardReader cardReader) {
+        final Entry entry = entries.get(cardReader);
+        return entry != null ? entry.healthCard : null;
+    }
+
+    /**
+     * Get all present health cards
+     * @return read-only live view of all present health cards
+     */
+    public Set<IHealthCard> getHealthCards() {
+        return allHealthCards.view;
+    }
+
+    /**
+     * Get all present health cards of the type e.g. {@code Smcb21.class}
+     * @param healthCardType class of the health card type
+     * @return read-only live view of the present health cards of this type
+     */
+    public Set<IHealthCard> getHealthCards(final Class<? extends IHealthCardType> healthCardType) {
+        final CardSet cardSet = healthCardsByType.get(healthCardType);
+        return cardSet != null ? cardSet.view : Collections.<IHealthCard> emptySet();
+    }
+
+    /**
+     * Get all present health cards of the card generation
+     * @param cardGeneration card generation
+     * @return read-only live view of the present health cards of this generation
+     */
+    public Set<IHealthCard> getHealthCards(final CardGeneration cardGeneration) {
+        return healthCardsByGeneration.get(cardGeneration).view;
+    }
+
+    void put(final ICardReader cardReader, final IHealthCard healthCard, final CardGeneration cardGeneration) {
+        final Entry entry = new Entry(healthCard, getHealthCardType(healthCard), cardGeneration);
+        final Entry previous = entries.put(cardReader, entry);
+        if (previous != null) {
+            unindex(previous);
+        }
+        allHealthCards.cards.add(healthCard);
+        if (entry.healthCardType != null) {
+            healthCardsByType.computeIfAbsent(entry.healthCardType, type -> new CardSet()).cards.add(healthCard);
+        }
+        healthCardsByGeneration.get(cardGeneration).cards.add(healthCard);
+    }
+
+    IHealthCard remove(final ICardReader cardReader) {
+        final Entry entry = entries.remove(cardReader);
+        if (entry == null) {
+            return null;
+        }
+        unindex(entry);
+        return entry.healthCard;
+    }
+
+    private void unindex(final Entry entry) {
+        allHealthCards.cards.remove(entry.healthCard);
+        if (entry.healthCardType != null) {
+            healthCardsByType.get(entry.healthCardType).cards.remove(entry.healthCard);
+        }
+        healthCardsByGeneration.get(entry.cardGeneration).cards.remove(entry.healthCard);
+    }
+
+    private static Class<? extends IHealthCardType> getHealthCardType(final IHealthCard healthCard) {
+        if (healthCard.getStatus().isValid()) {
+            final IHealthCardType healthCardType = ((HealthCardStatusValid) healthCard.getStatus()).getHealthCardType();
+            if (healthCardType != null) {
+                return healthCardType.getClass();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * concurrent set of health cards with its read-only view
+     */
+    private static final class CardSet {
+        private final Set<IHealthCard> cards = ConcurrentHashMap.newKeySet();
+        private final Set<IHealthCard> view = Collections.unmodifiableSet(cards);
+    }
+
+    /**
+     * registered health card with its index keys
+     */
+    private static final class Entry {
+        private final IHealthCard healthCard;
+        private final Class<? extends IHealthCardType> healthCardType;
+        private final CardGeneration cardGeneration;
+
+        private Entry(final IHealthCard healthCard, final Class<? extends IHealthCardType> healthCardType, final CardGeneration cardGeneration) {
+            this.healthCard = healthCard;
+            this.healthCardType = healthCardType;
+            this.cardGeneration = cardGeneration;
+        }
+    }
+}
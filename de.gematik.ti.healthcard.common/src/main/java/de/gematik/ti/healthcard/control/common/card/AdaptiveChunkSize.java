@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.integration.card;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chunk size for READ commands. It starts with the limit of card and card reader, shrinks after failed or slow READ commands and
+ * grows again after successful ones.
+ */
+final class AdaptiveChunkSize {
+    static final int SHORT_LENGTH_LIMIT = 256;
+    static final int EXTENDED_LENGTH_LIMIT = 65535;
+    static final int MIN_CHUNK_SIZE = 32;
+    private static final int GROW_AFTER_SUCCESSES = 4;
+    private static final long SLOW_READ_NANOS = TimeUnit.MILLISECONDS.toNanos(2000);
+    private final int limit;
+    private final int minimum;
+    private int current;
+    private int successes;
+
+    /**
+     * @param limit maximal length of response data, a limit below {@link #MIN_CHUNK_SIZE} is kept and not shrunk further
+     */
+    AdaptiveChunkSize(final int limit) {
+        this.limit = Math.max(1, limit);
+        minimum = Math.min(MIN_CHUNK_SIZE, this.limit);
+        current = this.limit;
+    }
+
+    /**
+     * @return size for the next READ command
+     */
+    int get() {
+        return current;
+    }
+
+    int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Record a successful READ command
+     * @param length requested length
+     * @param durationNanos round-trip time of the command
+     */
+    void onSuccess(final int length, final long durationNanos) {
+        if (durationNanos > SLOW_READ_NANOS && length > minimum) {
+            current = Math.max(minimum, length / 2);
+            successes = 0;
+            return;
+        }
+        if (++successes >= GROW_AFTER_SUCCESSES && current < limit) {
+            current = (int) Math.min(limit, 2L * current);
+            successes = 0;
+        }
+    }
+
+    /**
+     * Record a READ command failed by its length, i.e. wrong length (6700, 6Cxx) or a transmission error. A length above the short
+     * length limit falls back to short length, which every card reader supports; a short length is halved.
+     * @param length requested length
+     * @return smaller length to retry with or the given length if it can not shrink
+     */
+    int onFailure(final int length) {
+        successes = 0;
+        final int smaller = length > SHORT_LENGTH_LIMIT ? SHORT_LENGTH_LIMIT : Math.max(minimum, length / 2);
+        if (smaller < length) {
+            current = Math.min(current, smaller);
+            return smaller;
+        }
+        return length;
+    }
+
+    /**
+     * Record a READ command failed by wrong Le (6Cxx), the card reports the exact length. The chunk size does not exceed it until it
+     * grows again after successful READ commands.
+     * @param exactLength exact length reported by the card
+     * @return length to retry with
+     */
+    int onWrongLength(final int exactLength) {
+        successes = 0;
+        current = Math.max(minimum, Math.min(current, exactLength));
+        return exactLength;
+    }
+
+    /**
+     * Parse the maximal length of response data from the extended length information (DO '7F66') of EF.ATR
+     * @param efAtr content of EF.ATR
+     * @return maximal length of response data or -1 if not contained
+     */
+    static int parseMaxResponseLength(final byte[] efAtr) {
+        for (int i = 0; i + 1 < efAtr.length; i++) {
+            if ((efAtr[i] & 0xFF) == 0x7F && (efAtr[i + 1] & 0xFF) == 0x66) {
+                return parseSecondInteger(efAtr, i + 3);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Extended length information contains INTEGER max command length and INTEGER max response length
+     */
+    private static int parseSecondInteger(final byte[] data, final int start) {
+        int position = start;
+        int value = -1;
+        for (int integer = 0; integer < 2; integer++) {
+            if (position + 1 >= data.length || data[position] != 0x02) {
+                return -1;
+            }
+            final int length = data[position + 1] & 0xFF;
+            if (length > 3 || position + 2 + length > data.length) {
+                return -1;
+            }
+            value = 0;
+            for (int i = 0; i < length; i++) {
+                value = (value << 8) | (data[position + 2 + i] & 0xFF);
+            }
+            position += 2 + length;
+        }
+        return value - 2; // response APDU contains the status word
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.integration.card;
+
+import de.gematik.ti.healthcardaccess.IHealthCard;
+
+/**
+ * Key of an EF of one card. A card is given by its card ID, e.g. the content of EF.GDO, so a re-inserted card is the same card, or by the
+ * health card object, compared by identity, so a re-inserted card is a new card.
+ */
+final class CardFileKey {
+    private final Object card;
+    private final EfPath efPath;
+
+    CardFileKey(final IHealthCard healthCard, final EfPath efPath) {
+        this((Object) healthCard, efPath);
+    }
+
+    CardFileKey(final String cardId, final EfPath efPath) {
+        this((Object) cardId, efPath);
+    }
+
+    private CardFileKey(final Object card, final EfPath efPath) {
+        this.card = card;
+        this.efPath = efPath;
+    }
+
+    /**
+     * @return card ID or health card object
+     */
+    Object getCard() {
+        return card;
+    }
+
+    EfPath getEfPath() {
+        return efPath;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CardFileKey)) {
+            return false;
+        }
+        final CardFileKey other = (CardFileKey) o;
+        return (card == other.card || card instanceof String && card.equals(other.card)) && efPath.equals(other.efPath);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (card instanceof String ? card.hashCode() : System.identityHashCode(card)) + efPath.hashCode();
+    }
+}
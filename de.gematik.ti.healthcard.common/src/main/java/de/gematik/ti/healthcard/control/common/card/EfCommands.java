@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.integration.card;
+
+import de.gematik.ti.healthcardaccess.cardobjects.ApplicationIdentifier;
+import de.gematik.ti.healthcardaccess.cardobjects.FileIdentifier;
+import de.gematik.ti.healthcardaccess.operation.ResultOperation;
+import de.gematik.ti.healthcardaccess.result.Response;
+
+/**
+ * SELECT and READ commands used to read EFs of one card. The responses are not validated, the caller evaluates the response status.
+ */
+interface EfCommands {
+
+    /**
+     * SELECT of the MF
+     */
+    ResultOperation<Response> selectMf();
+
+    /**
+     * SELECT of a DF or SubDF by its AID
+     */
+    ResultOperation<Response> selectDf(ApplicationIdentifier aid);
+
+    /**
+     * SELECT of an EF in the current folder with FCP in the response
+     */
+    ResultOperation<Response> selectEf(FileIdentifier fid);
+
+    /**
+     * READ BINARY of the current EF
+     * @param offset offset in the EF
+     * @param length expected length of the response data
+     */
+    ResultOperation<Response> read(int offset, int length);
+
+    /**
+     * READ BINARY of an EF in the current folder by short file identifier, which selects the EF
+     * @param sfi short file identifier
+     * @param offset offset in the EF
+     * @param length expected length of the response data, 0 for all bytes up to the end of file
+     */
+    ResultOperation<Response> read(int sfi, int offset, int length);
+
+    /**
+     * Exact length of the response data the card reports with wrong Le (6Cxx) to a READ command
+     * @param response response of a READ command
+     * @return exact length or -1 if the response is no wrong Le or the status word is not known
+     */
+    int getExactLength(Response response);
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.integration.card;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.gematik.ti.healthcardaccess.IHealthCard;
+import de.gematik.ti.healthcardaccess.cardobjects.FileIdentifier;
+
+/**
+ * Cache of EF contents per card, bounded by the number of cached bytes. <br/>
+ * Only EFs marked as immutable or with a revalidation time are cached. EF.ATR, EF.GDO and EF.Version2 under MF are immutable by default.
+ * The contents are kept per card ID, which the {@link de.gematik.ti.healthcard.control.common.CardDetector} sets from EF.GDO (ICCSN), so
+ * they are found again when the card is re-inserted. Contents of a card without known card ID are kept per health card object and
+ * invalidated by the CardDetector when the card is absent.
+ */
+public final class EfContentCache {
+    private static final Logger LOG = LoggerFactory.getLogger(EfContentCache.class);
+    private static final long DEFAULT_MAX_BYTES = 4L * 1024 * 1024;
+    private static final long IMMUTABLE = Long.MAX_VALUE;
+    private static final EfContentCache INSTANCE = new EfContentCache(DEFAULT_MAX_BYTES);
+    private final Map<EfPath, Long> maxAges = new HashMap<>();
+    private final LinkedHashMap<CardFileKey, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<IHealthCard, Boolean> invalidatedCards = new WeakHashMap<>();
+    private final Map<IHealthCard, String> cardIds = new WeakHashMap<>();
+    private long maxBytes;
+    private long cachedBytes;
+
+    /**
+     * Create a cache, which is not invalidated by the CardDetector
+     * @param maxBytes maximal number of cached bytes
+     */
+    public EfContentCache(final long maxBytes) {
+        setMaxBytes(maxBytes);
+        markImmutable(EfPath.of(new FileIdentifier(0x2F01))); // EF.ATR
+        markImmutable(EfPath.of(new FileIdentifier(0x2F02))); // EF.GDO
+        markImmutable(EfPath.of(new FileIdentifier(0x2F11))); // EF.Version2
+    }
+
+    /**
+     * Get the cache used by {@link EfReadEngine} and invalidated by the CardDetector
+     * @return shared cache
+     */
+    public static EfContentCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Cache the EF until its card is absent
+     * @param efPath
+     */
+    public synchronized void markImmutable(final EfPath efPath) {
+        maxAges.put(efPath, IMMUTABLE);
+    }
+
+    /**
+     * Cache the EF for the given time, then it is read from the card again
+     * @param efPath
+     * @param maxAgeMillis time in milliseconds
+     */
+    public synchronized void markRevalidate(final EfPath efPath, final long maxAgeMillis) {
+        maxAges.put(efPath, TimeUnit.MILLISECONDS.toNanos(maxAgeMillis));
+    }
+
+    /**
+     * Do not cache the EF any more
+     * @param efPath
+     */
+    public synchronized void unmark(final EfPath efPath) {
+        maxAges.remove(efPath);
+        entries.keySet().removeIf(key -> key.getEfPath().equals(efPath));
+        recount();
+    }
+
+    /**
+     * @param efPath
+     * @return true if the EF is cached
+     */
+    public synchronized boolean isCacheable(final EfPath efPath) {
+        return maxAges.containsKey(efPath);
+    }
+
+    /**
+     * Set the maximal number of cached bytes, the least recently used contents are evicted first
+     * @param maxBytes
+     */
+    public synchronized void setMaxBytes(final long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes must not be negative");
+        }
+        this.maxBytes = maxBytes;
+        evict();
+    }
+
+    /**
+     * Keep the contents of the card by its card ID, contents cached for the health card object before are taken over
+     * @param healthCard
+     * @param cardId unique ID of the card, e.g. hex string of EF.GDO
+     */
+    public synchronized void setCardId(final IHealthCard healthCard, final String cardId) {
+        cardIds.put(healthCard, cardId);
+        final Map<CardFileKey, Entry> taken = new LinkedHashMap<>();
+        final Iterator<Map.Entry<CardFileKey, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<CardFileKey, Entry> entry = iterator.next();
+            if (entry.getKey().getCard() == healthCard) {
+                taken.put(new CardFileKey(cardId, entry.getKey().getEfPath()), entry.getValue());
+                iterator.remove();
+            }
+        }
+        for (final Map.Entry<CardFileKey, Entry> entry : taken.entrySet()) {
+            final Entry previous = entries.put(entry.getKey(), entry.getValue());
+            if (previous != null) {
+                cachedBytes -= previous.content.length;
+            }
+        }
+    }
+
+    /**
+     * Get the cached content
+     * @param healthCard
+     * @param efPath
+     * @return copy of the content or null if not cached or not valid any more
+     */
+    public synchronized byte[] get(final IHealthCard healthCard, final EfPath efPath) {
+        final CardFileKey key = keyOf(healthCard, efPath);
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.validUntilNanos > 0) {
+            entries.remove(key);
+            cachedBytes -= entry.content.length;
+            return null;
+        }
+        return entry.content.clone();
+    }
+
+    /**
+     * Cache the content if the EF is marked and the card is not invalidated
+     * @param healthCard
+     * @param efPath
+     * @param content content read from the card, must not be modified afterwards
+     */
+    public synchronized void put(final IHealthCard healthCard, final EfPath efPath, final byte[] content) {
+        final Long maxAge = maxAges.get(efPath);
+        if (maxAge == null || content.length > maxBytes || invalidatedCards.containsKey(healthCard)) {
+            return;
+        }
+        final long now = System.nanoTime();
+        final long validUntil = now + Math.min(maxAge, IMMUTABLE >> 1);
+        final Entry previous = entries.put(keyOf(healthCard, efPath), new Entry(content, validUntil));
+        cachedBytes += content.length - (previous != null ? previous.content.length : 0);
+        evict();
+    }
+
+    /**
+     * Remove all contents of the card kept per health card object. Contents of this health card object read later are not cached any more,
+     * contents kept per card ID stay for the re-inserted card.
+     * @param healthCard
+     */
+    public synchronized void invalidate(final IHealthCard healthCard) {
+        invalidatedCards.put(healthCard, Boolean.TRUE);
+        final Iterator<Map.Entry<CardFileKey, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<CardFileKey, Entry> entry = iterator.next();
+            if (entry.getKey().getCard() == healthCard) {
+                cachedBytes -= entry.getValue().content.length;
+                iterator.remove();
+            }
+        }
+        LOG.debug("invalidated card, cached bytes: " + cachedBytes);
+    }
+
+    /**
+     * Remove all contents
+     */
+    public synchronized void clear() {
+        entries.clear();
+        cachedBytes = 0;
+    }
+
+    /**
+     * @return number of cached bytes
+     */
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    private CardFileKey keyOf(final IHealthCard healthCard, final EfPath efPath) {
+        final String cardId = cardIds.get(healthCard);
+        return cardId != null ? new CardFileKey(cardId, efPath) : new CardFileKey(healthCard, efPath);
+    }
+
+    private void evict() {
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while (cachedBytes > maxBytes && iterator.hasNext()) {
+            cachedBytes -= iterator.next().content.length;
+            iterator.remove();
+        }
+    }
+
+    private void recount() {
+        cachedBytes = 0;
+        for (final Entry entry : entries.values()) {
+            cachedBytes += entry.content.length;
+        }
+    }
+
+    private static final class Entry {
+        private final byte[] content;
+        private final long validUntilNanos;
+
+        private Entry(final byte[] content, final long validUntilNanos) {
+            this.content = content;
+            this.validUntilNanos = validUntilNanos;
+        }
+    }
+}
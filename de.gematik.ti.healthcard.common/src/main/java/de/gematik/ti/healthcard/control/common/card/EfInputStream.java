@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.integration.card;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Stream of an EF content, which reads the next chunk from the card when the previous chunk is consumed. The card is locked only while a
+ * chunk is read, see {@link ReadCommandSafeExecutor#readStreamChunk}.
+ */
+final class EfInputStream extends InputStream {
+    private final ReadCommandSafeExecutor executor;
+    private final EfPath efPath;
+    private final int end;
+    private int position;
+    private byte[] chunk = new byte[0];
+    private int chunkPosition;
+
+    EfInputStream(final ReadCommandSafeExecutor executor, final EfPath efPath, final int offset, final int end) {
+        this.executor = executor;
+        this.efPath = efPath;
+        this.position = offset;
+        this.end = end;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return chunk[chunkPosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        final int count = Math.min(len, chunk.length - chunkPosition);
+        System.arraycopy(chunk, chunkPosition, b, off, count);
+        chunkPosition += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return chunk.length - chunkPosition;
+    }
+
+    /**
+     * Read the next chunk if the current chunk is consumed
+     * @return false at the end of the stream
+     * @throws IOException if the chunk could not be read
+     */
+    private boolean fill() throws IOException {
+        if (chunkPosition < chunk.length) {
+            return true;
+        }
+        if (position >= end) {
+            return false;
+        }
+        final int length = end - position;
+        final byte[] bytes = executor.readStreamChunk(efPath, position, length);
+        if (bytes == null || bytes.length == 0) {
+            // the end is known from the FCP, a missing chunk must not end the stream early
+            throw new IOException("READ failed for " + efPath + " at offset " + position);
+        }
+        chunk = bytes.length > length ? Arrays.copyOf(bytes, length) : bytes;
+        chunkPosition = 0;
+        position += chunk.length;
+        return true;
+    }
+}
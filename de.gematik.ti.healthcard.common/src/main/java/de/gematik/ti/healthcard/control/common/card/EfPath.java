@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.integration.card;
+
+import java.util.Arrays;
+
+import de.gematik.ti.healthcardaccess.cardobjects.ApplicationIdentifier;
+import de.gematik.ti.healthcardaccess.cardobjects.FileIdentifier;
+import de.gematik.ti.utils.codec.Hex;
+
+/**
+ * Path of an EF: the EF under MF, under a DF or under a SubDF like DF.NFD under DF.HCA <br/>
+ * A path with short file identifier is read without selecting the EF. The short file identifier is not part of the identity of the path.
+ */
+public final class EfPath {
+    private static final int NO_SFI = -1;
+    private final ApplicationIdentifier dfAid;
+    private final ApplicationIdentifier subDfAid;
+    private final FileIdentifier efFid;
+    private final int sfi;
+    private final byte[] dfAidBytes;
+    private final byte[] subDfAidBytes;
+    private final byte[] efFidBytes;
+    private final String folderKey;
+    private final int hashCode;
+
+    private EfPath(final ApplicationIdentifier dfAid, final ApplicationIdentifier subDfAid, final FileIdentifier efFid, final int sfi) {
+        this.dfAid = dfAid;
+        this.subDfAid = subDfAid;
+        this.efFid = efFid;
+        this.sfi = sfi;
+        dfAidBytes = dfAid != null ? dfAid.getAid() : null;
+        subDfAidBytes = subDfAid != null ? subDfAid.getAid() : null;
+        efFidBytes = efFid.getFid();
+        folderKey = (dfAidBytes != null ? Hex.encodeHexString(dfAidBytes) : "") + (subDfAidBytes != null ? "/" + Hex.encodeHexString(subDfAidBytes) : "");
+        hashCode = 31 * (31 * Arrays.hashCode(dfAidBytes) + Arrays.hashCode(subDfAidBytes)) + Arrays.hashCode(efFidBytes);
+    }
+
+    /**
+     * Path of an EF under MF
+     * @param efFid
+     * @return path
+     */
+    public static EfPath of(final FileIdentifier efFid) {
+        return new EfPath(null, null, efFid, NO_SFI);
+    }
+
+    /**
+     * Path of an EF under a DF
+     * @param dfAid
+     * @param efFid
+     * @return path
+     */
+    public static EfPath of(final ApplicationIdentifier dfAid, final FileIdentifier efFid) {
+        return new EfPath(dfAid, null, efFid, NO_SFI);
+    }
+
+    /**
+     * Path of an EF under a SubDF like DF.NFD under DF.HCA
+     * @param dfAid
+     * @param subDfAid
+     * @param efFid
+     * @return path
+     */
+    public static EfPath of(final ApplicationIdentifier dfAid, final ApplicationIdentifier subDfAid, final FileIdentifier efFid) {
+        return new EfPath(dfAid, subDfAid, efFid, NO_SFI);
+    }
+
+    /**
+     * Same path with the short file identifier of the EF
+     * @param sfi short file identifier 1 to 30
+     * @return path with short file identifier
+     */
+    public EfPath withSfi(final int sfi) {
+        if (sfi < 1 || sfi > 30) {
+            throw new IllegalArgumentException("sfi must be in range 1 to 30: " + sfi);
+        }
+        return new EfPath(dfAid, subDfAid, efFid, sfi);
+    }
+
+    /**
+     * @return true if the EF has a short file identifier
+     */
+    public boolean hasSfi() {
+        return sfi != NO_SFI;
+    }
+
+    /**
+     * @return short file identifier or -1
+     */
+    public int getSfi() {
+        return sfi;
+    }
+
+    /**
+     * @return AID of the DF or null for an EF under MF
+     */
+    public ApplicationIdentifier getDfAid() {
+        return dfAid;
+    }
+
+    /**
+     * @return AID of the SubDF or null
+     */
+    public ApplicationIdentifier getSubDfAid() {
+        return subDfAid;
+    }
+
+    /**
+     * @return FID of the EF
+     */
+    public FileIdentifier getEfFid() {
+        return efFid;
+    }
+
+    /**
+     * Check if both EFs are in the same folder, so that selecting the other EF needs no DF selection
+     * @param other path of the other EF
+     * @return true if the folders are equal
+     */
+    public boolean isInSameFolder(final EfPath other) {
+        return other != null && Arrays.equals(dfAidBytes, other.dfAidBytes) && Arrays.equals(subDfAidBytes, other.subDfAidBytes);
+    }
+
+    /**
+     * Check if the folder of this EF is the DF of the SubDF of the other EF, e.g. DF.HCA for an EF in DF.NFD
+     * @param other path of the other EF
+     * @return true if the other EF is in a SubDF of the folder of this EF
+     */
+    boolean isInParentFolderOf(final EfPath other) {
+        return other != null && subDfAidBytes == null && other.subDfAidBytes != null && dfAidBytes != null
+                && Arrays.equals(dfAidBytes, other.dfAidBytes);
+    }
+
+    /**
+     * Sort key of the folder, computed once: the MF sorts first and every SubDF directly after its DF
+     * @return folder key
+     */
+    String getFolderKey() {
+        return folderKey;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof EfPath)) {
+            return false;
+        }
+        final EfPath other = (EfPath) o;
+        return isInSameFolder(other) && Arrays.equals(efFidBytes, other.efFidBytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return (dfAidBytes != null ? Hex.encodeHexString(dfAidBytes) + "/" : "MF/") + (subDfAidBytes != null ? Hex.encodeHexString(subDfAidBytes) + "/" : "")
+                + Hex.encodeHexString(efFidBytes);
+    }
+}
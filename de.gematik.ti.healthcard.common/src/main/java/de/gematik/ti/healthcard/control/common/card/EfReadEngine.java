@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.integration.card;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.gematik.ti.healthcard.control.common.HealthcardCommonRuntimeException;
+import de.gematik.ti.healthcardaccess.IHealthCard;
+import de.gematik.ti.healthcardaccess.operation.ResultOperation;
+import de.gematik.ti.healthcardaccess.operation.Subscriber;
+import de.gematik.ti.healthcardaccess.result.Response;
+
+/**
+ * Read a batch of EFs from a health card. <br/>
+ * The EFs are read folder by folder, so every DF and SubDF is selected once per batch; the EFs of a SubDF follow those of its DF. The engine holds no read state and can be shared
+ * between threads; the batches for one card are serialized. <br/>
+ * EFs cached in the {@link EfContentCache} are taken from the cache without any command to the card. A read of an EF already being read
+ * for the same card by another thread waits for that read and gets its result.
+ */
+public final class EfReadEngine {
+    private static final Logger LOG = LoggerFactory.getLogger(EfReadEngine.class);
+    private static final Comparator<EfPath> FOLDER_ORDER = Comparator.comparing(EfPath::getFolderKey);
+    private static final Map<CardFileKey, CompletableFuture<byte[]>> IN_FLIGHT = new ConcurrentHashMap<>();
+    private final int maxResponseLength;
+    private final EfContentCache cache;
+    private final Function<IHealthCard, EfCommands> commandsFactory;
+
+    /**
+     * Engine which negotiates the maximal response length per batch, see {@link ReadCommandSafeExecutor#ReadCommandSafeExecutor(IHealthCard)}.
+     * EF.ATR is read by the first batch of a card, the following batches take it from the cache.
+     */
+    public EfReadEngine() {
+        this(-1);
+    }
+
+    /**
+     * Engine with given maximal response length of the card reader
+     * @param maxResponseLength
+     */
+    public EfReadEngine(final int maxResponseLength) {
+        this(maxResponseLength, EfContentCache.getInstance());
+    }
+
+    /**
+     * Engine with given maximal response length of the card reader and cache
+     * @param maxResponseLength maximal response length or -1 to negotiate it
+     * @param cache cache of EF contents or null to read every EF from the card
+     */
+    public EfReadEngine(final int maxResponseLength, final EfContentCache cache) {
+        this(maxResponseLength, cache, HealthCardEfCommands::new);
+    }
+
+    /**
+     * Engine sending the commands by the {@link EfCommands} of the factory
+     */
+    EfReadEngine(final int maxResponseLength, final EfContentCache cache, final Function<IHealthCard, EfCommands> commandsFactory) {
+        this.maxResponseLength = maxResponseLength;
+        this.cache = cache;
+        this.commandsFactory = commandsFactory;
+    }
+
+    /**
+     * Read all EFs. Concurrent reads of the same EF of the same card share one read of the card.
+     * @param healthCard card to read
+     * @param efPaths EFs under MF, DF or SubDF
+     * @return content of the EFs in the order of the given paths
+     */
+    public ResultOperation<Map<EfPath, byte[]>> readAll(final IHealthCard healthCard, final Collection<EfPath> efPaths) {
+        final Map<EfPath, byte[]> contents = new LinkedHashMap<>();
+        final Map<EfPath, CompletableFuture<byte[]>> owned = new LinkedHashMap<>();
+        final Map<EfPath, CompletableFuture<byte[]>> followed = new LinkedHashMap<>();
+        for (final EfPath efPath : efPaths) {
+            final byte[] cached = cache != null ? cache.get(healthCard, efPath) : null;
+            contents.put(efPath, cached);
+            if (cached != null || owned.containsKey(efPath)) {
+                continue;
+            }
+            final CompletableFuture<byte[]> inFlight = new CompletableFuture<>();
+            final CompletableFuture<byte[]> running = IN_FLIGHT.putIfAbsent(new CardFileKey(healthCard, efPath), inFlight);
+            if (running == null) {
+                owned.put(efPath, inFlight);
+            } else {
+                followed.put(efPath, running);
+            }
+        }
+        RuntimeException failure = owned.isEmpty() ? null : readOwned(healthCard, owned, contents);
+        if (failure == null && !followed.isEmpty()) {
+            failure = joinFollowed(healthCard, followed, contents);
+        }
+        return failure == null ? ResultOperation.unitRo(contents) : failed(contents, failure);
+    }
+
+    /**
+     * Read one EF
+     * @param healthCard card to read
+     * @param efPath EF under MF, DF or SubDF
+     * @return content of the EF
+     */
+    public ResultOperation<byte[]> read(final IHealthCard healthCard, final EfPath efPath) {
+        return readAll(healthCard, Collections.singletonList(efPath)).map(contents -> contents.get(efPath));
+    }
+
+    /**
+     * Read an EF of the current folder by its short file identifier with one READ command, without SELECT, cache and negotiation of the
+     * response length, e.g. EF.GDO in the MF selected after reset
+     * @param healthCard card to read
+     * @param sfi short file identifier of the EF
+     * @return content of the EF
+     */
+    public ResultOperation<byte[]> readInCurrentFolder(final IHealthCard healthCard, final int sfi) {
+        final byte[][] content = new byte[1][];
+        final RuntimeException[] failure = new RuntimeException[1];
+        final ReentrantLock lock = HealthCardLocks.getLock(healthCard);
+        lock.lock();
+        try {
+            commandsFactory.apply(healthCard).read(sfi, 0, 0)
+                    .validate(Response.ResponseStatus.SUCCESS::validateResult)
+                    .map(Response::getResponseData)
+                    .subscribe(new Subscriber<byte[]>() {
+                        @Override
+                        public void onSuccess(final byte[] value) {
+                            content[0] = value;
+                        }
+
+                        @Override
+                        public void onError(final Throwable t) throws RuntimeException {
+                            failure[0] = toRuntimeException(t);
+                        }
+                    });
+        } finally {
+            lock.unlock();
+        }
+        return failure[0] == null ? ResultOperation.unitRo(content[0]) : failed(null, failure[0]);
+    }
+
+    /**
+     * Read the EFs this batch is the first to ask for, folder by folder under the lock of the card, see {@link HealthCardLocks}
+     * @return error or null
+     */
+    private RuntimeException readOwned(final IHealthCard healthCard, final Map<EfPath, CompletableFuture<byte[]>> owned,
+            final Map<EfPath, byte[]> contents) {
+        final List<EfPath> walk = new ArrayList<>(owned.keySet());
+        walk.sort(FOLDER_ORDER);
+        LOG.debug("read " + walk.size() + " EFs: " + walk);
+        final Throwable[] error = new Throwable[1];
+        final ReentrantLock lock = HealthCardLocks.getLock(healthCard);
+        lock.lock();
+        try {
+            final ReadCommandSafeExecutor session = createSession(healthCard);
+            for (final EfPath efPath : walk) {
+                final CompletableFuture<byte[]> inFlight = owned.get(efPath);
+                final byte[] cached = cache != null ? cache.get(healthCard, efPath) : null;
+                if (cached != null) {
+                    // read by the batch holding the card before
+                    contents.put(efPath, cached);
+                    inFlight.complete(cached.clone());
+                    continue;
+                }
+                session.readInSession(efPath).subscribe(new Subscriber<byte[]>() {
+                    @Override
+                    public void onSuccess(final byte[] content) {
+                        contents.put(efPath, content);
+                        final byte[] shared = content.clone();
+                        if (cache != null) {
+                            cache.put(healthCard, efPath, shared);
+                        }
+                        inFlight.complete(shared);
+                    }
+
+                    @Override
+                    public void onError(final Throwable t) throws RuntimeException {
+                        error[0] = t;
+                    }
+                });
+                if (error[0] != null) {
+                    LOG.debug("read of " + efPath + " failed: " + error[0].getMessage());
+                    final RuntimeException exception = toRuntimeException(error[0]);
+                    inFlight.completeExceptionally(exception);
+                    return exception;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+            for (final Map.Entry<EfPath, CompletableFuture<byte[]>> entry : owned.entrySet()) {
+                IN_FLIGHT.remove(new CardFileKey(healthCard, entry.getKey()), entry.getValue());
+                // not read because the batch failed before, the followers read it again
+                entry.getValue().complete(null);
+            }
+        }
+    }
+
+    /**
+     * Wait outside the lock of the card for the EFs read by other batches
+     * @return error or null
+     */
+    private RuntimeException joinFollowed(final IHealthCard healthCard, final Map<EfPath, CompletableFuture<byte[]>> followed,
+            final Map<EfPath, byte[]> contents) {
+        final List<EfPath> unread = new ArrayList<>();
+        for (final Map.Entry<EfPath, CompletableFuture<byte[]>> entry : followed.entrySet()) {
+            final byte[] content;
+            try {
+                content = entry.getValue().get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new HealthcardCommonRuntimeException("interrupted while waiting for read of " + entry.getKey());
+            } catch (final ExecutionException e) {
+                return toRuntimeException(e.getCause());
+            }
+            if (content != null) {
+                contents.put(entry.getKey(), content.clone());
+            } else {
+                unread.add(entry.getKey());
+            }
+        }
+        if (unread.isEmpty()) {
+            return null;
+        }
+        final Throwable[] error = new Throwable[1];
+        readAll(healthCard, unread).subscribe(new Subscriber<Map<EfPath, byte[]>>() {
+            @Override
+            public void onSuccess(final Map<EfPath, byte[]> value) {
+                contents.putAll(value);
+            }
+
+            @Override
+            public void onError(final Throwable t) throws RuntimeException {
+                error[0] = t;
+            }
+        });
+        return error[0] != null ? toRuntimeException(error[0]) : null;
+    }
+
+    private static RuntimeException toRuntimeException(final Throwable t) {
+        return t instanceof RuntimeException ? (RuntimeException) t : new HealthcardCommonRuntimeException(t.toString());
+    }
+
+    private static <T> ResultOperation<T> failed(final T value, final RuntimeException exception) {
+        return ResultOperation.unitRo(value).map(__ -> {
+            throw exception;
+        });
+    }
+
+    private ReadCommandSafeExecutor createSession(final IHealthCard healthCard) {
+        return new ReadCommandSafeExecutor(healthCard, commandsFactory.apply(healthCard), maxResponseLength, cache);
+    }
+}
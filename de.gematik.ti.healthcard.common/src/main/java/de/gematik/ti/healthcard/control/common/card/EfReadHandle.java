@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.integration.card;
+
+import de.gematik.ti.healthcardaccess.operation.ResultOperation;
+
+/**
+ * Read of one EF which can be continued at the last good offset after a failure, see
+ * {@link de.gematik.ti.healthcard.control.common.exceptions.EfReadException#getReadHandle()}
+ */
+public final class EfReadHandle {
+    private final ReadCommandSafeExecutor executor;
+    private final EfPath efPath;
+    private byte[] content;
+    private int offset;
+
+    EfReadHandle(final ReadCommandSafeExecutor executor, final EfPath efPath, final byte[] content, final int offset) {
+        this.executor = executor;
+        this.efPath = efPath;
+        this.content = content;
+        this.offset = offset;
+    }
+
+    /**
+     * Continue the read at the last good offset. The EF is selected again.
+     * @return content of the EF
+     */
+    public ResultOperation<byte[]> resume() {
+        return executor.resume(this);
+    }
+
+    /**
+     * @return path of the EF
+     */
+    public EfPath getEfPath() {
+        return efPath;
+    }
+
+    /**
+     * @return number of bytes read so far
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return length of the EF or -1 if not known yet
+     */
+    public int getFileLength() {
+        return content != null ? content.length : -1;
+    }
+
+    /**
+     * @return true if the whole EF is read
+     */
+    public boolean isComplete() {
+        return content != null && offset == content.length;
+    }
+
+    byte[] getContent() {
+        return content;
+    }
+
+    void allocate(final int fileLength) {
+        content = new byte[fileLength];
+        offset = 0;
+    }
+
+    void append(final byte[] bytes) {
+        final int length = Math.min(bytes.length, content.length - offset);
+        System.arraycopy(bytes, 0, content, offset, length);
+        offset += length;
+    }
+}
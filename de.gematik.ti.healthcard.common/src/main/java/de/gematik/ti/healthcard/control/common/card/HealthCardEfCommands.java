@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.integration.card;
+
+import de.gematik.ti.healthcardaccess.IHealthCard;
+import de.gematik.ti.healthcardaccess.cardobjects.ApplicationIdentifier;
+import de.gematik.ti.healthcardaccess.cardobjects.FileIdentifier;
+import de.gematik.ti.healthcardaccess.cardobjects.ShortFileIdentifier;
+import de.gematik.ti.healthcardaccess.commands.ReadCommand;
+import de.gematik.ti.healthcardaccess.commands.SelectCommand;
+import de.gematik.ti.healthcardaccess.operation.ResultOperation;
+import de.gematik.ti.healthcardaccess.result.Response;
+
+/**
+ * {@link EfCommands} sent to a health card
+ */
+final class HealthCardEfCommands implements EfCommands {
+    private final IHealthCard healthCard;
+
+    HealthCardEfCommands(final IHealthCard healthCard) {
+        this.healthCard = healthCard;
+    }
+
+    @Override
+    public ResultOperation<Response> selectMf() {
+        return new SelectCommand(false, false).executeOn(healthCard);
+    }
+
+    @Override
+    public ResultOperation<Response> selectDf(final ApplicationIdentifier aid) {
+        return new SelectCommand(aid).executeOn(healthCard);
+    }
+
+    @Override
+    public ResultOperation<Response> selectEf(final FileIdentifier fid) {
+        return new SelectCommand(fid, false, true, 65535).executeOn(healthCard);
+    }
+
+    @Override
+    public ResultOperation<Response> read(final int offset, final int length) {
+        return new ReadCommand(offset, length).executeOn(healthCard);
+    }
+
+    @Override
+    public ResultOperation<Response> read(final int sfi, final int offset, final int length) {
+        final ShortFileIdentifier shortFileIdentifier = new ShortFileIdentifier(sfi);
+        return length > 0 ? new ReadCommand(shortFileIdentifier, offset, length).executeOn(healthCard)
+                : new ReadCommand(shortFileIdentifier, offset).executeOn(healthCard);
+    }
+
+    /**
+     * {@inheritDoc}
+     * The commands of healthcardaccess map wrong Le to {@link Response.ResponseStatus#UNKNOWN_STATUS} without the status word, so the
+     * exact length is not known and the executor shrinks the chunk instead.
+     */
+    @Override
+    public int getExactLength(final Response response) {
+        return -1;
+    }
+}
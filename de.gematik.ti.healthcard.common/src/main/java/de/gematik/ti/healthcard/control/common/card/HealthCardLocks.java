@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.integration.card;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.gematik.ti.cardreader.provider.api.card.ICardChannel;
+import de.gematik.ti.healthcardaccess.IHealthCard;
+
+/**
+ * Exclusive access to a card for a sequence of commands, e.g. the READ commands of an {@link EfReadEngine} batch or a PACE key
+ * agreement. <br/>
+ * The lock belongs to the card channel, so all health card objects created for the same card share it. A health card without channel
+ * has its own lock. <br/>
+ * The locks count how often they were taken, so a sequence split into several locked steps can find out whether other commands were sent
+ * to the card in between, see {@link #getLockCount(IHealthCard)}.
+ */
+public final class HealthCardLocks {
+    private static final Map<Object, CountingLock> LOCKS = new WeakHashMap<>();
+
+    private HealthCardLocks() {
+    }
+
+    /**
+     * Get the lock of the card
+     * @param healthCard card to lock
+     * @return lock shared by all health card objects of the card
+     */
+    public static ReentrantLock getLock(final IHealthCard healthCard) {
+        final Object key = keyOf(healthCard);
+        synchronized (LOCKS) {
+            return LOCKS.computeIfAbsent(key, __ -> new CountingLock());
+        }
+    }
+
+    /**
+     * Get the number of times the lock of the card was taken. Nested locking by the holding thread is not counted.
+     * @param healthCard card of the lock
+     * @return number of times the lock was taken
+     */
+    public static long getLockCount(final IHealthCard healthCard) {
+        final Object key = keyOf(healthCard);
+        synchronized (LOCKS) {
+            return LOCKS.computeIfAbsent(key, __ -> new CountingLock()).lockCount;
+        }
+    }
+
+    private static Object keyOf(final IHealthCard healthCard) {
+        ICardChannel channel = null;
+        try {
+            channel = healthCard.getCurrentCardChannel();
+        } catch (final RuntimeException e) {
+            // no channel, e.g. the card is disconnected
+        }
+        return channel != null ? channel : healthCard;
+    }
+
+    /**
+     * Lock which counts its acquisitions, the count is only changed by the thread holding the lock
+     */
+    private static final class CountingLock extends ReentrantLock {
+        private static final long serialVersionUID = 1L;
+        private volatile long lockCount;
+
+        @Override
+        public void lock() {
+            super.lock();
+            countAcquisition();
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            super.lockInterruptibly();
+            countAcquisition();
+        }
+
+        @Override
+        public boolean tryLock() {
+            final boolean locked = super.tryLock();
+            if (locked) {
+                countAcquisition();
+            }
+            return locked;
+        }
+
+        @Override
+        public boolean tryLock(final long timeout, final TimeUnit unit) throws InterruptedException {
+            final boolean locked = super.tryLock(timeout, unit);
+            if (locked) {
+                countAcquisition();
+            }
+            return locked;
+        }
+
+        private void countAcquisition() {
+            if (getHoldCount() == 1) {
+                lockCount++;
+            }
+        }
+    }
+}
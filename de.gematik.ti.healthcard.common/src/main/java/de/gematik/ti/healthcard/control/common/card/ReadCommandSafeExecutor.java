@@ -16,44 +16,103 @@
 
 package de.gematik.ti.healthcard.control.common.integration.card;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPInputStream;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import de.gematik.ti.healthcardaccess.AbstractHealthCardCommand;
+import de.gematik.ti.cardreader.provider.api.card.ICardChannel;
+import de.gematik.ti.healthcard.control.common.HealthcardCommonRuntimeException;
+import de.gematik.ti.healthcard.control.common.exceptions.EfReadException;
 import de.gematik.ti.healthcardaccess.IHealthCard;
 import de.gematik.ti.healthcardaccess.cardobjects.ApplicationIdentifier;
 import de.gematik.ti.healthcardaccess.cardobjects.FileIdentifier;
-import de.gematik.ti.healthcardaccess.commands.ReadCommand;
-import de.gematik.ti.healthcardaccess.commands.SelectCommand;
 import de.gematik.ti.healthcardaccess.operation.ResultOperation;
 import de.gematik.ti.healthcardaccess.operation.Subscriber;
 import de.gematik.ti.healthcardaccess.result.Response;
 import de.gematik.ti.healthcardaccess.sanitychecker.BER_TLV;
 import de.gematik.ti.utils.codec.Hex;
-import de.gematik.ti.utils.primitives.Bytes;
 
 /**
  * Read content of any Ef safe in regard to different MaxResponseLength of various CardReader <br/>
  * Required parameters are:
  * <li>healthCard</li>
  * <li>numberOfOctet as bytesToRead</li>
- * <li>maxResponseLength of cardReader</li>
+ * <li>maxResponseLength of cardReader, or negotiated from the card channel and EF.ATR, which is kept in the {@link EfContentCache}</li>
+ * The DF and EF are selected once per read and only selected again after an error. Every public read starts with the selection
+ * unknown, because other commands may have been sent to the card in between; {@link EfReadEngine} keeps the selection within a batch. <br/>
+ * The content is read into one buffer of the file length given by the FCP, or into a buffer supplied by the caller. <br/>
+ * The chunk size starts with the maximal response length and adapts to failed and slow READ commands. <br/>
+ * EFs with short file identifier ({@link EfPath#withSfi(int)}) are read without SELECT of the EF until the card reports the end of
+ * file. <br/>
+ * A failed chunk is read again up to {@link #setChunkRetries(int)} times. If it still fails, the read fails with {@link EfReadException},
+ * whose read handle continues at the failed offset. <br/>
+ * An executor is a read session of one card and not thread-safe, {@link EfReadEngine} reads batches of EFs and can be shared.
  */
 public class ReadCommandSafeExecutor {
-    private final Subscriber<byte[]> subscriber;
-    private final Subscriber<Response> subscriberSelection;
     private static final Logger LOG = LoggerFactory.getLogger(ReadCommandSafeExecutor.class);
     private final IHealthCard cardToRead;
-    private final int maxResponseLength;
-    private int[] bytesToRead = new int[] { 0 };
-    private int offset = 0;
-    private final byte[][] readData = { new byte[] {} };
+    private final EfCommands commands;
+    private final EfContentCache cache;
+    private static final int SFID_ATR = 0x1D; // EF.ATR in MF
+    private static final EfPath EF_ATR = EfPath.of(new FileIdentifier(0x2F01)).withSfi(SFID_ATR);
+    private static final int DEFAULT_CHUNK_RETRIES = 2;
+    private int chunkRetries = DEFAULT_CHUNK_RETRIES;
+    private AdaptiveChunkSize chunkSize;
+    private EfPath currentFolder;
+    private EfPath selectedPath;
+    private int selectedFileLength;
 
     public ReadCommandSafeExecutor(final IHealthCard cardToRead, final int maxResponseLength) {
+        this(cardToRead, new HealthCardEfCommands(cardToRead), EfContentCache.getInstance());
+        chunkSize = new AdaptiveChunkSize(maxResponseLength);
+    }
+
+    /**
+     * Executor which negotiates the maximal response length from the extended length support of the card channel and the extended
+     * length information in EF.ATR of the card before the first read. EF.ATR is read once per card and then taken from the shared
+     * {@link EfContentCache}.
+     * @param cardToRead
+     */
+    public ReadCommandSafeExecutor(final IHealthCard cardToRead) {
+        this(cardToRead, new HealthCardEfCommands(cardToRead), EfContentCache.getInstance());
+    }
+
+    /**
+     * Executor sending the commands by the given {@link EfCommands}
+     * @param cardToRead
+     * @param commands
+     * @param maxResponseLength maximal response length or -1 to negotiate it
+     */
+    ReadCommandSafeExecutor(final IHealthCard cardToRead, final EfCommands commands, final int maxResponseLength) {
+        this(cardToRead, commands, maxResponseLength, null);
+    }
+
+    /**
+     * Executor sending the commands by the given {@link EfCommands}
+     * @param cardToRead
+     * @param commands
+     * @param maxResponseLength maximal response length or -1 to negotiate it
+     * @param cache cache of EF.ATR for the negotiation or null to read it from the card
+     */
+    ReadCommandSafeExecutor(final IHealthCard cardToRead, final EfCommands commands, final int maxResponseLength, final EfContentCache cache) {
+        this(cardToRead, commands, cache);
+        if (maxResponseLength > 0) {
+            chunkSize = new AdaptiveChunkSize(maxResponseLength);
+        }
+    }
+
+    private ReadCommandSafeExecutor(final IHealthCard cardToRead, final EfCommands commands, final EfContentCache cache) {
         this.cardToRead = cardToRead;
-        this.maxResponseLength = maxResponseLength;
-        subscriber = getSubscriber();
-        subscriberSelection = getSubscriberSelection();
+        this.commands = commands;
+        this.cache = cache;
     }
 
     /**
@@ -63,46 +122,7 @@ public class ReadCommandSafeExecutor {
      * @return
      */
     public ResultOperation<byte[]> readSafe(final ApplicationIdentifier dfAid, final FileIdentifier efFid) {
-        final AbstractHealthCardCommand selectCommandDf = new SelectCommand(dfAid);
-        final AbstractHealthCardCommand selectCommandEf = new SelectCommand(efFid, false, true, 65535);
-        selectCommandDf.executeOn(cardToRead).validate(Response.ResponseStatus.SUCCESS::validateResult)
-                .flatMap(__ -> selectCommandEf.executeOn(cardToRead).validate(Response.ResponseStatus.SUCCESS::validateResult)).subscribe(
-                subscriberSelection);
-        LOG.debug("maxResponseLength:" + maxResponseLength);
-        LOG.debug("bytesToRead[0]:" + bytesToRead[0]);
-        while (bytesToRead[0] > 0) {
-            final int readBytesLength;
-            // get ReadCommand
-            if (bytesToRead[0] > maxResponseLength) {
-                readBytesLength = maxResponseLength;
-            } else {
-                readBytesLength = bytesToRead[0];
-            }
-            final AbstractHealthCardCommand readCommand = new ReadCommand(offset, readBytesLength);
-            LOG.debug("readBytesLength: " + readBytesLength);
-            // run command
-            selectCommandDf.executeOn(cardToRead).validate(Response.ResponseStatus.SUCCESS::validateResult)
-                    .flatMap(__ -> selectCommandEf.executeOn(cardToRead).validate(Response.ResponseStatus.SUCCESS::validateResult))
-                    .flatMap(__ -> readCommand.executeOn(cardToRead).map(Response::getResponseData).map(bytes -> {
-                        LOG.debug("readBytesStep: " + Hex.encodeHexString(bytes));
-                        readData[0] = Bytes.concatNullables(readData[0], bytes);
-                        return bytes;
-                    })).subscribe(subscriber);
-
-            LOG.debug("readBytesCollect: " + Hex.encodeHexString(readData[0]));
-            offset += readBytesLength;
-            bytesToRead[0] -= readBytesLength;
-        }
-        return ResultOperation.unitRo(readData[0]);
-    }
-
-    private int parsePositionLogOfFile(final byte[] responseData) {
-        final String valueResp = Hex.encodeHexString(responseData);
-        LOG.debug("valueResp: " + valueResp);
-        final String value = new BER_TLV(valueResp).findTag("C5").getValue();
-        final int positionLogOfFile = 2 * Integer.parseInt(value, 16);
-        LOG.debug("positionLogOfFile.length: " + positionLogOfFile);
-        return positionLogOfFile;
+        return readSafe(EfPath.of(dfAid, efFid));
     }
 
     /**
@@ -112,41 +132,7 @@ public class ReadCommandSafeExecutor {
      * @return
      */
     public ResultOperation<byte[]> readSafe(final ApplicationIdentifier dfAid, final ApplicationIdentifier subDfAid, final FileIdentifier efFid) {
-        final AbstractHealthCardCommand selectCommandDf = new SelectCommand(dfAid);
-        final AbstractHealthCardCommand selectCommandSubDf = new SelectCommand(subDfAid);
-        final AbstractHealthCardCommand selectCommandEf = new SelectCommand(efFid, false, true, 65535);
-        selectCommandDf.executeOn(cardToRead).validate(Response.ResponseStatus.SUCCESS::validateResult)
-                .flatMap(__ -> selectCommandSubDf.executeOn(cardToRead)).validate(Response.ResponseStatus.SUCCESS::validateResult)
-                .flatMap(__ -> selectCommandEf.executeOn(cardToRead).validate(Response.ResponseStatus.SUCCESS::validateResult)).subscribe(
-                subscriberSelection);
-
-        LOG.debug("maxResponseLength:" + maxResponseLength);
-        LOG.debug("bytesToRead[0]:" + bytesToRead[0]);
-        while (bytesToRead[0] > 0) {
-            final int readBytesLength;
-            // get ReadCommand
-            if (bytesToRead[0] > maxResponseLength) {
-                readBytesLength = maxResponseLength;
-            } else {
-                readBytesLength = bytesToRead[0];
-            }
-            final AbstractHealthCardCommand readCommand = new ReadCommand(offset, readBytesLength);
-            LOG.debug("readBytesLength: " + readBytesLength);
-            // run command
-            selectCommandDf.executeOn(cardToRead).validate(Response.ResponseStatus.SUCCESS::validateResult)
-                    .flatMap(__ -> selectCommandSubDf.executeOn(cardToRead).validate(Response.ResponseStatus.SUCCESS::validateResult))
-                    .flatMap(__ -> selectCommandEf.executeOn(cardToRead).validate(Response.ResponseStatus.SUCCESS::validateResult))
-                    .flatMap(__ -> readCommand.executeOn(cardToRead).map(Response::getResponseData).map(bytes -> {
-                        LOG.debug("readBytesStep: " + Hex.encodeHexString(bytes));
-                        readData[0] = Bytes.concatNullables(readData[0], bytes);
-                        return bytes;
-                    })).subscribe(subscriber);
-
-            LOG.debug("readBytesCollect: " + Hex.encodeHexString(readData[0]));
-            offset += readBytesLength;
-            bytesToRead[0] -= readBytesLength;
-        }
-        return ResultOperation.unitRo(readData[0]);
+        return readSafe(EfPath.of(dfAid, subDfAid, efFid));
     }
 
     /**
@@ -155,62 +141,582 @@ public class ReadCommandSafeExecutor {
      * @return
      */
     public ResultOperation<byte[]> readSafe(final FileIdentifier efFid) {
-        final AbstractHealthCardCommand selectCommandEf = new SelectCommand(efFid, false, true, 65535);
-        selectCommandEf.executeOn(cardToRead).validate(Response.ResponseStatus.SUCCESS::validateResult).subscribe(subscriberSelection);
-
-        LOG.debug("maxResponseLength:" + maxResponseLength);
-        LOG.debug("bytesToRead[0]:" + bytesToRead[0]);
-        while (bytesToRead[0] > 0) {
-            final int readBytesLength;
-            // get ReadCommand
-            if (bytesToRead[0] > maxResponseLength) {
-                readBytesLength = maxResponseLength;
-            } else {
-                readBytesLength = bytesToRead[0];
-            }
-            final AbstractHealthCardCommand readCommand = new ReadCommand(offset, readBytesLength);
-            LOG.debug("readBytesLength: " + readBytesLength);
-            // run command
-            selectCommandEf.executeOn(cardToRead).validate(Response.ResponseStatus.SUCCESS::validateResult)
-                    .flatMap(__ -> readCommand.executeOn(cardToRead).map(Response::getResponseData).map(bytes -> {
-                        LOG.debug("readBytesStep: " + Hex.encodeHexString(bytes));
-                        readData[0] = Bytes.concatNullables(readData[0], bytes);
-                        return bytes;
-                    })).subscribe(subscriber);
-
-            LOG.debug("readBytesCollect: " + Hex.encodeHexString(readData[0]));
-            offset += readBytesLength;
-            bytesToRead[0] -= readBytesLength;
-        }
-        return ResultOperation.unitRo(readData[0]);
-    }
-
-    private Subscriber<byte[]> getSubscriber() {
-        return new Subscriber<byte[]>() {
+        return readSafe(EfPath.of(efFid));
+    }
+
+    /**
+     * For reading an EF given by its path
+     * @param efPath
+     * @return content of the EF
+     */
+    public ResultOperation<byte[]> readSafe(final EfPath efPath) {
+        invalidateSelection();
+        return read(efPath);
+    }
+
+    /**
+     * For reading an EF into a buffer of the caller, e.g. to reuse the buffer for many cards. The content is written from the position
+     * of the target, the position is advanced by the number of bytes read. If a chunk fails, the read handle of the
+     * {@link EfReadException} continues the read at the failed offset into a new array, which holds the bytes read so far.
+     * @param efPath
+     * @param target buffer with at least the file length remaining
+     * @return number of bytes read
+     */
+    public ResultOperation<Integer> readSafe(final EfPath efPath, final ByteBuffer target) {
+        invalidateSelection();
+        return readInto(efPath, target);
+    }
+
+    /**
+     * For reading an EF into an array of the caller
+     * @param efPath
+     * @param target array with at least the file length after targetOffset
+     * @param targetOffset index of the first byte to write
+     * @return number of bytes read
+     */
+    public ResultOperation<Integer> readSafe(final EfPath efPath, final byte[] target, final int targetOffset) {
+        return readSafe(efPath, ByteBuffer.wrap(target, targetOffset, target.length - targetOffset));
+    }
+
+    /**
+     * Open the EF as stream. Every chunk is read when the previous chunk is consumed, so the first bytes are available after the first
+     * READ command and at most one chunk is held in memory. Every chunk is read under the lock of the card and selects DF and EF again,
+     * because other reads may have changed the selection between two chunks.
+     * @param efPath
+     * @return stream of the EF content
+     * @throws IOException if the EF could not be selected
+     */
+    public InputStream openStream(final EfPath efPath) throws IOException {
+        return openStream(efPath, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Open a part of the EF as stream
+     * @param efPath
+     * @param offset offset of the first byte in the EF
+     * @param length maximal number of bytes, the stream ends at the end of file at the latest
+     * @return stream of the EF content
+     * @throws IOException if the EF could not be selected
+     */
+    public InputStream openStream(final EfPath efPath, final int offset, final int length) throws IOException {
+        final int fileLength;
+        final ReentrantLock lock = HealthCardLocks.getLock(cardToRead);
+        lock.lock();
+        try {
+            invalidateSelection();
+            fileLength = getFileLength(efPath);
+        } finally {
+            lock.unlock();
+        }
+        if (fileLength < 0) {
+            throw new IOException("EF not selectable: " + efPath);
+        }
+        final int end = (int) Math.min(fileLength, (long) offset + length);
+        return new EfInputStream(this, efPath, Math.min(offset, end), end);
+    }
+
+    /**
+     * Open a gzip compressed part of the EF as decoded stream, e.g. EF.PD or EF.VD of an eGK. The content is decompressed while the
+     * following chunks are read.
+     * @param efPath
+     * @param offset offset of the gzip data in the EF
+     * @param length length of the gzip data
+     * @return stream of the decompressed content
+     * @throws IOException if the EF could not be selected or the data is not in gzip format
+     */
+    public InputStream openGzipStream(final EfPath efPath, final int offset, final int length) throws IOException {
+        return new GZIPInputStream(openStream(efPath, offset, length), getChunkSize().getLimit());
+    }
+
+    /**
+     * Open the EF as channel, see {@link #openStream(EfPath)}
+     * @param efPath
+     * @return channel of the EF content
+     * @throws IOException if the EF could not be selected
+     */
+    public ReadableByteChannel openChannel(final EfPath efPath) throws IOException {
+        return Channels.newChannel(openStream(efPath));
+    }
+
+    /**
+     * Set how often a failed chunk is read again before the read fails. A retry selects the EF again and, after a length error, uses a
+     * smaller chunk size, so one chunk is sent at most chunkRetries + 1 times.
+     * @param chunkRetries number of retries, 0 for no retry
+     */
+    public void setChunkRetries(final int chunkRetries) {
+        if (chunkRetries < 0) {
+            throw new IllegalArgumentException("chunkRetries must not be negative");
+        }
+        this.chunkRetries = chunkRetries;
+    }
+
+    /**
+     * Forget the selected EF, e.g. after other commands were sent to the card while a stream is open. The next chunk selects DF and EF
+     * again.
+     */
+    public void invalidateSelection() {
+        selectedPath = null;
+        currentFolder = null;
+    }
+
+    /**
+     * Read the EF within the read session of a batch, the selection of the previous EF is kept
+     * @param efPath
+     * @return content of the EF
+     */
+    ResultOperation<byte[]> readInSession(final EfPath efPath) {
+        return read(efPath);
+    }
+
+    private ResultOperation<byte[]> read(final EfPath efPath) {
+        if (efPath.hasSfi() && !efPath.equals(selectedPath)) {
+            final EfReadHandle readHandle = readBySfi(efPath);
+            if (readHandle != null) {
+                return continueRead(readHandle);
+            }
+            LOG.debug("read by sfi failed, select " + efPath);
+        }
+        return continueRead(new EfReadHandle(this, efPath, null, 0));
+    }
+
+    /**
+     * Continue the read of the handle at its offset, DF and EF are selected again
+     * @param readHandle
+     * @return content of the EF
+     */
+    ResultOperation<byte[]> resume(final EfReadHandle readHandle) {
+        invalidateSelection();
+        return continueRead(readHandle);
+    }
+
+    private ResultOperation<byte[]> continueRead(final EfReadHandle readHandle) {
+        final EfPath efPath = readHandle.getEfPath();
+        if (readHandle.getContent() == null) {
+            if (!select(efPath)) {
+                return failure(new EfReadException(efPath, 0, -1, readHandle, "EF not selectable"));
+            }
+            readHandle.allocate(selectedFileLength);
+        }
+        final int fileLength = readHandle.getFileLength();
+        LOG.debug("chunkSize:" + getChunkSize().get());
+        LOG.debug("bytesToRead:" + (fileLength - readHandle.getOffset()));
+        while (!readHandle.isComplete()) {
+            final byte[] bytes = readChunk(efPath, readHandle.getOffset(), fileLength - readHandle.getOffset());
+            if (bytes == null || bytes.length == 0) {
+                return failure(new EfReadException(efPath, readHandle.getOffset(), fileLength, readHandle, "READ failed after " + chunkRetries + " retries"));
+            }
+            readHandle.append(bytes);
+        }
+        LOG.debug("readBytesCollect: " + fileLength);
+        return ResultOperation.unitRo(readHandle.getContent());
+    }
+
+    private ResultOperation<Integer> readInto(final EfPath efPath, final ByteBuffer target) {
+        if (!select(efPath)) {
+            return failure(new EfReadException(efPath, 0, -1, new EfReadHandle(this, efPath, null, 0), "EF not selectable"));
+        }
+        final int fileLength = selectedFileLength;
+        if (target.remaining() < fileLength) {
+            return failure(new HealthcardCommonRuntimeException("target buffer too small for " + efPath + ": " + target.remaining() + " < " + fileLength));
+        }
+        final int start = target.position();
+        int offset = 0;
+        while (offset < fileLength) {
+            final byte[] bytes = readChunk(efPath, offset, fileLength - offset);
+            if (bytes == null || bytes.length == 0) {
+                final byte[] content = new byte[fileLength];
+                ((ByteBuffer) target.duplicate().position(start)).get(content, 0, offset);
+                return failure(new EfReadException(efPath, offset, fileLength, new EfReadHandle(this, efPath, content, offset),
+                        "READ failed after " + chunkRetries + " retries"));
+            }
+            final int length = Math.min(bytes.length, fileLength - offset);
+            target.put(bytes, 0, length);
+            offset += length;
+        }
+        return ResultOperation.unitRo(offset);
+    }
+
+    private static <T> ResultOperation<T> failure(final RuntimeException exception) {
+        LOG.error(exception.getMessage());
+        return ResultOperation.<T> unitRo(null).map(__ -> {
+            throw exception;
+        });
+    }
+
+    /**
+     * Read the EF by its short file identifier. The first READ selects the EF implicitly. The EF is read in chunks until the card reports
+     * the end of file (6282). A response shorter than requested is no end of file, the next chunk follows it. If the card does not report
+     * the end, e.g. because the file length is a multiple of the chunk size, the EF is selected to take the file length from the FCP.
+     * @param efPath
+     * @return read handle with the content read so far or null if the EF could not be read by short file identifier
+     */
+    private EfReadHandle readBySfi(final EfPath efPath) {
+        if (!selectFolderOnly(efPath)) {
+            return null;
+        }
+        final ReadResponse first = transmit(commands.read(efPath.getSfi(), 0, getChunkSize().get()));
+        if (!first.isSuccess() && !first.isEndOfFile()) {
+            LOG.debug("READ with sfi not possible: " + first.status);
+            return null;
+        }
+        selectedPath = efPath;
+        currentFolder = efPath;
+        selectedFileLength = -1;
+        byte[] content = first.data;
+        int size = content.length;
+        ReadResponse last = first;
+        while (!last.isEndOfFile()) {
+            last = transmit(commands.read(size, getChunkSize().get()));
+            if (!last.isEndOfFile() && (!last.isSuccess() || last.data.length == 0)) {
+                // the end of file is not reported, the FCP tells
+                return selectForRest(efPath, content, size);
+            }
+            if (size + last.data.length > content.length) {
+                content = Arrays.copyOf(content, Math.max(2 * content.length, size + last.data.length));
+            }
+            System.arraycopy(last.data, 0, content, size, last.data.length);
+            size += last.data.length;
+        }
+        selectedFileLength = size;
+        return new EfReadHandle(this, efPath, size == content.length ? content : Arrays.copyOf(content, size), size);
+    }
+
+    /**
+     * Select the EF to get the file length from the FCP, the rest behind the bytes read so far is read by the returned handle
+     * @return read handle or null if the EF could not be selected
+     */
+    private EfReadHandle selectForRest(final EfPath efPath, final byte[] start, final int size) {
+        // the EF is selected by the READ with sfi, but its FCP is unknown
+        selectedPath = null;
+        if (!select(efPath)) {
+            return null;
+        }
+        final int fileLength = selectedFileLength;
+        return new EfReadHandle(this, efPath, Arrays.copyOf(start, fileLength), Math.min(size, fileLength));
+    }
+
+    /**
+     * Read one chunk of the EF, the EF is selected if necessary. A failed chunk is read again after selecting the EF again, a READ
+     * command failed by its length or the transmission with a smaller chunk size. After a wrong Le (6Cxx) the chunk is read with the
+     * exact length reported by the card. All attempts are bounded by the chunk retries.
+     * @param efPath
+     * @param offset offset in the EF
+     * @param maxLength maximal number of bytes to read
+     * @return read bytes or null if the chunk could not be read
+     */
+    byte[] readChunk(final EfPath efPath, final int offset, final int maxLength) {
+        final AdaptiveChunkSize adaptiveChunkSize = getChunkSize();
+        int length = Math.min(maxLength, adaptiveChunkSize.get());
+        for (int retry = 0;; retry++) {
+            final long start = System.nanoTime();
+            final ReadResponse response = transmitRead(efPath, offset, length);
+            if (response != null && response.isSuccess()) {
+                adaptiveChunkSize.onSuccess(length, System.nanoTime() - start);
+                return response.getData();
+            }
+            if (retry >= chunkRetries) {
+                return null;
+            }
+            if (response != null && response.exactLength > 0) {
+                length = Math.min(length, adaptiveChunkSize.onWrongLength(response.exactLength));
+            } else if (response != null && response.isLengthError()) {
+                length = Math.min(length, adaptiveChunkSize.onFailure(length));
+            }
+            LOG.debug("retry " + (retry + 1) + " of chunk at offset " + offset + " with chunk size " + length);
+        }
+    }
+
+    /**
+     * Read one chunk of a stream under the lock of the card, see {@link HealthCardLocks}. Other commands may have been sent to the card
+     * since the previous chunk, so DF and EF are selected again.
+     * @param efPath
+     * @param offset offset in the EF
+     * @param maxLength maximal number of bytes to read
+     * @return read bytes or null if the chunk could not be read
+     */
+    byte[] readStreamChunk(final EfPath efPath, final int offset, final int maxLength) {
+        final ReentrantLock lock = HealthCardLocks.getLock(cardToRead);
+        lock.lock();
+        try {
+            invalidateSelection();
+            return readChunk(efPath, offset, maxLength);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Send the READ command for the EF
+     * @return response or null if the EF could not be selected
+     */
+    private ReadResponse transmitRead(final EfPath efPath, final int offset, final int length) {
+        if (!select(efPath)) {
+            return null;
+        }
+        LOG.debug("readBytesLength: " + length);
+        return transmit(commands.read(offset, length));
+    }
+
+    /**
+     * Send the READ command
+     * @return response, the selection is invalid if it failed
+     */
+    private ReadResponse transmit(final ResultOperation<Response> readResponse) {
+        final ReadResponse[] response = new ReadResponse[1];
+        readResponse.subscribe(new Subscriber<Response>() {
             @Override
-            public void onSuccess(final byte[] value) {
-                LOG.debug("Subscriber - get value: " + Hex.encodeHexString(value));
+            public void onSuccess(final Response value) {
+                response[0] = new ReadResponse(value.getResponseStatus(), value.getResponseData(), commands.getExactLength(value));
             }
 
             @Override
             public void onError(final Throwable t) throws RuntimeException {
                 LOG.error("Subscriber - get error: " + t.getMessage());
+                response[0] = new ReadResponse(null, null, -1);
+            }
+        });
+        if (!response[0].isSuccess() && !response[0].isEndOfFile()) {
+            invalidateSelection();
+        }
+        return response[0];
+    }
+
+    /**
+     * Current chunk size, negotiated before the first read if no maximal response length is given
+     */
+    AdaptiveChunkSize getChunkSize() {
+        if (chunkSize == null) {
+            chunkSize = new AdaptiveChunkSize(negotiateMaxResponseLength());
+            LOG.debug("negotiated maxResponseLength: " + chunkSize.getLimit());
+        }
+        return chunkSize;
+    }
+
+    private int negotiateMaxResponseLength() {
+        try {
+            final ICardChannel channel = cardToRead.getCurrentCardChannel();
+            if (!channel.isExtendedLengthSupported()) {
+                return AdaptiveChunkSize.SHORT_LENGTH_LIMIT;
+            }
+            int limit = AdaptiveChunkSize.EXTENDED_LENGTH_LIMIT;
+            if (channel.getMaxResponseLength() > 0) {
+                limit = Math.min(limit, channel.getMaxResponseLength());
+            }
+            final int cardLimit = readCardMaxResponseLength();
+            if (cardLimit > 0) {
+                limit = Math.min(limit, cardLimit);
             }
-        };
+            return limit;
+        } catch (final RuntimeException e) {
+            LOG.debug("card channel limits not available: " + e.getMessage());
+            return AdaptiveChunkSize.SHORT_LENGTH_LIMIT;
+        }
+    }
+
+    /**
+     * Maximal response length of the card from EF.ATR, which is read from the card only if it is not cached
+     * @return maximal length of response data or -1 if not available
+     */
+    private int readCardMaxResponseLength() {
+        byte[] efAtr = cache != null ? cache.get(cardToRead, EF_ATR) : null;
+        if (efAtr == null) {
+            efAtr = readEfAtr();
+            if (efAtr != null && cache != null) {
+                cache.put(cardToRead, EF_ATR, efAtr);
+            }
+        }
+        return efAtr != null ? AdaptiveChunkSize.parseMaxResponseLength(efAtr) : -1;
+    }
+
+    /**
+     * Read EF.ATR by its short file identifier
+     * @return content of EF.ATR or null if not readable
+     */
+    private byte[] readEfAtr() {
+        final byte[][] efAtr = new byte[1][];
+        commands.selectMf().validate(Response.ResponseStatus.SUCCESS::validateResult)
+                .flatMap(__ -> commands.read(SFID_ATR, 0, 0))
+                .validate(Response.ResponseStatus.SUCCESS::validateResult).map(Response::getResponseData)
+                .subscribe(new Subscriber<byte[]>() {
+                    @Override
+                    public void onSuccess(final byte[] content) {
+                        efAtr[0] = content;
+                    }
+
+                    @Override
+                    public void onError(final Throwable t) throws RuntimeException {
+                        LOG.debug("EF.ATR not readable: " + t.getMessage());
+                    }
+                });
+        // MF is selected now, the selected EF is unknown
+        invalidateSelection();
+        return efAtr[0];
     }
 
-    private Subscriber<Response> getSubscriberSelection() {
-        return new Subscriber<Response>() {
+    /**
+     * Length of the EF given by the FCP, the EF is selected if necessary
+     * @param efPath
+     * @return file length or -1 if the EF could not be selected
+     */
+    int getFileLength(final EfPath efPath) {
+        if (efPath.equals(selectedPath) && selectedFileLength < 0) {
+            selectedPath = null;
+        }
+        return select(efPath) ? selectedFileLength : -1;
+    }
+
+    /**
+     * Select the EF if not already selected
+     * @param efPath EF to select
+     * @return true if the EF is selected
+     */
+    private boolean select(final EfPath efPath) {
+        if (efPath.equals(selectedPath)) {
+            return true;
+        }
+        // negotiate before the selection, reading EF.ATR changes the selected EF
+        getChunkSize();
+        final EfPath previousFolder = currentFolder;
+        selectedPath = null;
+        currentFolder = null;
+        selectFolder(efPath, previousFolder).flatMap(__ -> commands.selectEf(efPath.getEfFid()).validate(Response.ResponseStatus.SUCCESS::validateResult))
+                .subscribe(new Subscriber<Response>() {
+                    @Override
+                    public void onSuccess(final Response response) {
+                        currentFolder = efPath;
+                        final int fileLength = parsePositionLogOfFile(response.getResponseData());
+                        if (fileLength < 0) {
+                            LOG.error("FCP of " + efPath + " without file length");
+                            return;
+                        }
+                        selectedFileLength = fileLength;
+                        selectedPath = efPath;
+                    }
+
+                    @Override
+                    public void onError(final Throwable t) throws RuntimeException {
+                        LOG.error("Subscriber - get error: " + t.getMessage());
+                    }
+                });
+        return selectedPath != null;
+    }
+
+    /**
+     * Select the folder of the EF if not already selected
+     * @param efPath EF in the folder
+     * @return true if the folder is selected
+     */
+    private boolean selectFolderOnly(final EfPath efPath) {
+        if (efPath.isInSameFolder(currentFolder)) {
+            return true;
+        }
+        // negotiate before the selection, reading EF.ATR changes the selected EF
+        getChunkSize();
+        final EfPath previousFolder = currentFolder;
+        selectedPath = null;
+        currentFolder = null;
+        final boolean[] selected = new boolean[1];
+        selectFolder(efPath, previousFolder).subscribe(new Subscriber<Response>() {
             @Override
             public void onSuccess(final Response response) {
-                de.gematik.ti.healthcard.control.common.integration.card.ReadCommandSafeExecutor.this.bytesToRead = new int[] { 0 };
-                de.gematik.ti.healthcard.control.common.integration.card.ReadCommandSafeExecutor.this.bytesToRead[0] = parsePositionLogOfFile(response.getResponseData());
+                selected[0] = true;
             }
 
             @Override
             public void onError(final Throwable t) throws RuntimeException {
                 LOG.error("Subscriber - get error: " + t.getMessage());
             }
-        };
+        });
+        if (selected[0]) {
+            currentFolder = efPath;
+        }
+        return selected[0];
+    }
+
+    /**
+     * Select the MF or the DF and SubDF of the EF. Nothing is selected if the previous EF is in the same folder, only the SubDF if the previous
+     * EF is in its DF.
+     */
+    private ResultOperation<Response> selectFolder(final EfPath efPath, final EfPath previousPath) {
+        if (efPath.isInSameFolder(previousPath)) {
+            return ResultOperation.unitRo(null);
+        }
+        if (previousPath != null && previousPath.isInParentFolderOf(efPath)) {
+            return commands.selectDf(efPath.getSubDfAid()).validate(Response.ResponseStatus.SUCCESS::validateResult);
+        }
+        if (efPath.getDfAid() == null) {
+            return commands.selectMf().validate(Response.ResponseStatus.SUCCESS::validateResult);
+        }
+        final ResultOperation<Response> selectDf = commands.selectDf(efPath.getDfAid()).validate(Response.ResponseStatus.SUCCESS::validateResult);
+        if (efPath.getSubDfAid() == null) {
+            return selectDf;
+        }
+        return selectDf.flatMap(__ -> commands.selectDf(efPath.getSubDfAid()).validate(Response.ResponseStatus.SUCCESS::validateResult));
+    }
+
+    /**
+     * File length from the position of the logical end of file (tag C5) in the FCP
+     * @return file length or -1 if the FCP does not contain it
+     */
+    private int parsePositionLogOfFile(final byte[] responseData) {
+        final String valueResp = Hex.encodeHexString(responseData);
+        LOG.debug("valueResp: " + valueResp);
+        final int positionLogOfFile;
+        try {
+            final BER_TLV positionTag = new BER_TLV(valueResp).findTag("C5");
+            if (positionTag == null || positionTag.getValue() == null || positionTag.getValue().isEmpty()) {
+                return -1;
+            }
+            positionLogOfFile = Integer.parseInt(positionTag.getValue(), 16);
+        } catch (final RuntimeException e) {
+            LOG.debug("FCP not parseable: " + e.getMessage());
+            return -1;
+        }
+        LOG.debug("positionLogOfFile.length: " + positionLogOfFile);
+        return positionLogOfFile;
+    }
+
+    /**
+     * Response of a READ command, the status is null after a transmission error
+     */
+    private static final class ReadResponse {
+        private final Response.ResponseStatus status;
+        private final byte[] data;
+        private final int exactLength;
+
+        /**
+         * @param exactLength exact length reported with wrong Le (6Cxx) or -1
+         */
+        private ReadResponse(final Response.ResponseStatus status, final byte[] data, final int exactLength) {
+            this.status = status;
+            this.data = data;
+            this.exactLength = exactLength;
+        }
+
+        private boolean isSuccess() {
+            return status == Response.ResponseStatus.SUCCESS;
+        }
+
+        /**
+         * The end of file is reached before the expected length, the data are the bytes up to the end
+         */
+        private boolean isEndOfFile() {
+            return status == Response.ResponseStatus.END_OF_FILE_WARNING && data != null;
+        }
+
+        /**
+         * The READ command maps neither wrong length (6700) nor wrong Le (6Cxx), both come as unknown status. The exact length of a wrong
+         * Le is given by {@link EfCommands#getExactLength(Response)}.
+         */
+        private boolean isLengthError() {
+            return status == null || status == Response.ResponseStatus.UNKNOWN_STATUS;
+        }
+
+        /**
+         * @return response data or null if the READ command failed
+         */
+        private byte[] getData() {
+            return isSuccess() ? data : null;
+        }
     }
 }
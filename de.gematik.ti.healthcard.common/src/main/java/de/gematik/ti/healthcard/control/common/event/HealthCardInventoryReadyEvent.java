@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.event;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import de.gematik.ti.cardreader.provider.api.ICardReader;
+import de.gematik.ti.healthcardaccess.IHealthCard;
+
+/**
+ * Represent the end of the initial inventory scan of already inserted cards. <br/>
+ * It is sent after the card present events of all health cards found by the scan.
+ */
+public class HealthCardInventoryReadyEvent {
+    private final List<ICardReader> cardReaders;
+    private final Set<IHealthCard> healthCards;
+
+    /**
+     * Create a new instance of inventory ready event
+     * @param cardReaders - card readers scanned for present cards
+     * @param healthCards - health cards present at the end of the scan
+     */
+    public HealthCardInventoryReadyEvent(final Collection<ICardReader> cardReaders, final Collection<IHealthCard> healthCards) {
+        this.cardReaders = Collections.unmodifiableList(new ArrayList<>(cardReaders));
+        this.healthCards = Collections.unmodifiableSet(new HashSet<>(healthCards));
+    }
+
+    /**
+     * The card readers scanned for present cards
+     * @return scanned card readers
+     */
+    public List<ICardReader> getCardReaders() {
+        return cardReaders;
+    }
+
+    /**
+     * The health cards present at the end of the scan
+     * @return present health cards
+     */
+    public Set<IHealthCard> getHealthCards() {
+        return healthCards;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.event;
+
+import de.gematik.ti.openhealthcard.events.request.RequestPaceKeyEvent;
+
+/**
+ * Represent a PaceKey request which is not answered with a PaceKey, because it was rejected by the limit of the
+ * {@link de.gematik.ti.healthcard.control.common.pace.TrustedChannelPaceKeyRequestHandler} or dropped when the handling stopped.
+ */
+public class PaceKeyRequestRejectedEvent {
+    private final RequestPaceKeyEvent requestPaceKeyEvent;
+    private final String reason;
+
+    /**
+     * Create a new instance of PaceKey request rejected event
+     * @param requestPaceKeyEvent - rejected request
+     * @param reason - why the request is not answered
+     */
+    public PaceKeyRequestRejectedEvent(final RequestPaceKeyEvent requestPaceKeyEvent, final String reason) {
+        this.requestPaceKeyEvent = requestPaceKeyEvent;
+        this.reason = reason;
+    }
+
+    /**
+     * Rejected request, its response listener identifies the requester
+     * @return request event
+     */
+    public RequestPaceKeyEvent getRequestPaceKeyEvent() {
+        return requestPaceKeyEvent;
+    }
+
+    /**
+     * Why the request is not answered
+     * @return reason
+     */
+    public String getReason() {
+        return reason;
+    }
+}
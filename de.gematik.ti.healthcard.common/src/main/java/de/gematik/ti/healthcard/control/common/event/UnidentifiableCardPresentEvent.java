@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.event;
+
+import de.gematik.ti.cardreader.provider.api.ICardReader;
+import de.gematik.ti.cardreader.provider.api.events.AbstractCardReaderEvent;
+
+/**
+ * Represent a present card which could not be connected or identified. <br/>
+ * The card reader is in backoff for the given time, which grows with every failure. The backoff only suppresses: an identification started by a
+ * card present event within the backoff is delayed to its end, the backoff itself does not start an identification.
+ */
+public class UnidentifiableCardPresentEvent extends AbstractCardReaderEvent {
+    private final int failureCount;
+    private final long backoffMillis;
+
+    /**
+     * Create a new instance of unidentifiable card present event
+     * @param cardReader - card reader object with physical card
+     * @param failureCount - number of failed identifications in a row at the card reader
+     * @param backoffMillis - time in milliseconds in which identifications at the card reader are delayed
+     */
+    public UnidentifiableCardPresentEvent(final ICardReader cardReader, final int failureCount, final long backoffMillis) {
+        super(cardReader);
+        this.failureCount = failureCount;
+        this.backoffMillis = backoffMillis;
+    }
+
+    /**
+     * Number of failed identifications in a row at the card reader
+     * @return failure count
+     */
+    public int getFailureCount() {
+        return failureCount;
+    }
+
+    /**
+     * Time from the failure in which identifications at the card reader are delayed. No identification is started when it ends.
+     * @return backoff in milliseconds
+     */
+    public long getBackoffMillis() {
+        return backoffMillis;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.exceptions;
+
+import de.gematik.ti.healthcard.control.common.integration.card.EfPath;
+import de.gematik.ti.healthcard.control.common.integration.card.EfReadHandle;
+
+/**
+ * Reading an EF failed after all retries. The read handle continues the read at the last good offset.
+ */
+public class EfReadException extends RuntimeException {
+    private static final long serialVersionUID = -2911857064383052218L;
+    private final transient EfPath efPath;
+    private final int offset;
+    private final int fileLength;
+    private final transient EfReadHandle readHandle;
+
+    /**
+     * constructor with parameter
+     * @param efPath EF which failed
+     * @param offset offset of the failed chunk, all bytes before are read
+     * @param fileLength length of the EF or -1 if not known
+     * @param readHandle handle to continue the read or null
+     * @param reason cause of the failure
+     */
+    public EfReadException(final EfPath efPath, final int offset, final int fileLength, final EfReadHandle readHandle, final String reason) {
+        super("read of " + efPath + " failed at offset " + offset + (fileLength >= 0 ? " of " + fileLength : "") + ": " + reason);
+        this.efPath = efPath;
+        this.offset = offset;
+        this.fileLength = fileLength;
+        this.readHandle = readHandle;
+    }
+
+    /**
+     * @return EF which failed
+     */
+    public EfPath getEfPath() {
+        return efPath;
+    }
+
+    /**
+     * @return offset of the failed chunk, all bytes before are read
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return length of the EF or -1 if not known
+     */
+    public int getFileLength() {
+        return fileLength;
+    }
+
+    /**
+     * @return handle to continue the read at the failed offset or null if the read can not be continued
+     */
+    public EfReadHandle getReadHandle() {
+        return readHandle;
+    }
+}
@@ -18,6 +18,7 @@ package de.gematik.ti.healthcard.control.common.pace;
 
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -44,6 +45,17 @@ public class CardAccessNumberRequester implements Callable<CardAccessNumber>, IC
         return queue.take();
     }
 
+    /**
+     * wait for the {@link CardAccessNumber} in the calling thread
+     * @param timeout maximal time to wait
+     * @param unit unit of the timeout
+     * @return CardAccessNumber or null if none arrived within the timeout
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public CardAccessNumber await(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return queue.poll(timeout, unit);
+    }
+
     /**
      * save coming {@link CardAccessNumber} in {@link #queue}
      * @param cardAccessNumber
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.pace;
+
+import java.security.SecureRandom;
+
+import org.spongycastle.crypto.digests.SHA256Digest;
+import org.spongycastle.crypto.prng.EntropySource;
+import org.spongycastle.crypto.prng.EntropySourceProvider;
+import org.spongycastle.crypto.prng.SP800SecureRandom;
+import org.spongycastle.crypto.prng.SP800SecureRandomBuilder;
+import org.spongycastle.util.Pack;
+
+/*
+ * This class provides a hash DRBG seeded from the non-blocking random generator of the system and reseeded after a fixed number of requests.
+ */
+final class DrbgRandomSource implements PaceRandomSource {
+
+    private static final int RESEED_INTERVAL = 1024;
+    private static final int NONCE_LENGTH = 16;
+    private static final int BITS_PER_BYTE = 8;
+    private static final SecureRandom ENTROPY = new SecureRandom();
+    private static final EntropySourceProvider ENTROPY_PROVIDER = bitsRequired -> new EntropySource() {
+        @Override
+        public boolean isPredictionResistant() {
+            return false;
+        }
+
+        @Override
+        public byte[] getEntropy() {
+            // nextBytes instead of generateSeed, which may block until the system has gathered enough entropy
+            final byte[] entropy = new byte[(bitsRequired + BITS_PER_BYTE - 1) / BITS_PER_BYTE];
+            ENTROPY.nextBytes(entropy);
+            return entropy;
+        }
+
+        @Override
+        public int entropySize() {
+            return bitsRequired;
+        }
+    };
+    // created after the entropy source
+    static final PaceRandomSource SHARED = new DrbgRandomSource();
+    static final PaceRandomSource PER_THREAD = new PaceRandomSource() {
+        private final ThreadLocal<DrbgRandomSource> sources = ThreadLocal.withInitial(DrbgRandomSource::new);
+
+        @Override
+        public void nextBytes(final byte[] bytes) {
+            sources.get().nextBytes(bytes);
+        }
+    };
+
+    private final SP800SecureRandom drbg;
+    private int requests;
+
+    private DrbgRandomSource() {
+        final byte[] nonce = new byte[NONCE_LENGTH];
+        ENTROPY.nextBytes(nonce);
+        final byte[] personalization = Pack.longToBigEndian(new long[] { Thread.currentThread().getId(), System.nanoTime() });
+        drbg = new SP800SecureRandomBuilder(ENTROPY_PROVIDER).setPersonalizationString(personalization).buildHash(new SHA256Digest(), nonce,
+                false);
+    }
+
+    @Override
+    public synchronized void nextBytes(final byte[] bytes) {
+        if (++requests >= RESEED_INTERVAL) {
+            requests = 0;
+            drbg.reseed(null);
+        }
+        drbg.nextBytes(bytes);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.pace;
+
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spongycastle.math.ec.ECPoint;
+
+/**
+ * Pool of ephemeral PCD key pairs (x1, G * x1) for the first ECDH of PACE, refilled in the background per curve. Every pair is handed out once.
+ */
+final class EphemeralKeyPairPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EphemeralKeyPairPool.class);
+    private static final int DEFAULT_CAPACITY = 4;
+    private static final int BYTE_LENGTH = 8;
+    private static final EphemeralKeyPairPool INSTANCE = new EphemeralKeyPairPool(DEFAULT_CAPACITY);
+
+    private final int capacity;
+    private final Map<PaceCurve, Entry> entries = new ConcurrentHashMap<>();
+    private final ExecutorService refillExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "PACE-keypair-refill");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param capacity maximal number of pairs held per curve
+     */
+    EphemeralKeyPairPool(final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be greater than 0");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return pool shared by all PACE key exchanges
+     */
+    static EphemeralKeyPairPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * take a pair out of the pool, it is generated inline if the pool of the curve is empty. The pool is refilled in the background.
+     *
+     * @param paceCurve curve of the key exchange
+     * @return unused key pair
+     */
+    KeyPair take(final PaceCurve paceCurve) {
+        final Entry entry = entries.computeIfAbsent(paceCurve, curve -> new Entry(capacity));
+        KeyPair keyPair = entry.keyPairs.poll();
+        if (keyPair == null) {
+            LOG.debug("pool empty, generate key pair inline");
+            keyPair = generate(paceCurve);
+        }
+        refill(paceCurve, entry);
+        return keyPair;
+    }
+
+    /**
+     * fill the pool of the curve in the background, so the first key exchange does not generate its pair inline
+     *
+     * @param paceCurve curve of the coming key exchanges
+     */
+    void warmUp(final PaceCurve paceCurve) {
+        refill(paceCurve, entries.computeIfAbsent(paceCurve, curve -> new Entry(capacity)));
+    }
+
+    /**
+     * @param paceCurve curve
+     * @return number of pairs held for the curve
+     */
+    int size(final PaceCurve paceCurve) {
+        final Entry entry = entries.get(paceCurve);
+        return entry != null ? entry.keyPairs.size() : 0;
+    }
+
+    private void refill(final PaceCurve paceCurve, final Entry entry) {
+        if (entry.keyPairs.remainingCapacity() == 0 || !entry.refilling.compareAndSet(false, true)) {
+            return;
+        }
+        refillExecutor.execute(() -> {
+            try {
+                while (entry.keyPairs.remainingCapacity() > 0) {
+                    entry.keyPairs.offer(generate(paceCurve));
+                }
+            } finally {
+                entry.refilling.set(false);
+            }
+            // a pair taken between the last check of the loop and the reset of the flag did not start a refill
+            refill(paceCurve, entry);
+        });
+    }
+
+    private KeyPair generate(final PaceCurve paceCurve) {
+        final byte[] x1 = new byte[paceCurve.getParameterSpec().getCurve().getFieldSize() / BYTE_LENGTH];
+        TrustedChannelPaceKeyExchange.getRandomSource().nextBytes(x1);
+        final BigInteger privateKey = new BigInteger(1, x1);
+        return new KeyPair(privateKey, paceCurve.multiplyGenerator(privateKey).normalize());
+    }
+
+    /**
+     * ephemeral key pair of the PCD
+     */
+    static final class KeyPair {
+        private final BigInteger privateKey;
+        private final ECPoint publicKey;
+
+        private KeyPair(final BigInteger privateKey, final ECPoint publicKey) {
+            this.privateKey = privateKey;
+            this.publicKey = publicKey;
+        }
+
+        BigInteger getPrivateKey() {
+            return privateKey;
+        }
+
+        ECPoint getPublicKey() {
+            return publicKey;
+        }
+    }
+
+    private static final class Entry {
+        private final BlockingQueue<KeyPair> keyPairs;
+        private final AtomicBoolean refilling = new AtomicBoolean();
+
+        private Entry(final int capacity) {
+            keyPairs = new ArrayBlockingQueue<>(capacity);
+        }
+    }
+}
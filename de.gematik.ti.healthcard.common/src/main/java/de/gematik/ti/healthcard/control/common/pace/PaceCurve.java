@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.pace;
+
+import java.math.BigInteger;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.spongycastle.jce.ECNamedCurveTable;
+import org.spongycastle.jce.spec.ECNamedCurveParameterSpec;
+import org.spongycastle.math.ec.ECMultiplier;
+import org.spongycastle.math.ec.ECPoint;
+import org.spongycastle.math.ec.FixedPointCombMultiplier;
+
+/**
+ * Domain parameters of a PACE curve, cached for the life of the process, with precomputed generator
+ */
+final class PaceCurve {
+
+    private static final Map<String, PaceCurve> CURVES = new ConcurrentHashMap<>();
+    private static final ECMultiplier FIXED_POINT_MULTIPLIER = new FixedPointCombMultiplier();
+
+    private final ECNamedCurveParameterSpec parameterSpec;
+
+    private PaceCurve(final ECNamedCurveParameterSpec parameterSpec) {
+        this.parameterSpec = parameterSpec;
+        // build the comb table of the generator once, it is kept by the curve
+        FIXED_POINT_MULTIPLIER.multiply(parameterSpec.getG(), BigInteger.ONE);
+    }
+
+    /**
+     * get the cached curve, the ephemeral key pairs of the curve are generated in the background from the first use on
+     *
+     * @param parameter name of the curve, e.g. BrainpoolP256r1
+     * @return curve with precomputed generator
+     */
+    static PaceCurve getInstance(final String parameter) {
+        final PaceCurve cached = CURVES.get(parameter);
+        if (cached != null) {
+            return cached;
+        }
+        final PaceCurve paceCurve = CURVES.computeIfAbsent(parameter, name -> {
+            final ECNamedCurveParameterSpec parameterSpec = ECNamedCurveTable.getParameterSpec(name);
+            if (parameterSpec == null) {
+                throw new IllegalArgumentException("unknown curve " + name);
+            }
+            return new PaceCurve(parameterSpec);
+        });
+        EphemeralKeyPairPool.getInstance().warmUp(paceCurve);
+        return paceCurve;
+    }
+
+    /**
+     * @return domain parameters of the curve
+     */
+    ECNamedCurveParameterSpec getParameterSpec() {
+        return parameterSpec;
+    }
+
+    /**
+     * multiply the generator with the fixed-base comb table
+     *
+     * @param k scalar
+     * @return k * G
+     */
+    ECPoint multiplyGenerator(final BigInteger k) {
+        return FIXED_POINT_MULTIPLIER.multiply(parameterSpec.getG(), k);
+    }
+}
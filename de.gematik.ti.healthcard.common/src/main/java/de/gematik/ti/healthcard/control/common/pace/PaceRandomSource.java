@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.pace;
+
+/**
+ * Source of the random numbers for the ephemeral keys of PACE, see {@link TrustedChannelPaceKeyExchange#setRandomSource(PaceRandomSource)}.
+ * The sources are created once per process and never block on the entropy source of the system.
+ */
+public interface PaceRandomSource {
+
+    /**
+     * fill the array with random bytes, may be called by several threads at once
+     *
+     * @param bytes array to fill
+     */
+    void nextBytes(byte[] bytes);
+
+    /**
+     * @return hash DRBG (NIST SP 800-90A) shared by all threads (default)
+     */
+    static PaceRandomSource sharedDrbg() {
+        return DrbgRandomSource.SHARED;
+    }
+
+    /**
+     * @return hash DRBG (NIST SP 800-90A) with an own instance per thread, for many handshakes in parallel
+     */
+    static PaceRandomSource perThreadDrbg() {
+        return DrbgRandomSource.PER_THREAD;
+    }
+}
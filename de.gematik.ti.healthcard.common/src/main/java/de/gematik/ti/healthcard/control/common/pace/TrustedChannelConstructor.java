@@ -16,72 +16,180 @@
 
 package de.gematik.ti.healthcard.control.common.pace;
 
-import java.util.concurrent.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.gematik.ti.healthcard.control.common.integration.card.HealthCardLocks;
 import de.gematik.ti.healthcardaccess.HealthCard;
 import de.gematik.ti.healthcardaccess.IHealthCard;
 import de.gematik.ti.healthcardaccess.exceptions.runtime.BasicChannelException;
 import de.gematik.ti.healthcardaccess.operation.Subscriber;
+import de.gematik.ti.healthcardaccess.result.Response;
 import de.gematik.ti.openhealthcard.events.control.RequestTransmitter;
 import de.gematik.ti.openhealthcard.events.request.RequestPaceKeyEvent;
 import de.gematik.ti.openhealthcard.events.response.entities.CardAccessNumber;
 import de.gematik.ti.openhealthcard.events.response.entities.PaceKey;
 
 /**
- * Handles the RequestPaceKey Events and trigger the negotiation steps
+ * Handles the RequestPaceKey Events and trigger the negotiation steps. Runs on the executor of {@link TrustedChannelPaceKeyRequestHandler}.
  */
-public class TrustedChannelConstructor extends Thread {
+public class TrustedChannelConstructor implements Runnable {
     private static final Logger LOG = LoggerFactory.getLogger(TrustedChannelConstructor.class);
     private static final String TAG = "TrustedChannelConstructor: ";
     private static final int TIMEOUT = 30;
     private final RequestPaceKeyEvent requestPaceKeyEvent;
+    private final Function<IHealthCard, TrustedChannelPaceKeyExchange> exchangeFactory;
+    private final long timeoutMillis;
 
     TrustedChannelConstructor(final RequestPaceKeyEvent requestPaceKeyEvent) {
+        this(requestPaceKeyEvent, TrustedChannelPaceKeyExchange::new, TimeUnit.SECONDS.toMillis(TIMEOUT));
+    }
+
+    /**
+     * Constructor for tests
+     * @param exchangeFactory creates the key exchange with the card
+     * @param timeoutMillis maximal time to wait for the CardAccessNumber
+     */
+    TrustedChannelConstructor(final RequestPaceKeyEvent requestPaceKeyEvent, final Function<IHealthCard, TrustedChannelPaceKeyExchange> exchangeFactory,
+            final long timeoutMillis) {
         this.requestPaceKeyEvent = requestPaceKeyEvent;
+        this.exchangeFactory = exchangeFactory;
+        this.timeoutMillis = timeoutMillis;
     }
 
     /**
      * {@inheritDoc}
+     * The card is prepared for the key exchange while the user enters the CardAccessNumber.
      */
     @Override
     public void run() {
-        super.run();
-        final ExecutorService executor = Executors.newSingleThreadExecutor();
         final CardAccessNumberRequester cardAccessNumberRequester = new CardAccessNumberRequester();
         new RequestTransmitter().cardAccessNumber().request(cardAccessNumberRequester);
-        final Future<CardAccessNumber> future = executor.submit(cardAccessNumberRequester);
-        executor.shutdown();
-        CardAccessNumber cardAccessNumber = null;
+        construct(cardAccessNumberRequester);
+    }
+
+    /**
+     * Prepare the card, wait for the CardAccessNumber and negotiate the PaceKey. The lock of the card is only held during the preparation and
+     * during the negotiation, so other commands, e.g. of the EfReadEngine, are not blocked while the user enters the CardAccessNumber. If the
+     * card was used in between, the preparation is discarded and the negotiation runs all steps.
+     * @param cardAccessNumberRequester requester the CardAccessNumber arrives at
+     */
+    void construct(final CardAccessNumberRequester cardAccessNumberRequester) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
         try {
-            cardAccessNumber = future.get(TIMEOUT, TimeUnit.SECONDS);
-        } catch (final TimeoutException | InterruptedException | ExecutionException e) {
-            future.cancel(true);
-        }
+            final IHealthCard healthCard = new HealthCard(requestPaceKeyEvent.getCard());
+            final TrustedChannelPaceKeyExchange paceKeyExchange = exchangeFactory.apply(healthCard);
+            final ReentrantLock lock = HealthCardLocks.getLock(healthCard);
+            final long preparedLockCount;
+            lock.lock();
+            try {
+                prepare(paceKeyExchange);
+                preparedLockCount = HealthCardLocks.getLockCount(healthCard);
+            } finally {
+                lock.unlock();
+            }
 
-        if (cardAccessNumber != null) {
+            CardAccessNumber cardAccessNumber = null;
+            boolean interrupted = false;
             try {
-                final IHealthCard healthCard = new HealthCard(requestPaceKeyEvent.getCard());
-
-                new TrustedChannelPaceKeyExchange(healthCard, cardAccessNumber.getValue()).negotiatePaceKey().subscribe(
-                        new Subscriber<PaceKey>() {
-                            @Override
-                            public void onSuccess(final PaceKey paceKey) {
-                                requestPaceKeyEvent.getResponseListener()
-                                        .handlePaceKey(paceKey);
-                            }
-
-                            @Override
-                            public void onError(final Throwable t) throws RuntimeException {
-                                LOG.error(TAG, "PaceKey negotiation failed! " + t.getMessage());
-                            }
-                        });
-
-            } catch (final BasicChannelException basic) {
-                LOG.error(TAG, "PaceKey negotiation failed! Broken Card-Channel" + basic);
+                cardAccessNumber = cardAccessNumberRequester.await(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (final InterruptedException e) {
+                LOG.debug(TAG + "interrupted while waiting for the CardAccessNumber");
+                TrustedChannelPaceKeyRequestHandler.reject(requestPaceKeyEvent, "handling stopped while waiting for the CardAccessNumber");
+                interrupted = true;
+            }
+
+            lock.lock();
+            try {
+                if (HealthCardLocks.getLockCount(healthCard) != preparedLockCount + 1) {
+                    LOG.debug(TAG + "card used while waiting for the CardAccessNumber, discard the preparation");
+                    paceKeyExchange.discardPreparation();
+                }
+                if (cardAccessNumber == null) {
+                    cancel(paceKeyExchange);
+                } else {
+                    negotiate(paceKeyExchange, cardAccessNumber.getValue());
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        } catch (final BasicChannelException basic) {
+            LOG.error(TAG, "PaceKey negotiation failed! Broken Card-Channel" + basic);
+        }
+    }
+
+    /**
+     * @return request handled by this instance
+     */
+    RequestPaceKeyEvent getRequestPaceKeyEvent() {
+        return requestPaceKeyEvent;
+    }
+
+    private void prepare(final TrustedChannelPaceKeyExchange paceKeyExchange) {
+        paceKeyExchange.prepare().subscribe(new Subscriber<byte[]>() {
+            @Override
+            public void onSuccess(final byte[] encryptedNonce) {
+                LOG.debug(TAG + "card prepared, waiting for the CardAccessNumber");
+            }
+
+            @Override
+            public void onError(final Throwable t) throws RuntimeException {
+                // the steps are repeated when the CardAccessNumber has arrived
+                LOG.debug(TAG + "preparation failed: " + t.getMessage());
             }
+        });
+    }
+
+    /**
+     * A failure after the preparation, e.g. because the card was reset meanwhile, is followed by one negotiation with all steps
+     */
+    private void negotiate(final TrustedChannelPaceKeyExchange paceKeyExchange, final String cardAccessNumber) {
+        final boolean prepared = paceKeyExchange.isPrepared();
+        PaceKey paceKey = negotiateOnce(paceKeyExchange, cardAccessNumber);
+        if (paceKey == null && prepared) {
+            LOG.debug(TAG + "negotiation with the prepared nonce failed, repeating all steps");
+            paceKey = negotiateOnce(paceKeyExchange, cardAccessNumber);
+        }
+        if (paceKey != null) {
+            requestPaceKeyEvent.getResponseListener().handlePaceKey(paceKey);
         }
     }
+
+    private PaceKey negotiateOnce(final TrustedChannelPaceKeyExchange paceKeyExchange, final String cardAccessNumber) {
+        final PaceKey[] paceKey = new PaceKey[1];
+        paceKeyExchange.negotiatePaceKey(cardAccessNumber).subscribe(new Subscriber<PaceKey>() {
+            @Override
+            public void onSuccess(final PaceKey negotiatedPaceKey) {
+                paceKey[0] = negotiatedPaceKey;
+            }
+
+            @Override
+            public void onError(final Throwable t) throws RuntimeException {
+                LOG.error(TAG, "PaceKey negotiation failed! " + t.getMessage());
+            }
+        });
+        return paceKey[0];
+    }
+
+    private void cancel(final TrustedChannelPaceKeyExchange paceKeyExchange) {
+        LOG.debug(TAG + "no CardAccessNumber, cancel the prepared key exchange");
+        paceKeyExchange.cancel().subscribe(new Subscriber<Response>() {
+            @Override
+            public void onSuccess(final Response response) {
+                LOG.debug(TAG + "MF selected after the cancelled key exchange");
+            }
+
+            @Override
+            public void onError(final Throwable t) throws RuntimeException {
+                LOG.error(TAG, "Selecting the MF after the cancelled key exchange failed! " + t.getMessage());
+            }
+        });
+    }
 }
@@ -18,8 +18,7 @@ package de.gematik.ti.healthcard.control.common.pace;
 
 import java.io.IOException;
 import java.math.BigInteger;
-import java.security.SecureRandom;
-import java.util.Random;
+import java.util.function.Function;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,14 +28,14 @@ import org.spongycastle.crypto.Mac;
 import org.spongycastle.crypto.engines.AESEngine;
 import org.spongycastle.crypto.macs.CMac;
 import org.spongycastle.crypto.params.KeyParameter;
-import org.spongycastle.jce.ECNamedCurveTable;
-import org.spongycastle.jce.spec.ECNamedCurveParameterSpec;
 import org.spongycastle.math.ec.ECCurve;
 import org.spongycastle.math.ec.ECPoint;
 
 import cardfilesystem.egk21mf.Ef;
 import de.gematik.ti.healthcard.control.common.Utilities;
 import de.gematik.ti.healthcard.control.common.exceptions.VerifyReceivedMacPiccException;
+import de.gematik.ti.healthcard.control.common.integration.card.HealthCardLocks;
+import de.gematik.ti.healthcardaccess.AbstractHealthCardCommand;
 import de.gematik.ti.healthcardaccess.IHealthCard;
 import de.gematik.ti.healthcardaccess.cardobjects.FileIdentifier;
 import de.gematik.ti.healthcardaccess.cardobjects.Key;
@@ -64,22 +63,25 @@ public class TrustedChannelPaceKeyExchange { // NOCS(SAB): Zum Aufbau des Truste
     private static final int MAX = 64;
     private static final int TAG_6 = 6;
     private static final int TAG_49 = 0x49;
+    private static volatile PaceRandomSource randomSourceStrategy = PaceRandomSource.sharedDrbg();
 
     private final IHealthCard card;
-    private final String can;
+    private final Function<AbstractHealthCardCommand, ResultOperation<Response>> commandExecutor;
+    private String can;
     private final PaceInfo[] paceInfo = new PaceInfo[1];
 
     private Mac mac;
     private ECCurve.Fp curve;
-    private ECPoint ecPointG;
+    private PaceCurve paceCurve;
     private BigInteger nonceSInt;
     private BigInteger pcdSkX1;
+    private byte[] pk1Pcd;
+    private byte[] encryptedNonce;
     private BigInteger pcdSkX2;
     private byte[] kEnc;
     private byte[] kMac;
     private byte[] authTokenX;
-
-    private SecureRandom randomGenerator;
+    private final PaceRandomSource randomSource = randomSourceStrategy;
 
     /**
      * Constructor
@@ -89,32 +91,139 @@ public class TrustedChannelPaceKeyExchange { // NOCS(SAB): Zum Aufbau des Truste
      *      CardAccessNumber
      */
     public TrustedChannelPaceKeyExchange(final IHealthCard card, final String can) {
+        this(card, can, command -> command.executeOn(card));
+    }
+
+    /**
+     * Constructor for tests, which answer the commands instead of a card
+     * @param card
+     *      IHealthCardObject
+     * @param commandExecutor
+     *      sends a command and returns the response
+     */
+    TrustedChannelPaceKeyExchange(final IHealthCard card, final Function<AbstractHealthCardCommand, ResultOperation<Response>> commandExecutor) {
+        this(card, null, commandExecutor);
+    }
+
+    private TrustedChannelPaceKeyExchange(final IHealthCard card, final String can,
+            final Function<AbstractHealthCardCommand, ResultOperation<Response>> commandExecutor) {
         this.can = can;
         this.card = card;
+        this.commandExecutor = commandExecutor;
     }
 
     /**
-     * Negotiate the PaceKey and return the object
+     * Constructor for a key exchange prepared before the CardAccessNumber is known, see {@link #prepare()}
+     * @param card
+     *      IHealthCardObject
+     */
+    public TrustedChannelPaceKeyExchange(final IHealthCard card) {
+        this(card, null, command -> command.executeOn(card));
+    }
+
+    /**
+     * Set the source of the random numbers for the ephemeral keys of all following key exchanges
+     * @param randomSource
+     *      e.g. {@link PaceRandomSource#sharedDrbg()} (default) or {@link PaceRandomSource#perThreadDrbg()}
+     */
+    public static void setRandomSource(final PaceRandomSource randomSource) {
+        if (randomSource == null) {
+            throw new IllegalArgumentException("randomSource must not be null");
+        }
+        randomSourceStrategy = randomSource;
+    }
+
+    static PaceRandomSource getRandomSource() {
+        return randomSourceStrategy;
+    }
+
+    /**
+     * Negotiate the PaceKey with the CardAccessNumber of the constructor and return the object
      * @return PaceKey
      */
     public ResultOperation<PaceKey> negotiatePaceKey() {
+        return negotiatePaceKey(can);
+    }
 
-        return new SelectCommand(false, true).executeOn(card).validate(Response.ResponseStatus.SUCCESS::validateResult)
-                .flatMap(__ -> new SelectCommand(new FileIdentifier(Ef.CardAccess.FID), false).executeOn(card))
+    /**
+     * Negotiate the PaceKey and return the object. The steps of {@link #prepare()} are only run if the exchange is not prepared.
+     * @param cardAccessNumber
+     *      CardAccessNumber
+     * @return PaceKey
+     */
+    public ResultOperation<PaceKey> negotiatePaceKey(final String cardAccessNumber) {
+        can = cardAccessNumber;
+        final byte[] preparedNonce = encryptedNonce;
+        encryptedNonce = null;
+        if (preparedNonce == null) {
+            return prepare().flatMap(nonceZ -> {
+                encryptedNonce = null;
+                return agreeKey(nonceZ);
+            });
+        }
+        return agreeKey(preparedNonce);
+    }
+
+    /**
+     * Run the steps which do not need the CardAccessNumber, e.g. while the user enters it: read EF.CardAccess, MSE:Set AT, fetch the
+     * encrypted nonce and generate the first ephemeral key. Another command sent to the card before {@link #negotiatePaceKey(String)} aborts the
+     * key exchange on the card, so the caller finds out by {@link HealthCardLocks#getLockCount(IHealthCard)} whether the card was used meanwhile
+     * and then calls {@link #discardPreparation()}.
+     * @return encrypted nonce
+     */
+    public ResultOperation<byte[]> prepare() {
+        return execute(new SelectCommand(false, true)).validate(Response.ResponseStatus.SUCCESS::validateResult)
+                .flatMap(__ -> execute(new SelectCommand(new FileIdentifier(Ef.CardAccess.FID), false)))
                 .validate(Response.ResponseStatus.SUCCESS::validateResult)
-                .flatMap(__ -> new ReadCommand().executeOn(card).validate(Response.ResponseStatus.SUCCESS::validateResult).map(Response::getResponseData)
+                .flatMap(__ -> execute(new ReadCommand()).validate(Response.ResponseStatus.SUCCESS::validateResult).map(Response::getResponseData)
                         .map(cardAccessBytes -> paceInfo[0] = new PaceInfo(cardAccessBytes)))
-                .flatMap(__ -> new ManageSecurityEnvironmentCommand(
+                .flatMap(__ -> execute(new ManageSecurityEnvironmentCommand(
                         ManageSecurityEnvironmentCommand.MseUseCase.KEY_SELECTION_FOR_SYMMETRIC_CARD_CONNECTION_WITHOUT_CURVES, new Key(SECRET_KEY_REFERENCE),
-                        false, paceInfo[0].getPaceInfoProtocolBytes()).executeOn(card).validate(Response.ResponseStatus.SUCCESS::validateResult))
-                .flatMap(__ -> new GeneralAuthenticateCommand(true).executeOn(card)).validate(Response.ResponseStatus.SUCCESS::validateResult)
-                .map(Response::getResponseData).flatMap(this::generateEphemeralPublicKeyFirstECDH).validate(Response.ResponseStatus.SUCCESS::validateResult)
-                .map(Response::getResponseData).flatMap(pk1Pcd -> new GeneralAuthenticateCommand(true, pk1Pcd, 1).executeOn(card))
+                        false, paceInfo[0].getPaceInfoProtocolBytes())).validate(Response.ResponseStatus.SUCCESS::validateResult))
+                .flatMap(__ -> execute(new GeneralAuthenticateCommand(true))).validate(Response.ResponseStatus.SUCCESS::validateResult)
+                .map(Response::getResponseData).map(nonceZ -> {
+                    preparePcdKey();
+                    encryptedNonce = nonceZ;
+                    return nonceZ;
+                });
+    }
+
+    /**
+     * @return true if {@link #negotiatePaceKey(String)} starts with the encrypted nonce of {@link #prepare()}
+     */
+    boolean isPrepared() {
+        return encryptedNonce != null;
+    }
+
+    /**
+     * Drop the prepared nonce, e.g. because other commands were sent to the card meanwhile. {@link #negotiatePaceKey(String)} runs all steps.
+     */
+    void discardPreparation() {
+        encryptedNonce = null;
+    }
+
+    /**
+     * Abort the exchange, e.g. if the CardAccessNumber does not arrive: drop the prepared nonce and select the MF, so that the card accepts
+     * other commands again
+     * @return response of the SELECT command
+     */
+    public ResultOperation<Response> cancel() {
+        encryptedNonce = null;
+        return execute(new SelectCommand(false, true)).validate(Response.ResponseStatus.SUCCESS::validateResult);
+    }
+
+    private ResultOperation<Response> execute(final AbstractHealthCardCommand command) {
+        return commandExecutor.apply(command);
+    }
+
+    private ResultOperation<PaceKey> agreeKey(final byte[] nonceZ) {
+        return generateEphemeralPublicKeyFirstECDH(nonceZ).validate(Response.ResponseStatus.SUCCESS::validateResult)
+                .map(Response::getResponseData).flatMap(pk1 -> execute(new GeneralAuthenticateCommand(true, pk1, 1)))
                 .validate(Response.ResponseStatus.SUCCESS::validateResult).map(Response::getResponseData).flatMap(this::generateEphemeralPublicKeySecondECDH)
                 .validate(Response.ResponseStatus.SUCCESS::validateResult).map(Response::getResponseData)
-                .flatMap(pk2Pcd -> new GeneralAuthenticateCommand(true, pk2Pcd, 3).executeOn(card)).validate(Response.ResponseStatus.SUCCESS::validateResult)
+                .flatMap(pk2Pcd -> execute(new GeneralAuthenticateCommand(true, pk2Pcd, 3))).validate(Response.ResponseStatus.SUCCESS::validateResult)
                 .map(Response::getResponseData).flatMap(this::createMacPcdForMutualAuthentication).validate(Response.ResponseStatus.SUCCESS::validateResult)
-                .map(Response::getResponseData).flatMap(macPcd -> new GeneralAuthenticateCommand(false, macPcd, 5).executeOn(card))
+                .map(Response::getResponseData).flatMap(macPcd -> execute(new GeneralAuthenticateCommand(false, macPcd, 5)))
                 .validate(Response.ResponseStatus.SUCCESS::validateResult).map(Response::getResponseData).flatMap(this::verifyReceivedMacPicc)
                 .flatMap(receivedMacPiccIsVerified -> {
                     if (receivedMacPiccIsVerified) {
@@ -125,8 +234,18 @@ public class TrustedChannelPaceKeyExchange { // NOCS(SAB): Zum Aufbau des Truste
                 });
     }
 
+    /**
+     * The first ephemeral key does not depend on the CardAccessNumber or the nonce
+     */
+    private void preparePcdKey() {
+        paceCurve = PaceCurve.getInstance(paceInfo[0].getParameterIDString());
+        curve = (ECCurve.Fp) paceCurve.getParameterSpec().getCurve();
+        final EphemeralKeyPairPool.KeyPair keyPair = EphemeralKeyPairPool.getInstance().take(paceCurve);
+        pcdSkX1 = keyPair.getPrivateKey();
+        pk1Pcd = keyPair.getPublicKey().getEncoded(false);
+    }
+
     private ResultOperation<Response> generateEphemeralPublicKeyFirstECDH(final byte[] nonceZBytes) {
-        final String parameter = paceInfo[0].getParameterIDString();
         final byte[] nonceZBytesEncoded;
 
         try {
@@ -137,20 +256,9 @@ public class TrustedChannelPaceKeyExchange { // NOCS(SAB): Zum Aufbau des Truste
             final KeyParameter encKey = new KeyParameter(aes128Key);
             final BlockCipher cipher = new AESEngine();
 
-            final ECNamedCurveParameterSpec ecNamedCurveParameterSpec = ECNamedCurveTable.getParameterSpec(parameter);
-            curve = (ECCurve.Fp) ecNamedCurveParameterSpec.getCurve();
-            ecPointG = ecNamedCurveParameterSpec.getG();
-            randomGenerator = new SecureRandom();
-            final Random rnd = new Random();
-            randomGenerator.setSeed(rnd.nextLong());
             cipher.init(false, encKey);
             cipher.processBlock(nonceZBytesEncoded, 0, nonceS, 0);
             nonceSInt = new BigInteger(1, nonceS);
-            byte[] pk1Pcd = new byte[curve.getFieldSize() / BYTE_LENGTH];
-            randomGenerator.nextBytes(pk1Pcd);
-            pcdSkX1 = new BigInteger(1, pk1Pcd);
-            final ECPoint pcdPkS1 = ecPointG.multiply(pcdSkX1);
-            pk1Pcd = pcdPkS1.getEncoded(false);
             return ResultOperation.unitRo(new Response(Response.ResponseStatus.SUCCESS, pk1Pcd));
         } catch (final IOException e) {
             LOG.error(TAG, "Failed to get encoded NonceZ " + e.getMessage());
@@ -164,9 +272,9 @@ public class TrustedChannelPaceKeyExchange { // NOCS(SAB): Zum Aufbau des Truste
             pk1PiccBytesEncoded = Utilities.getKeyObjectEncoded(pk1PiccBytes);
             final ECPoint.Fp y1 = (ECPoint.Fp) Utilities.byteArrayToECPoint(pk1PiccBytesEncoded, curve);
             final ECPoint.Fp sharedSecretP = (ECPoint.Fp) y1.multiply(pcdSkX1);
-            final ECPoint pointGS = ecPointG.multiply(nonceSInt).add(sharedSecretP);
+            final ECPoint pointGS = paceCurve.multiplyGenerator(nonceSInt).add(sharedSecretP);
             final byte[] x2 = new byte[curve.getFieldSize() / BYTE_LENGTH];
-            randomGenerator.nextBytes(x2);
+            randomSource.nextBytes(x2);
             pcdSkX2 = new BigInteger(1, x2);
             final ECPoint pcdPkS2 = pointGS.multiply(pcdSkX2);
             final byte[] pk2Pcd = pcdPkS2.getEncoded(false);
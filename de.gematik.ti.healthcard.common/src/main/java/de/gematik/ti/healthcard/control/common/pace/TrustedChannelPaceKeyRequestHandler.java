@@ -16,23 +16,45 @@
 
 package de.gematik.ti.healthcard.control.common.pace;
 
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.gematik.ti.healthcard.control.common.EventBusProvider;
+import de.gematik.ti.healthcard.control.common.event.PaceKeyRequestRejectedEvent;
 import de.gematik.ti.openhealthcard.events.request.RequestPaceKeyEvent;
 
 /**
- * The singleton TrustedChannelPaceKeyRequestHandler subscribe to EventBus for PaceKey-Request-Events. For each PaceKeyRequest-Event start this instance a thread to
- * request the CardAccessNumber over Event-Bus request from UI or other application. After CardAccessNumber response starts the PaceKey negotiation and after success
- * negotiation would the requester informed about the pacekey.
+ * The singleton TrustedChannelPaceKeyRequestHandler subscribe to EventBus for PaceKey-Request-Events. For each PaceKeyRequest-Event this instance queues a
+ * {@link TrustedChannelConstructor} on a bounded executor to request the CardAccessNumber over Event-Bus request from UI or other application. After
+ * CardAccessNumber response starts the PaceKey negotiation and after success negotiation would the requester informed about the pacekey. Requests
+ * rejected by the limit or dropped by {@link #stopHandling()} are reported with a {@link PaceKeyRequestRejectedEvent}.
  **/
 public final class TrustedChannelPaceKeyRequestHandler {
     private static final Logger LOG = LoggerFactory.getLogger(TrustedChannelPaceKeyRequestHandler.class);
     private static final String TAG = "TrustedChannelPaceKeyRequestHandler: ";
 
+    private static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+    private static final int DEFAULT_MAX_QUEUED_REQUESTS = 64;
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 1000;
+    private static final long IDLE_TIMEOUT_SECONDS = 60;
+
     private static TrustedChannelPaceKeyRequestHandler instance;
+    private EventBus eventBus;
+    private volatile ThreadPoolExecutor executor;
+    private int maxConcurrentRequests = DEFAULT_MAX_CONCURRENT_REQUESTS;
+    private int maxQueuedRequests = DEFAULT_MAX_QUEUED_REQUESTS;
+    private ThreadFactory threadFactory = new ConstructorThreadFactory();
 
     private TrustedChannelPaceKeyRequestHandler() {
     }
@@ -49,7 +71,7 @@ public final class TrustedChannelPaceKeyRequestHandler {
     }
 
     /**
-     * Start the handling of paceKey request Events
+     * Start the handling of paceKey request Events, a second start without stop is ignored
      */
     public static void startHandling() {
         getInstance().register();
@@ -62,14 +84,96 @@ public final class TrustedChannelPaceKeyRequestHandler {
         getInstance().unregister();
     }
 
-    private void register() {
-        EventBus.getDefault().register(this);
+    /**
+     * Set the number of PaceKey requests handled at the same time and the number of requests waiting for them. Further requests are rejected.
+     * Takes effect with the next {@link #startHandling()}.
+     * @param maxConcurrentRequests number of requests handled at the same time, must be greater than 0 (default 4)
+     * @param maxQueuedRequests number of waiting requests, must not be negative (default 64)
+     */
+    public static void setConcurrencyLimit(final int maxConcurrentRequests, final int maxQueuedRequests) {
+        if (maxConcurrentRequests < 1 || maxQueuedRequests < 0) {
+            throw new IllegalArgumentException("limits must satisfy maxConcurrentRequests > 0 and maxQueuedRequests >= 0");
+        }
+        final TrustedChannelPaceKeyRequestHandler handler = getInstance();
+        handler.maxConcurrentRequests = maxConcurrentRequests;
+        handler.maxQueuedRequests = maxQueuedRequests;
+    }
+
+    /**
+     * Set the factory of the threads handling the PaceKey requests, e.g. {@code Thread.ofVirtual().factory()} for virtual threads on newer JVMs.
+     * Takes effect with the next {@link #startHandling()}.
+     * @param threadFactory factory of the handling threads
+     */
+    public static void setThreadFactory(final ThreadFactory threadFactory) {
+        if (threadFactory == null) {
+            throw new IllegalArgumentException("threadFactory must not be null");
+        }
+        getInstance().threadFactory = threadFactory;
+    }
+
+    /**
+     * Number of PaceKey requests waiting for a free handling thread
+     * @return number of queued requests
+     */
+    public static int getQueuedRequestCount() {
+        final ThreadPoolExecutor pool = getInstance().executor;
+        return pool != null ? pool.getQueue().size() : 0;
+    }
+
+    /**
+     * Number of PaceKey requests handled right now
+     * @return number of active requests
+     */
+    public static int getActiveRequestCount() {
+        final ThreadPoolExecutor pool = getInstance().executor;
+        return pool != null ? pool.getActiveCount() : 0;
+    }
+
+    private synchronized void register() {
+        if (eventBus != null) {
+            LOG.debug(TAG + "already registered");
+            return;
+        }
+        final ThreadPoolExecutor pool = new ThreadPoolExecutor(maxConcurrentRequests, maxConcurrentRequests, IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                maxQueuedRequests > 0 ? new LinkedBlockingQueue<>(maxQueuedRequests) : new SynchronousQueue<>(), threadFactory);
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
+        eventBus = EventBusProvider.getEventBus();
+        eventBus.register(this);
         LOG.debug(TAG + "registered");
     }
 
-    private void unregister() {
-        EventBus.getDefault().unregister(this);
-        LOG.debug(TAG + "unregistered");
+    private synchronized void unregister() {
+        if (eventBus == null) {
+            return;
+        }
+        eventBus.unregister(this);
+        eventBus = null;
+        final ThreadPoolExecutor pool = executor;
+        executor = null;
+        // waiting requests are dropped, requests waiting for the CardAccessNumber are interrupted
+        final List<Runnable> dropped = pool.shutdownNow();
+        for (final Runnable runnable : dropped) {
+            reject(((TrustedChannelConstructor) runnable).getRequestPaceKeyEvent(), "handling stopped before the request was started");
+        }
+        try {
+            if (!pool.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                LOG.debug(TAG + "PaceKey negotiations still running after shutdown");
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        LOG.debug(TAG + "unregistered, dropped " + dropped.size() + " queued requests");
+    }
+
+    /**
+     * Inform the requester that the request will not be answered with a PaceKey
+     * @param requestPaceKeyEvent request
+     * @param reason why the request is not answered
+     */
+    static void reject(final RequestPaceKeyEvent requestPaceKeyEvent, final String reason) {
+        LOG.error(TAG + "PaceKey request rejected: " + reason);
+        EventBusProvider.getEventBus().post(new PaceKeyRequestRejectedEvent(requestPaceKeyEvent, reason));
     }
 
     /**
@@ -78,6 +182,26 @@ public final class TrustedChannelPaceKeyRequestHandler {
      */
     @Subscribe
     public void handleRequestPaceKeyEvent(final RequestPaceKeyEvent requestPaceKeyEvent) {
-        new TrustedChannelConstructor(requestPaceKeyEvent).start();
+        final ThreadPoolExecutor pool = executor;
+        if (pool == null) {
+            reject(requestPaceKeyEvent, "handling stopped");
+            return;
+        }
+        try {
+            pool.execute(new TrustedChannelConstructor(requestPaceKeyEvent));
+        } catch (final RejectedExecutionException e) {
+            reject(requestPaceKeyEvent, "too many PaceKey requests, queued: " + pool.getQueue().size());
+        }
+    }
+
+    private static final class ConstructorThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "TrustedChannelConstructor-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
     }
 }
@@ -27,6 +27,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.gematik.ti.healthcard.control.common.CardFunction;
+import de.gematik.ti.healthcard.control.common.EventBusProvider;
 import de.gematik.ti.healthcard.control.common.HealthcardCommonRuntimeException;
 import de.gematik.ti.healthcardaccess.IHealthCard;
 import de.gematik.ti.healthcardaccess.operation.ResultOperation;
@@ -61,7 +62,8 @@ public class PinVerfiyLauncher {
      * @return
      */
     public ResultOperation<PinResult> verifyPin(final String pinType) {
-        EventBus.getDefault().register(this);
+        final EventBus eventBus = EventBusProvider.getEventBus();
+        eventBus.register(this);
         LOG.debug("pinType: " + pinType);
         if (!CardFunction.isCardValid(card)) {
             throw new HealthcardCommonRuntimeException("card '" + card + "' is invalid");
@@ -83,7 +85,7 @@ public class PinVerfiyLauncher {
             CommonEventTransmitter.postWarn(PinVerifyError.timeout.toString());
             throw new HealthcardCommonRuntimeException(PinVerifyError.timeout.toString());
         } finally {
-            EventBus.getDefault().unregister(this);
+            eventBus.unregister(this);
         }
     }
 
@@ -91,7 +91,7 @@ public class PinVerifier {
     }
 
     @Subscribe
-    private void hookAbsentEvent(final CardAbsentEvent cardAbsentEvent) {
+    public void hookAbsentEvent(final CardAbsentEvent cardAbsentEvent) {
         verifyState = VerifyState.verifyRequired;
     }
 
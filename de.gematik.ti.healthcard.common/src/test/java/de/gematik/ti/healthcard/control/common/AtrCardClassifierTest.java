@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.gematik.ti.utils.codec.Hex;
+
+/**
+ * Test {@link AtrCardClassifier}
+ */
+public class AtrCardClassifierTest {
+
+    private static final byte[] ATR = new byte[] { 0x3B, (byte) 0xD3, (byte) 0x96, (byte) 0xFF, (byte) 0x81, (byte) 0xB1, (byte) 0xFE, 0x45, 0x1F, 0x07 };
+    private static final byte[] MASK_HISTORICAL_BYTES = new byte[] { 0, 0, 0, 0, 0, 0, 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF };
+    private static final String AID = "d2760001448000";
+
+    @Test
+    public void shouldClassifyExactAtr() {
+        final AtrCardClassifier classifier = new AtrCardClassifier();
+        classifier.addRule(ATR, AID, CardGeneration.G2_1);
+        final AtrCardClassifier.AtrRule rule = classifier.classify(ATR);
+        Assert.assertEquals(AID, Hex.encodeHexString(rule.getApplicationId()));
+        Assert.assertEquals(CardGeneration.G2_1, rule.getCardGeneration());
+    }
+
+    @Test
+    public void shouldClassifyMaskedAtr() {
+        final AtrCardClassifier classifier = new AtrCardClassifier();
+        final byte[] pattern = ATR.clone();
+        pattern[1] = 0x00;
+        classifier.addRule(pattern, MASK_HISTORICAL_BYTES, AID, CardGeneration.G2);
+        Assert.assertEquals(CardGeneration.G2, classifier.classify(ATR).getCardGeneration());
+    }
+
+    @Test
+    public void shouldNotClassifyAmbiguousAtr() {
+        final AtrCardClassifier classifier = new AtrCardClassifier();
+        classifier.addRule(ATR, AID, CardGeneration.G2);
+        classifier.addRule(ATR, MASK_HISTORICAL_BYTES, AID, CardGeneration.G2_1);
+        Assert.assertNull(classifier.classify(ATR));
+    }
+
+    @Test
+    public void shouldNotClassifyUnknownAtr() {
+        final AtrCardClassifier classifier = new AtrCardClassifier();
+        classifier.addRule(ATR, AID, CardGeneration.G2);
+        Assert.assertNull(classifier.classify(new byte[] { 0x3B, 0x00 }));
+    }
+}
@@ -16,9 +16,364 @@
 
 package de.gematik.ti.healthcard.control.common;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.greenrobot.eventbus.EventBus;
+import org.greenrobot.eventbus.Subscribe;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import cardfilesystem.Egk2FileSystem;
+import de.gematik.ti.cardreader.provider.api.ICardReader;
+import de.gematik.ti.cardreader.provider.api.card.ATR;
+import de.gematik.ti.cardreader.provider.api.card.CardException;
+import de.gematik.ti.cardreader.provider.api.card.ICard;
+import de.gematik.ti.cardreader.provider.api.events.card.CardAbsentEvent;
+import de.gematik.ti.cardreader.provider.api.events.card.CardPresentEvent;
+import de.gematik.ti.healthcard.control.common.event.HealthCardInventoryReadyEvent;
+import de.gematik.ti.healthcard.control.common.event.UnidentifiableCardPresentEvent;
+import de.gematik.ti.healthcard.control.common.event.present.AbstractHealthCardPresentEvent;
+import de.gematik.ti.healthcard.control.common.event.present.Egk21HealthCardPresentEvent;
+import de.gematik.ti.healthcard.control.common.integration.card.EfContentCache;
+import de.gematik.ti.healthcard.control.common.integration.card.EfPath;
+import de.gematik.ti.healthcard.control.common.integration.card.SimulatedCard;
+import de.gematik.ti.healthcardaccess.IHealthCard;
+import de.gematik.ti.healthcardaccess.IHealthCardType;
+import de.gematik.ti.healthcardaccess.cardobjects.ApplicationIdentifier;
+import de.gematik.ti.healthcardaccess.cardobjects.FileIdentifier;
+import de.gematik.ti.healthcardaccess.healthcards.Egk21;
+import de.gematik.ti.healthcardaccess.operation.Subscriber;
+import de.gematik.ti.utils.tuple.Pair;
+
 /**
  * testclass of {@link CardDetector}
  */
 public class CardDetectorTest {
 
+    @After
+    public void tearDown() {
+        CardDetector.stopDetection();
+        CardDetector.setDebounceTime(0);
+        CardDetector.setFailureBackoff(1000, 60000);
+        CardDetector.setScheduler(null, null);
+        EventBusProvider.setEventBus(null);
+    }
+
+    @Test
+    public void shouldNotIdentifyCardRemovedWithinDebounceTime() throws Exception {
+        final CountDownLatch connected = new CountDownLatch(1);
+        final ICardReader cardReader = Mockito.mock(ICardReader.class);
+        Mockito.when(cardReader.getName()).thenReturn("flapping");
+        Mockito.when(cardReader.connect()).thenAnswer(invocation -> {
+            connected.countDown();
+            return null;
+        });
+        final ManualScheduler scheduler = new ManualScheduler();
+        EventBusProvider.setEventBus(new EventBus());
+        CardDetector.setScheduler(() -> scheduler, scheduler::nanoTime);
+        CardDetector.setDebounceTime(100);
+        CardDetector.startDetection();
+
+        final CardDetector cardDetector = CardDetector.getInstance();
+        cardDetector.handleCardPresentEvents(new CardPresentEvent(cardReader));
+        cardDetector.handleCardAbsentEvents(new CardAbsentEvent(cardReader));
+        cardDetector.handleCardPresentEvents(new CardPresentEvent(cardReader));
+        cardDetector.handleCardAbsentEvents(new CardAbsentEvent(cardReader));
+        scheduler.advance(99);
+        scheduler.advance(1);
+
+        cardDetector.handleCardPresentEvents(new CardPresentEvent(cardReader));
+        cardDetector.handleCardPresentEvents(new CardPresentEvent(cardReader));
+        scheduler.advance(100);
+
+        // the work of one reader is serialized, a connect of the flapping events would come before this one
+        Assert.assertTrue(connected.await(5, TimeUnit.SECONDS));
+        Mockito.verify(cardReader, Mockito.times(1)).connect();
+    }
+
+    @Test
+    public void shouldSerializeEventsOfOneReaderAndRunReadersInParallel() throws Exception {
+        final CountDownLatch firstConnect = new CountDownLatch(1);
+        final CountDownLatch releaseFirst = new CountDownLatch(1);
+        final CountDownLatch otherReaderConnected = new CountDownLatch(1);
+        final CountDownLatch secondConnect = new CountDownLatch(1);
+        final AtomicInteger activeConnects = new AtomicInteger();
+        final AtomicInteger maxActiveConnects = new AtomicInteger();
+        final List<Integer> connectOrder = Collections.synchronizedList(new ArrayList<>());
+        final ICardReader slowReader = Mockito.mock(ICardReader.class);
+        Mockito.when(slowReader.getName()).thenReturn("slow");
+        Mockito.when(slowReader.connect()).thenAnswer(invocation -> {
+            final int active = activeConnects.incrementAndGet();
+            maxActiveConnects.accumulateAndGet(active, Math::max);
+            connectOrder.add(connectOrder.size() + 1);
+            try {
+                if (connectOrder.size() == 1) {
+                    firstConnect.countDown();
+                    Assert.assertTrue(releaseFirst.await(5, TimeUnit.SECONDS));
+                } else {
+                    secondConnect.countDown();
+                }
+            } finally {
+                activeConnects.decrementAndGet();
+            }
+            throw new CardException("no health card");
+        });
+        final ICardReader otherReader = Mockito.mock(ICardReader.class);
+        Mockito.when(otherReader.getName()).thenReturn("other");
+        Mockito.when(otherReader.connect()).thenAnswer(invocation -> {
+            otherReaderConnected.countDown();
+            throw new CardException("no health card");
+        });
+        EventBusProvider.setEventBus(new EventBus());
+        CardDetector.setFailureBackoff(0, 0);
+        CardDetector.startDetection();
+
+        final CardDetector cardDetector = CardDetector.getInstance();
+        cardDetector.handleCardPresentEvents(new CardPresentEvent(slowReader));
+        cardDetector.handleCardPresentEvents(new CardPresentEvent(otherReader));
+        // the other reader is handled while the slow reader is still connecting
+        Assert.assertTrue(firstConnect.await(5, TimeUnit.SECONDS));
+        Assert.assertTrue(otherReaderConnected.await(5, TimeUnit.SECONDS));
+        cardDetector.handleCardPresentEvents(new CardPresentEvent(slowReader));
+        releaseFirst.countDown();
+
+        Assert.assertTrue(secondConnect.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList(1, 2), connectOrder);
+        Assert.assertEquals(1, maxActiveConnects.get());
+    }
+
+    @Test
+    public void shouldIgnoreSecondStartOfDetection() {
+        final List<ScheduledExecutorService> schedulers = new ArrayList<>();
+        EventBusProvider.setEventBus(new EventBus());
+        CardDetector.setScheduler(() -> {
+            final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+            schedulers.add(scheduler);
+            return scheduler;
+        }, null);
+
+        CardDetector.startDetection();
+        CardDetector.startDetection();
+        Assert.assertEquals(1, schedulers.size());
+
+        CardDetector.stopDetection();
+        Assert.assertTrue(schedulers.get(0).isShutdown());
+        CardDetector.startDetection();
+        Assert.assertEquals(2, schedulers.size());
+        Assert.assertFalse(schedulers.get(1).isShutdown());
+    }
+
+    @Test
+    public void shouldSendInventoryReadyEventAfterScan() throws Exception {
+        final ICardReader emptyReader = Mockito.mock(ICardReader.class);
+        Mockito.when(emptyReader.getName()).thenReturn("empty");
+        final ICardReader failingReader = Mockito.mock(ICardReader.class);
+        Mockito.when(failingReader.getName()).thenReturn("failing");
+        Mockito.when(failingReader.isCardPresent()).thenThrow(new IllegalStateException("reader gone"));
+        final InventorySubscriber subscriber = new InventorySubscriber();
+        final EventBus eventBus = new EventBus();
+        eventBus.register(subscriber);
+        EventBusProvider.setEventBus(eventBus);
+
+        CardDetector.startDetection(Arrays.asList(emptyReader, failingReader));
+
+        Assert.assertTrue(subscriber.latch.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList(emptyReader, failingReader), subscriber.event.getCardReaders());
+        Assert.assertTrue(subscriber.event.getHealthCards().isEmpty());
+        Mockito.verify(emptyReader).isCardPresent();
+    }
+
+    @Test
+    public void shouldDelayIdentificationAfterFailure() throws Exception {
+        final ICardReader cardReader = Mockito.mock(ICardReader.class);
+        Mockito.when(cardReader.getName()).thenReturn("foreign card");
+        Mockito.when(cardReader.connect()).thenThrow(new CardException("Wrong Card present"));
+        final UnidentifiableSubscriber subscriber = new UnidentifiableSubscriber();
+        final EventBus eventBus = new EventBus();
+        eventBus.register(subscriber);
+        final ManualScheduler scheduler = new ManualScheduler();
+        EventBusProvider.setEventBus(eventBus);
+        CardDetector.setScheduler(() -> scheduler, scheduler::nanoTime);
+        CardDetector.setFailureBackoff(200, 1000);
+        CardDetector.startDetection();
+
+        final CardDetector cardDetector = CardDetector.getInstance();
+        cardDetector.handleCardPresentEvents(new CardPresentEvent(cardReader));
+        UnidentifiableCardPresentEvent event = subscriber.events.poll(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1, event.getFailureCount());
+        Assert.assertEquals(200, event.getBackoffMillis());
+
+        scheduler.advance(50);
+        cardDetector.handleCardAbsentEvents(new CardAbsentEvent(cardReader));
+        cardDetector.handleCardPresentEvents(new CardPresentEvent(cardReader));
+        scheduler.awaitScheduled(1);
+        Mockito.verify(cardReader, Mockito.times(1)).connect();
+
+        scheduler.advance(149);
+        Mockito.verify(cardReader, Mockito.times(1)).connect();
+
+        scheduler.advance(1);
+        event = subscriber.events.poll(5, TimeUnit.SECONDS);
+        Mockito.verify(cardReader, Mockito.times(2)).connect();
+        Assert.assertEquals(2, event.getFailureCount());
+        Assert.assertEquals(400, event.getBackoffMillis());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectPrefetchOfEfsNotMarkedInCache() {
+        final EfPath efPath = EfPath.of(new ApplicationIdentifier("D27600000102"), new FileIdentifier(0xD001));
+        Assert.assertFalse(EfContentCache.getInstance().isCacheable(efPath));
+        CardDetector.setPrefetchProfile(IHealthCardType.class, Collections.singletonList(efPath));
+    }
+
+    @Test
+    public void shouldPrefetchProfileOfPresentCard() throws Exception {
+        final byte[] atr = { 0x3B, 0x13, (byte) 0x96, 0x45 };
+        final EfPath efPath = EfPath.of(new ApplicationIdentifier("D27600000102"), new FileIdentifier(0xD001));
+        final byte[] content = { 1, 2, 3, 4, 5 };
+        final SimulatedCard simulatedCard = new SimulatedCard().withFile(efPath, content);
+        final EfContentCache cache = EfContentCache.getInstance();
+        final ATR cardAtr = Mockito.mock(ATR.class);
+        Mockito.when(cardAtr.getBytes()).thenReturn(atr);
+        final ICard card = Mockito.mock(ICard.class);
+        Mockito.when(card.getATR()).thenReturn(cardAtr);
+        final ICardReader cardReader = Mockito.mock(ICardReader.class);
+        Mockito.when(cardReader.getName()).thenReturn("prefetch");
+        Mockito.when(cardReader.connect()).thenReturn(card);
+        final PresentSubscriber subscriber = new PresentSubscriber();
+        final EventBus eventBus = new EventBus();
+        eventBus.register(subscriber);
+        EventBusProvider.setEventBus(eventBus);
+        CardDetector.getAtrCardClassifier().addRule(atr, Egk2FileSystem.AID, CardGeneration.G2_1);
+        CardDetector.setReadEngine(simulatedCard.newEngine(cache));
+        cache.markImmutable(efPath);
+        try {
+            CardDetector.setPrefetchProfile(Egk21.class, Collections.singletonList(efPath));
+            CardDetector.startDetection();
+            CardDetector.getInstance().handleCardPresentEvents(new CardPresentEvent(cardReader));
+
+            final IHealthCard healthCard = subscriber.events.poll(5, TimeUnit.SECONDS).getHealthCard();
+            waitFor(() -> cache.get(healthCard, efPath) != null);
+            Assert.assertEquals(1, simulatedCard.count("READ"));
+
+            simulatedCard.clearCommands();
+            final byte[][] read = new byte[1][];
+            simulatedCard.newEngine(cache).read(healthCard, efPath).subscribe(new Subscriber<byte[]>() {
+                @Override
+                public void onSuccess(final byte[] value) {
+                    read[0] = value;
+                }
+
+                @Override
+                public void onError(final Throwable t) {
+                    throw new AssertionError("read failed", t);
+                }
+            });
+            Assert.assertArrayEquals(content, read[0]);
+            Assert.assertTrue(simulatedCard.getCommands().isEmpty());
+
+            CardDetector.getInstance().handleCardAbsentEvents(new CardAbsentEvent(cardReader));
+            waitFor(() -> cache.get(healthCard, efPath) == null);
+        } finally {
+            CardDetector.setPrefetchProfile(Egk21.class, Collections.emptyList());
+            CardDetector.setReadEngine(null);
+            CardDetector.getAtrCardClassifier().clearRules();
+            cache.unmark(efPath);
+        }
+    }
+
+    @Test
+    public void shouldIdentifyReinsertedCardByOneCommand() throws Exception {
+        final SimulatedCard simulatedCard = new SimulatedCard().withFile(EfPath.of(new FileIdentifier(0x2F02)).withSfi(0x02), new byte[] { 0x5A, 0x01, 0x02 })
+                .withFile(EfPath.of(new FileIdentifier(0x2F11)).withSfi(Egk2FileSystem.EF.Version2.SFID), new byte[] { 1, 2, 3 });
+        final HealthCardTypeRegistry.Entry entry = CardDetector.getHealthCardTypeRegistry()
+                .lookup(new ApplicationIdentifier(Egk2FileSystem.AID).getAid(), CardGeneration.G2_1);
+        final AtomicInteger identifications = new AtomicInteger();
+        final ICardReader cardReader = Mockito.mock(ICardReader.class);
+        Mockito.when(cardReader.getName()).thenReturn("reinsert");
+        Mockito.when(cardReader.connect()).thenReturn(Mockito.mock(ICard.class), Mockito.mock(ICard.class));
+        final PresentSubscriber subscriber = new PresentSubscriber();
+        final EventBus eventBus = new EventBus();
+        eventBus.register(subscriber);
+        EventBusProvider.setEventBus(eventBus);
+        CardDetector.setReadEngine(simulatedCard.newEngine(null));
+        CardDetector.setApplicationIdentification(healthCard -> {
+            identifications.incrementAndGet();
+            return simulatedCard.selectMf()
+                    .flatMap(__ -> simulatedCard.read(Egk2FileSystem.EF.Version2.SFID, 0, 0))
+                    .map(__ -> new Pair<>(entry, CardGeneration.G2_1));
+        });
+        try {
+            CardDetector.startDetection();
+            final CardDetector cardDetector = CardDetector.getInstance();
+            cardDetector.handleCardPresentEvents(new CardPresentEvent(cardReader));
+            final AbstractHealthCardPresentEvent firstEvent = subscriber.events.poll(5, TimeUnit.SECONDS);
+            Assert.assertTrue(firstEvent instanceof Egk21HealthCardPresentEvent);
+            Assert.assertEquals(3, simulatedCard.getCommands().size());
+
+            cardDetector.handleCardAbsentEvents(new CardAbsentEvent(cardReader));
+            simulatedCard.clearCommands();
+            cardDetector.handleCardPresentEvents(new CardPresentEvent(cardReader));
+            final AbstractHealthCardPresentEvent secondEvent = subscriber.events.poll(5, TimeUnit.SECONDS);
+
+            Assert.assertTrue(secondEvent instanceof Egk21HealthCardPresentEvent);
+            Assert.assertNotSame(firstEvent.getHealthCard(), secondEvent.getHealthCard());
+            Assert.assertEquals(Collections.singletonList("READ SFI 2 0 0"), simulatedCard.getCommands());
+            Assert.assertEquals(1, identifications.get());
+        } finally {
+            CardDetector.setReadEngine(null);
+            CardDetector.setApplicationIdentification(null);
+            CardDetector.clearIdentityCache();
+        }
+    }
+
+    private static void waitFor(final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean()) {
+            Assert.assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    public static class UnidentifiableSubscriber {
+        private final BlockingQueue<UnidentifiableCardPresentEvent> events = new LinkedBlockingQueue<>();
+
+        @Subscribe
+        public void onUnidentifiableCard(final UnidentifiableCardPresentEvent unidentifiableCardPresentEvent) {
+            events.add(unidentifiableCardPresentEvent);
+        }
+    }
+
+    public static class PresentSubscriber {
+        private final BlockingQueue<AbstractHealthCardPresentEvent> events = new LinkedBlockingQueue<>();
+
+        @Subscribe
+        public void onPresentCard(final AbstractHealthCardPresentEvent presentEvent) {
+            events.add(presentEvent);
+        }
+    }
+
+    public static class InventorySubscriber {
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile HealthCardInventoryReadyEvent event;
+
+        @Subscribe
+        public void onInventoryReady(final HealthCardInventoryReadyEvent inventoryReadyEvent) {
+            event = inventoryReadyEvent;
+            latch.countDown();
+        }
+    }
 }
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test {@link CardIdentityCache}
+ */
+public class CardIdentityCacheTest {
+
+    @Test
+    public void shouldReturnCachedIdentity() {
+        final CardIdentityCache<CardGeneration> cache = new CardIdentityCache<>(2);
+        cache.put("5a0a80276883110000017222", CardGeneration.G2);
+        Assert.assertEquals(CardGeneration.G2, cache.get("5a0a80276883110000017222"));
+        Assert.assertNull(cache.get("5a0a80276883110000017289"));
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedIdentity() {
+        final CardIdentityCache<CardGeneration> cache = new CardIdentityCache<>(2);
+        cache.put("a", CardGeneration.G2);
+        cache.put("b", CardGeneration.G2_1);
+        cache.get("a");
+        cache.put("c", CardGeneration.G2);
+        Assert.assertEquals(CardGeneration.G2, cache.get("a"));
+        Assert.assertNull(cache.get("b"));
+        Assert.assertEquals(CardGeneration.G2, cache.get("c"));
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.greenrobot.eventbus.EventBus;
+import org.greenrobot.eventbus.Subscribe;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.gematik.ti.healthcard.control.common.pace.TrustedChannelPaceKeyRequestHandler;
+import de.gematik.ti.healthcard.control.common.verifyPin.PinVerfiyLauncher;
+import de.gematik.ti.healthcard.control.common.verifyPin.PinVerifier;
+
+/**
+ * Test {@link EventBusProvider}
+ */
+public class EventBusProviderTest {
+
+    @After
+    public void tearDown() {
+        EventBusProvider.setEventBus(null);
+    }
+
+    @Test
+    public void shouldIndexAllSubscribersOfModule() {
+        Assert.assertNotNull(EventBusProvider.getSubscriberIndex().getSubscriberInfo(CardDetector.class));
+        Assert.assertNotNull(EventBusProvider.getSubscriberIndex().getSubscriberInfo(TrustedChannelPaceKeyRequestHandler.class));
+        Assert.assertNotNull(EventBusProvider.getSubscriberIndex().getSubscriberInfo(PinVerfiyLauncher.class));
+        Assert.assertNotNull(EventBusProvider.getSubscriberIndex().getSubscriberInfo(PinVerifier.class));
+    }
+
+    @Test
+    public void shouldProvideSameDefaultEventBus() {
+        Assert.assertSame(EventBusProvider.getEventBus(), EventBusProvider.getEventBus());
+    }
+
+    @Test
+    public void shouldLeaveDefaultEventBusUnchanged() {
+        final EventBus defaultEventBus = EventBus.getDefault();
+        Assert.assertSame(defaultEventBus, EventBusProvider.getEventBus());
+        Assert.assertSame(defaultEventBus, EventBus.getDefault());
+    }
+
+    @Test
+    public void shouldCreatePrivateEventBus() {
+        final EventBus privateEventBus = EventBusProvider.createEventBus();
+        final EventCollector collector = new EventCollector();
+        privateEventBus.register(collector);
+        Assert.assertNotSame(EventBus.getDefault(), privateEventBus);
+
+        privateEventBus.post("private");
+        Assert.assertEquals(1, collector.events.size());
+    }
+
+    @Test
+    public void shouldForwardEventsOfDefaultEventBusToPrivateEventBus() {
+        final EventBus privateEventBus = new EventBus();
+        final EventCollector collector = new EventCollector();
+        privateEventBus.register(collector);
+        EventBusProvider.setEventBus(privateEventBus);
+
+        EventBus.getDefault().post("transmitted");
+        Assert.assertEquals(1, collector.events.size());
+        Assert.assertEquals("transmitted", collector.events.get(0));
+
+        EventBusProvider.setEventBus(null);
+        EventBus.getDefault().post("not forwarded");
+        Assert.assertEquals(1, collector.events.size());
+    }
+
+    @Test
+    public void shouldNotForwardEventsOfPrivateEventBusToDefaultEventBus() {
+        final EventBus privateEventBus = new EventBus();
+        final EventCollector collector = new EventCollector();
+        EventBus.getDefault().register(collector);
+        try {
+            EventBusProvider.setEventBus(privateEventBus);
+            privateEventBus.post("private");
+            Assert.assertTrue(collector.events.isEmpty());
+        } finally {
+            EventBus.getDefault().unregister(collector);
+        }
+    }
+
+    public static class EventCollector {
+        private final List<Object> events = new ArrayList<>();
+
+        @Subscribe
+        public void collect(final String event) {
+            events.add(event);
+        }
+    }
+}
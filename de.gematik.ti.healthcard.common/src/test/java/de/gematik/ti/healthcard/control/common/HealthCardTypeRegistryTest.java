@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common;
+
+import static org.mockito.Mockito.mock;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import cardfilesystem.Egk2FileSystem;
+import cardfilesystem.Smcb2FileSystem;
+import de.gematik.ti.cardreader.provider.api.ICardReader;
+import de.gematik.ti.healthcard.control.common.event.absent.Egk21HealthCardAbsentEvent;
+import de.gematik.ti.healthcard.control.common.event.absent.UnknownCardAbsentEvent;
+import de.gematik.ti.healthcard.control.common.event.present.Smcb2HealthCardPresentEvent;
+import de.gematik.ti.healthcard.control.common.event.present.UnknownCardPresentEvent;
+import de.gematik.ti.healthcardaccess.IHealthCard;
+import de.gematik.ti.healthcardaccess.healthcards.Egk21;
+import de.gematik.ti.healthcardaccess.healthcards.Smcb2;
+import de.gematik.ti.healthcardaccess.healthcards.Unknown;
+import de.gematik.ti.utils.codec.Hex;
+
+/**
+ * Test {@link HealthCardTypeRegistry}
+ */
+public class HealthCardTypeRegistryTest {
+
+    private final HealthCardTypeRegistry registry = HealthCardTypeRegistry.createDefault();
+    private final ICardReader cardReader = mock(ICardReader.class);
+    private final IHealthCard healthCard = mock(IHealthCard.class);
+
+    @Test
+    public void shouldResolveRegisteredHealthCardType() {
+        final HealthCardTypeRegistry.Entry entry = registry.lookup(Hex.decode(Smcb2FileSystem.AID), CardGeneration.G2);
+        Assert.assertTrue(entry.getHealthCardType() instanceof Smcb2);
+        Assert.assertTrue(entry.createPresentEvent(cardReader, healthCard) instanceof Smcb2HealthCardPresentEvent);
+    }
+
+    @Test
+    public void shouldShareHealthCardTypeInstance() {
+        final byte[] aid = Hex.decode(Egk2FileSystem.AID);
+        final HealthCardTypeRegistry.Entry entry = registry.lookup(aid, CardGeneration.G2_1);
+        Assert.assertTrue(entry.getHealthCardType() instanceof Egk21);
+        Assert.assertSame(entry, registry.lookup(aid.clone(), CardGeneration.G2_1));
+        Assert.assertSame(entry, registry.lookup(entry.getHealthCardType()));
+        Assert.assertTrue(entry.createAbsentEvent(cardReader, healthCard) instanceof Egk21HealthCardAbsentEvent);
+    }
+
+    @Test
+    public void shouldResolveUnknownCards() {
+        Assert.assertSame(registry.getUnknownEntry(), registry.lookup(Hex.decode("d2760001440000"), CardGeneration.G2));
+        Assert.assertSame(registry.getUnknownEntry(), registry.lookup(Hex.decode(Egk2FileSystem.AID), CardGeneration.G1));
+        Assert.assertSame(registry.getUnknownEntry(), registry.lookup(new Unknown()));
+        Assert.assertTrue(registry.getUnknownEntry().createPresentEvent(cardReader, healthCard) instanceof UnknownCardPresentEvent);
+        Assert.assertTrue(registry.getUnknownEntry().createAbsentEvent(cardReader, healthCard) instanceof UnknownCardAbsentEvent);
+    }
+
+    @Test
+    public void shouldRegisterNewCardGeneration() {
+        final byte[] aid = Hex.decode(Egk2FileSystem.AID);
+        final Egk21 egkG1 = new Egk21();
+        registry.register(aid, CardGeneration.G1P, egkG1, UnknownCardPresentEvent::new, UnknownCardAbsentEvent::new);
+        Assert.assertSame(egkG1, registry.lookup(aid, CardGeneration.G1P).getHealthCardType());
+        Assert.assertTrue(registry.lookup(aid, CardGeneration.G2_1).getHealthCardType() instanceof Egk21);
+    }
+}
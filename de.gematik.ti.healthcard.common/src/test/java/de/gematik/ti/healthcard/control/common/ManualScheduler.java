@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+
+/**
+ * Scheduler for tests, which runs the delayed tasks only when the test advances its clock
+ */
+class ManualScheduler extends ScheduledThreadPoolExecutor {
+    private final AtomicLong nanos = new AtomicLong();
+    private final List<ManualFuture> tasks = new ArrayList<>();
+    private final Semaphore scheduled = new Semaphore(0);
+
+    ManualScheduler() {
+        super(1);
+    }
+
+    long nanoTime() {
+        return nanos.get();
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(final Runnable command, final long delay, final TimeUnit unit) {
+        final ManualFuture future = new ManualFuture(command, nanos.get() + unit.toNanos(delay));
+        synchronized (tasks) {
+            tasks.add(future);
+        }
+        scheduled.release();
+        return future;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <V> ScheduledFuture<V> schedule(final Callable<V> callable, final long delay, final TimeUnit unit) {
+        return (ScheduledFuture<V>) schedule(() -> {
+            try {
+                callable.call();
+            } catch (final Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }, delay, unit);
+    }
+
+    /**
+     * Wait until the given number of further tasks is scheduled
+     * @param count number of tasks
+     */
+    void awaitScheduled(final int count) throws InterruptedException {
+        Assert.assertTrue(scheduled.tryAcquire(count, 5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Advance the clock and run all due tasks, which are not cancelled, on the calling thread
+     * @param millis time to advance in milliseconds
+     */
+    void advance(final long millis) {
+        final long now = nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+        final List<ManualFuture> due = new ArrayList<>();
+        synchronized (tasks) {
+            tasks.removeIf(task -> task.dueNanos <= now && due.add(task));
+        }
+        for (final ManualFuture task : due) {
+            task.run();
+        }
+    }
+
+    private final class ManualFuture implements ScheduledFuture<Object> {
+        private final Runnable command;
+        private final long dueNanos;
+        private volatile boolean cancelled;
+        private volatile boolean done;
+
+        private ManualFuture(final Runnable command, final long dueNanos) {
+            this.command = command;
+            this.dueNanos = dueNanos;
+        }
+
+        private void run() {
+            if (!cancelled) {
+                command.run();
+            }
+            done = true;
+        }
+
+        @Override
+        public long getDelay(final TimeUnit unit) {
+            return unit.convert(dueNanos - nanos.get(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(final Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            cancelled = !done;
+            return cancelled;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done || cancelled;
+        }
+
+        @Override
+        public Object get() {
+            return null;
+        }
+
+        @Override
+        public Object get(final long timeout, final TimeUnit unit) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.gematik.ti.cardreader.provider.api.ICardReader;
+import de.gematik.ti.healthcardaccess.IHealthCard;
+import de.gematik.ti.healthcardaccess.IHealthCardStatus;
+
+/**
+ * Test {@link PresentHealthCardRegistry}
+ */
+public class PresentHealthCardRegistryTest {
+
+    private final PresentHealthCardRegistry registry = new PresentHealthCardRegistry();
+    private final ICardReader cardReader = mock(ICardReader.class);
+
+    @Test
+    public void shouldFindRegisteredHealthCard() {
+        final IHealthCard healthCard = createHealthCard();
+        final Set<IHealthCard> healthCardsG21 = registry.getHealthCards(CardGeneration.G2_1);
+        registry.put(cardReader, healthCard, CardGeneration.G2_1);
+
+        Assert.assertSame(healthCard, registry.getHealthCard(cardReader));
+        Assert.assertTrue(registry.getHealthCards().contains(healthCard));
+        Assert.assertTrue(healthCardsG21.contains(healthCard));
+        Assert.assertTrue(registry.getHealthCards(CardGeneration.G2).isEmpty());
+    }
+
+    @Test
+    public void shouldForgetRemovedHealthCard() {
+        final IHealthCard healthCard = createHealthCard();
+        registry.put(cardReader, healthCard, CardGeneration.G2);
+
+        Assert.assertSame(healthCard, registry.remove(cardReader));
+        Assert.assertNull(registry.getHealthCard(cardReader));
+        Assert.assertTrue(registry.getHealthCards().isEmpty());
+        Assert.assertTrue(registry.getHealthCards(CardGeneration.G2).isEmpty());
+        Assert.assertNull(registry.remove(cardReader));
+    }
+
+    @Test
+    public void shouldReplaceHealthCardOfSameCardReader() {
+        final IHealthCard first = createHealthCard();
+        final IHealthCard second = createHealthCard();
+        registry.put(cardReader, first, CardGeneration.G2);
+        registry.put(cardReader, second, CardGeneration.G2_1);
+
+        Assert.assertEquals(1, registry.getHealthCards().size());
+        Assert.assertTrue(registry.getHealthCards(CardGeneration.G2).isEmpty());
+        Assert.assertTrue(registry.getHealthCards(CardGeneration.G2_1).contains(second));
+    }
+
+    private static IHealthCard createHealthCard() {
+        final IHealthCardStatus status = mock(IHealthCardStatus.class);
+        when(status.isValid()).thenReturn(false);
+        final IHealthCard healthCard = mock(IHealthCard.class);
+        when(healthCard.getStatus()).thenReturn(status);
+        return healthCard;
+    }
+}
@@ -16,9 +16,157 @@
 
 package de.gematik.ti.healthcard.control.common.integration;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.greenrobot.eventbus.EventBus;
+import org.greenrobot.eventbus.Subscribe;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import de.gematik.ti.cardreader.provider.api.card.ICard;
+import de.gematik.ti.healthcard.control.common.EventBusProvider;
+import de.gematik.ti.healthcard.control.common.event.PaceKeyRequestRejectedEvent;
+import de.gematik.ti.healthcard.control.common.pace.TrustedChannelPaceKeyRequestHandler;
+import de.gematik.ti.openhealthcard.events.request.RequestPaceKeyEvent;
+
 /**
  * Test {@link TrustedChannelPaceKeyRequestHandler}
  */
 public class TrustedChannelPaceKeyRequestHandlerTest {
+    private final List<Thread> workers = new CopyOnWriteArrayList<>();
+    private final RejectionSubscriber subscriber = new RejectionSubscriber();
+
+    @Before
+    public void setUp() {
+        final EventBus eventBus = new EventBus();
+        eventBus.register(subscriber);
+        EventBusProvider.setEventBus(eventBus);
+        TrustedChannelPaceKeyRequestHandler.setThreadFactory(runnable -> {
+            final Thread thread = new Thread(runnable, "TrustedChannelConstructor-test");
+            thread.setDaemon(true);
+            workers.add(thread);
+            return thread;
+        });
+    }
+
+    @After
+    public void tearDown() {
+        TrustedChannelPaceKeyRequestHandler.stopHandling();
+        TrustedChannelPaceKeyRequestHandler.setConcurrencyLimit(4, 64);
+        TrustedChannelPaceKeyRequestHandler.setThreadFactory(runnable -> {
+            final Thread thread = new Thread(runnable, "TrustedChannelConstructor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        EventBusProvider.setEventBus(null);
+    }
+
+    @Test
+    public void shouldReportNoRequestsWhenIdle() {
+        TrustedChannelPaceKeyRequestHandler.setConcurrencyLimit(2, 0);
+        TrustedChannelPaceKeyRequestHandler.startHandling();
+        Assert.assertEquals(0, TrustedChannelPaceKeyRequestHandler.getQueuedRequestCount());
+        Assert.assertEquals(0, TrustedChannelPaceKeyRequestHandler.getActiveRequestCount());
+        TrustedChannelPaceKeyRequestHandler.stopHandling();
+        Assert.assertEquals(0, TrustedChannelPaceKeyRequestHandler.getQueuedRequestCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectInvalidConcurrencyLimit() {
+        TrustedChannelPaceKeyRequestHandler.setConcurrencyLimit(0, 1);
+    }
+
+    @Test
+    public void shouldQueueAndRejectRequestsAboveLimit() throws InterruptedException {
+        TrustedChannelPaceKeyRequestHandler.setConcurrencyLimit(1, 1);
+        TrustedChannelPaceKeyRequestHandler.startHandling();
+        final TrustedChannelPaceKeyRequestHandler handler = TrustedChannelPaceKeyRequestHandler.getInstance();
+        final RequestPaceKeyEvent rejected = request();
+
+        handler.handleRequestPaceKeyEvent(request());
+        awaitCardAccessNumberWait();
+        handler.handleRequestPaceKeyEvent(request());
+        handler.handleRequestPaceKeyEvent(rejected);
+
+        Assert.assertEquals(1, TrustedChannelPaceKeyRequestHandler.getActiveRequestCount());
+        Assert.assertEquals(1, TrustedChannelPaceKeyRequestHandler.getQueuedRequestCount());
+        Assert.assertSame(rejected, subscriber.events.poll(5, TimeUnit.SECONDS).getRequestPaceKeyEvent());
+        Assert.assertTrue(subscriber.events.isEmpty());
+    }
+
+    @Test
+    public void shouldInterruptWaitForCardAccessNumberAndDropQueuedRequestsOnStop() throws InterruptedException {
+        TrustedChannelPaceKeyRequestHandler.setConcurrencyLimit(1, 1);
+        TrustedChannelPaceKeyRequestHandler.startHandling();
+        final TrustedChannelPaceKeyRequestHandler handler = TrustedChannelPaceKeyRequestHandler.getInstance();
+        final RequestPaceKeyEvent running = request();
+        final RequestPaceKeyEvent queued = request();
+        handler.handleRequestPaceKeyEvent(running);
+        awaitCardAccessNumberWait();
+        handler.handleRequestPaceKeyEvent(queued);
+
+        TrustedChannelPaceKeyRequestHandler.stopHandling();
+
+        workers.get(0).join(TimeUnit.SECONDS.toMillis(5));
+        Assert.assertFalse(workers.get(0).isAlive());
+        Assert.assertEquals(new HashSet<>(Arrays.asList(running, queued)), new HashSet<>(Arrays.asList(
+                subscriber.events.poll(5, TimeUnit.SECONDS).getRequestPaceKeyEvent(), subscriber.events.poll(5, TimeUnit.SECONDS).getRequestPaceKeyEvent())));
+    }
+
+    @Test
+    public void shouldRejectRequestWhenNotHandling() throws InterruptedException {
+        final RequestPaceKeyEvent request = request();
+        TrustedChannelPaceKeyRequestHandler.getInstance().handleRequestPaceKeyEvent(request);
+        Assert.assertSame(request, subscriber.events.poll(5, TimeUnit.SECONDS).getRequestPaceKeyEvent());
+    }
+
+    @Test
+    public void shouldIgnoreSecondStart() throws InterruptedException {
+        TrustedChannelPaceKeyRequestHandler.startHandling();
+        TrustedChannelPaceKeyRequestHandler.startHandling();
+
+        EventBusProvider.getEventBus().post(request());
+        awaitCardAccessNumberWait();
+        Assert.assertEquals(1, workers.size());
+        TrustedChannelPaceKeyRequestHandler.stopHandling();
+        // the request was handled by the one registration, the stop interrupted it
+        Assert.assertNotNull(subscriber.events.poll(5, TimeUnit.SECONDS));
+        Assert.assertTrue(subscriber.events.isEmpty());
+    }
+
+    private static RequestPaceKeyEvent request() {
+        final RequestPaceKeyEvent request = Mockito.mock(RequestPaceKeyEvent.class);
+        Mockito.when(request.getCard()).thenReturn(Mockito.mock(ICard.class));
+        return request;
+    }
+
+    /**
+     * Wait until the first request waits for the CardAccessNumber on its worker
+     */
+    private void awaitCardAccessNumberWait() throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (workers.isEmpty() || workers.get(0).getState() != Thread.State.TIMED_WAITING
+                || TrustedChannelPaceKeyRequestHandler.getActiveRequestCount() != 1) {
+            Assert.assertTrue("no request waiting for the CardAccessNumber", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    public static class RejectionSubscriber {
+        private final BlockingQueue<PaceKeyRequestRejectedEvent> events = new LinkedBlockingQueue<>();
 
+        @Subscribe
+        public void onRejectedRequest(final PaceKeyRequestRejectedEvent rejectedEvent) {
+            events.add(rejectedEvent);
+        }
+    }
 }
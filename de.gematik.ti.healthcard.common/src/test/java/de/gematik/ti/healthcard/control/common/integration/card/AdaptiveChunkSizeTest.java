@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.integration.card;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.gematik.ti.utils.codec.Hex;
+
+/**
+ * tests of {@link AdaptiveChunkSize}
+ */
+public class AdaptiveChunkSizeTest {
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(20);
+
+    @Test
+    public void shouldFallBackToShortLengthAndHalve() {
+        final AdaptiveChunkSize chunkSize = new AdaptiveChunkSize(4096);
+        Assert.assertEquals(4096, chunkSize.get());
+        Assert.assertEquals(256, chunkSize.onFailure(4096));
+        Assert.assertEquals(128, chunkSize.onFailure(256));
+        Assert.assertEquals(128, chunkSize.get());
+        Assert.assertEquals(AdaptiveChunkSize.MIN_CHUNK_SIZE, chunkSize.onFailure(AdaptiveChunkSize.MIN_CHUNK_SIZE));
+    }
+
+    @Test
+    public void shouldGrowAfterSuccessesUpToLimit() {
+        final AdaptiveChunkSize chunkSize = new AdaptiveChunkSize(300);
+        chunkSize.onFailure(300);
+        Assert.assertEquals(256, chunkSize.get());
+        for (int i = 0; i < 4; i++) {
+            chunkSize.onSuccess(256, FAST);
+        }
+        Assert.assertEquals(300, chunkSize.get());
+    }
+
+    @Test
+    public void shouldShrinkAfterSlowRead() {
+        final AdaptiveChunkSize chunkSize = new AdaptiveChunkSize(65535);
+        chunkSize.onSuccess(65535, TimeUnit.SECONDS.toNanos(3));
+        Assert.assertEquals(32767, chunkSize.get());
+    }
+
+    @Test
+    public void shouldParseExtendedLengthInformationOfEfAtr() {
+        // 7F66 08 0202 0800 0202 0802: 2048 byte command, 2050 byte response APDU
+        final byte[] efAtr = Hex.decode("E0100201FE0202050002020500020205007F66080202080002020802");
+        Assert.assertEquals(2048, AdaptiveChunkSize.parseMaxResponseLength(efAtr));
+        Assert.assertEquals(-1, AdaptiveChunkSize.parseMaxResponseLength(Hex.decode("E0100201FE")));
+    }
+
+    @Test
+    public void shouldKeepLimitBelowMinimalChunkSize() {
+        final AdaptiveChunkSize chunkSize = new AdaptiveChunkSize(16);
+        Assert.assertEquals(16, chunkSize.get());
+        Assert.assertEquals(16, chunkSize.onFailure(16));
+        chunkSize.onSuccess(16, TimeUnit.SECONDS.toNanos(3));
+        Assert.assertEquals(16, chunkSize.get());
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.integration.card;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import de.gematik.ti.healthcardaccess.IHealthCard;
+import de.gematik.ti.healthcardaccess.cardobjects.ApplicationIdentifier;
+import de.gematik.ti.healthcardaccess.cardobjects.FileIdentifier;
+
+/**
+ * tests of {@link EfContentCache}
+ */
+public class EfContentCacheTest {
+    private static final EfPath EF_ATR = EfPath.of(new FileIdentifier(0x2F01));
+    private static final EfPath EF_C_CH_AUT = EfPath.of(new ApplicationIdentifier("D27600014601"), new FileIdentifier(0xC500));
+
+    @Test
+    public void shouldCacheImmutableEfPerCard() {
+        final EfContentCache cache = new EfContentCache(1024);
+        final IHealthCard card = Mockito.mock(IHealthCard.class);
+        cache.put(card, EF_ATR, new byte[] { 1, 2, 3 });
+        Assert.assertArrayEquals(new byte[] { 1, 2, 3 }, cache.get(card, EF_ATR));
+        Assert.assertNull(cache.get(Mockito.mock(IHealthCard.class), EF_ATR));
+        Assert.assertEquals(3, cache.getCachedBytes());
+    }
+
+    @Test
+    public void shouldNotCacheUnmarkedEf() {
+        final EfContentCache cache = new EfContentCache(1024);
+        final IHealthCard card = Mockito.mock(IHealthCard.class);
+        cache.put(card, EF_C_CH_AUT, new byte[] { 1 });
+        Assert.assertNull(cache.get(card, EF_C_CH_AUT));
+        cache.markImmutable(EF_C_CH_AUT);
+        cache.put(card, EF_C_CH_AUT, new byte[] { 1 });
+        Assert.assertArrayEquals(new byte[] { 1 }, cache.get(card, EF_C_CH_AUT));
+        cache.unmark(EF_C_CH_AUT);
+        Assert.assertNull(cache.get(card, EF_C_CH_AUT));
+        Assert.assertEquals(0, cache.getCachedBytes());
+    }
+
+    @Test
+    public void shouldExpireRevalidatedEf() throws InterruptedException {
+        final EfContentCache cache = new EfContentCache(1024);
+        final IHealthCard card = Mockito.mock(IHealthCard.class);
+        cache.markRevalidate(EF_C_CH_AUT, 10);
+        cache.put(card, EF_C_CH_AUT, new byte[] { 1 });
+        Thread.sleep(20);
+        Assert.assertNull(cache.get(card, EF_C_CH_AUT));
+        Assert.assertEquals(0, cache.getCachedBytes());
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyUsedContent() {
+        final EfContentCache cache = new EfContentCache(4);
+        final IHealthCard card1 = Mockito.mock(IHealthCard.class);
+        final IHealthCard card2 = Mockito.mock(IHealthCard.class);
+        cache.put(card1, EF_ATR, new byte[] { 1, 2 });
+        cache.put(card2, EF_ATR, new byte[] { 3, 4 });
+        cache.get(card1, EF_ATR);
+        cache.put(Mockito.mock(IHealthCard.class), EF_ATR, new byte[] { 5, 6 });
+        Assert.assertNotNull(cache.get(card1, EF_ATR));
+        Assert.assertNull(cache.get(card2, EF_ATR));
+        Assert.assertEquals(4, cache.getCachedBytes());
+    }
+
+    @Test
+    public void shouldNotCacheInvalidatedCard() {
+        final EfContentCache cache = new EfContentCache(1024);
+        final IHealthCard card = Mockito.mock(IHealthCard.class);
+        cache.put(card, EF_ATR, new byte[] { 1 });
+        cache.invalidate(card);
+        Assert.assertNull(cache.get(card, EF_ATR));
+        cache.put(card, EF_ATR, new byte[] { 1 });
+        Assert.assertNull(cache.get(card, EF_ATR));
+        Assert.assertEquals(0, cache.getCachedBytes());
+    }
+
+    @Test
+    public void shouldKeepContentOfReinsertedCardByCardId() {
+        final EfContentCache cache = new EfContentCache(1024);
+        final IHealthCard card = Mockito.mock(IHealthCard.class);
+        cache.put(card, EF_ATR, new byte[] { 1, 2 });
+        cache.setCardId(card, "5a0102");
+        cache.invalidate(card);
+        Assert.assertEquals(2, cache.getCachedBytes());
+
+        final IHealthCard reinsertedCard = Mockito.mock(IHealthCard.class);
+        Assert.assertNull(cache.get(reinsertedCard, EF_ATR));
+        cache.setCardId(reinsertedCard, "5a0102");
+        Assert.assertArrayEquals(new byte[] { 1, 2 }, cache.get(reinsertedCard, EF_ATR));
+
+        final IHealthCard otherCard = Mockito.mock(IHealthCard.class);
+        cache.setCardId(otherCard, "5a0103");
+        Assert.assertNull(cache.get(otherCard, EF_ATR));
+    }
+
+    @Test
+    public void shouldReturnCopyOfContent() {
+        final EfContentCache cache = new EfContentCache(1024);
+        final IHealthCard card = Mockito.mock(IHealthCard.class);
+        cache.put(card, EF_ATR, new byte[] { 1 });
+        cache.get(card, EF_ATR)[0] = 2;
+        Assert.assertArrayEquals(new byte[] { 1 }, cache.get(card, EF_ATR));
+    }
+}
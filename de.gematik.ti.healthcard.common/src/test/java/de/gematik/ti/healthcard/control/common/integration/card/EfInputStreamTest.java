@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.integration.card;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import de.gematik.ti.healthcardaccess.cardobjects.FileIdentifier;
+
+/**
+ * tests of {@link EfInputStream}
+ */
+public class EfInputStreamTest {
+    private static final EfPath EF_PD = EfPath.of(new FileIdentifier(0xD001));
+
+    private static ReadCommandSafeExecutor executorOf(final byte[] content, final int maxResponseLength) {
+        final ReadCommandSafeExecutor executor = Mockito.mock(ReadCommandSafeExecutor.class);
+        Mockito.when(executor.readStreamChunk(ArgumentMatchers.eq(EF_PD), ArgumentMatchers.anyInt(), ArgumentMatchers.anyInt())).thenAnswer(invocation -> {
+            final int offset = invocation.getArgument(1);
+            final int length = Math.min(maxResponseLength, invocation.<Integer> getArgument(2));
+            return Arrays.copyOfRange(content, offset, Math.min(content.length, offset + length));
+        });
+        return executor;
+    }
+
+    @Test
+    public void shouldReadChunkOnDemand() throws IOException {
+        final byte[] content = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
+        final ReadCommandSafeExecutor executor = executorOf(content, 4);
+        final InputStream inputStream = new EfInputStream(executor, EF_PD, 2, content.length);
+
+        Assert.assertEquals(3, inputStream.read());
+        Mockito.verify(executor, Mockito.times(1)).readStreamChunk(EF_PD, 2, 8);
+        final byte[] rest = new byte[10];
+        Assert.assertEquals(3, inputStream.read(rest, 0, rest.length));
+        Assert.assertEquals(4, inputStream.read(rest, 3, rest.length - 3));
+        Assert.assertEquals(-1, inputStream.read(rest, 0, rest.length));
+        Assert.assertArrayEquals(new byte[] { 4, 5, 6, 7, 8, 9, 10 }, Arrays.copyOf(rest, 7));
+    }
+
+    @Test
+    public void shouldDecodeGzipWhileReading() throws IOException {
+        final byte[] plain = "<UC_PersoenlicheVersichertendatenXML/>".getBytes(StandardCharsets.UTF_8);
+        final ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        gzip.write(new byte[] { 0, 0 });
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(gzip)) {
+            gzipOutputStream.write(plain);
+        }
+        final byte[] content = gzip.toByteArray();
+        final ReadCommandSafeExecutor executor = executorOf(content, 8);
+
+        final ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        try (InputStream inputStream = new GZIPInputStream(new EfInputStream(executor, EF_PD, 2, content.length), 8)) {
+            final byte[] buffer = new byte[8];
+            int count;
+            while ((count = inputStream.read(buffer)) > 0) {
+                decoded.write(buffer, 0, count);
+            }
+        }
+        Assert.assertArrayEquals(plain, decoded.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void shouldFailIfChunkNotReadable() throws IOException {
+        final ReadCommandSafeExecutor executor = Mockito.mock(ReadCommandSafeExecutor.class);
+        new EfInputStream(executor, EF_PD, 0, 10).read();
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.integration.card;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.gematik.ti.healthcardaccess.cardobjects.ApplicationIdentifier;
+import de.gematik.ti.healthcardaccess.cardobjects.FileIdentifier;
+
+/**
+ * tests of {@link EfPath}
+ */
+public class EfPathTest {
+    private static final ApplicationIdentifier DF_HCA = new ApplicationIdentifier("D27600000102");
+    private static final ApplicationIdentifier DF_NFD = new ApplicationIdentifier("D27600014407");
+
+    @Test
+    public void shouldBeEqualForSameFolderAndEf() {
+        final EfPath efPath = EfPath.of(new ApplicationIdentifier("D27600000102"), new FileIdentifier(0xD001));
+        Assert.assertEquals(efPath, EfPath.of(DF_HCA, new FileIdentifier(0xD001)));
+        Assert.assertEquals(efPath.hashCode(), EfPath.of(DF_HCA, new FileIdentifier(0xD001)).hashCode());
+        Assert.assertNotEquals(efPath, EfPath.of(DF_HCA, new FileIdentifier(0xD002)));
+        Assert.assertNotEquals(efPath, EfPath.of(DF_HCA, DF_NFD, new FileIdentifier(0xD001)));
+        Assert.assertNotEquals(efPath, EfPath.of(new FileIdentifier(0xD001)));
+    }
+
+    @Test
+    public void shouldDetectSameFolder() {
+        final EfPath efPath = EfPath.of(DF_HCA, DF_NFD, new FileIdentifier(0xD010));
+        Assert.assertTrue(efPath.isInSameFolder(EfPath.of(DF_HCA, DF_NFD, new FileIdentifier(0xD011))));
+        Assert.assertFalse(efPath.isInSameFolder(EfPath.of(DF_HCA, new FileIdentifier(0xD010))));
+        Assert.assertFalse(efPath.isInSameFolder(null));
+        Assert.assertTrue(EfPath.of(new FileIdentifier(0x2F02)).isInSameFolder(EfPath.of(new FileIdentifier(0x2F01))));
+    }
+
+    @Test
+    public void shouldIgnoreSfiInIdentity() {
+        final EfPath efPath = EfPath.of(DF_HCA, new FileIdentifier(0xD001));
+        final EfPath efPathWithSfi = efPath.withSfi(0x01);
+        Assert.assertFalse(efPath.hasSfi());
+        Assert.assertTrue(efPathWithSfi.hasSfi());
+        Assert.assertEquals(0x01, efPathWithSfi.getSfi());
+        Assert.assertEquals(efPath, efPathWithSfi);
+        Assert.assertEquals(efPath.hashCode(), efPathWithSfi.hashCode());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectInvalidSfi() {
+        EfPath.of(new FileIdentifier(0x2F02)).withSfi(31);
+    }
+}
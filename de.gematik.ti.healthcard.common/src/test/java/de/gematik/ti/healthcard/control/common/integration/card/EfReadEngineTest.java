@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.integration.card;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import de.gematik.ti.cardreader.provider.api.card.ICardChannel;
+import de.gematik.ti.healthcard.control.common.exceptions.EfReadException;
+import de.gematik.ti.healthcardaccess.IHealthCard;
+import de.gematik.ti.healthcardaccess.cardobjects.ApplicationIdentifier;
+import de.gematik.ti.healthcardaccess.cardobjects.FileIdentifier;
+import de.gematik.ti.healthcardaccess.result.Response.ResponseStatus;
+import de.gematik.ti.utils.codec.Hex;
+
+/**
+ * tests of {@link EfReadEngine}
+ */
+public class EfReadEngineTest {
+    private static final ApplicationIdentifier DF_HCA = new ApplicationIdentifier("D27600000102");
+    private static final EfPath EF_PD = EfPath.of(DF_HCA, new FileIdentifier(0xD001));
+    private static final EfPath EF_VD = EfPath.of(DF_HCA, new FileIdentifier(0xD002));
+    private static final EfPath EF_GDO = EfPath.of(new FileIdentifier(0x2F02));
+
+    private static EfReadEngine engineOf(final SimulatedCard card) {
+        return new EfReadEngine(256, null, healthCard -> card);
+    }
+
+    @Test
+    public void shouldSelectEveryFolderOncePerBatch() {
+        final SimulatedCard card = new SimulatedCard().withFile(EF_PD, ReadCommandSafeExecutorTest.content(40))
+                .withFile(EF_VD, ReadCommandSafeExecutorTest.content(50)).withFile(EF_GDO, ReadCommandSafeExecutorTest.content(12));
+
+        final Map<EfPath, byte[]> contents = ReadCommandSafeExecutorTest.valueOf(engineOf(card).readAll(Mockito.mock(IHealthCard.class),
+                Arrays.asList(EF_VD, EF_GDO, EF_PD)));
+
+        Assert.assertEquals(Arrays.asList(EF_VD, EF_GDO, EF_PD), Arrays.asList(contents.keySet().toArray()));
+        Assert.assertArrayEquals(ReadCommandSafeExecutorTest.content(12), contents.get(EF_GDO));
+        Assert.assertEquals(Arrays.asList("SELECT MF", "SELECT EF 2F02", "READ 0 12", "SELECT DF D27600000102", "SELECT EF D002", "READ 0 50",
+                "SELECT EF D001", "READ 0 40"), card.getCommands());
+    }
+
+    @Test
+    public void shouldSelectSubDfAfterItsDfWithoutSelectingDfAgain() {
+        final EfPath efNfd = EfPath.of(DF_HCA, new ApplicationIdentifier("D27600014407"), new FileIdentifier(0xD010));
+        final EfPath efEsign = EfPath.of(new ApplicationIdentifier("A000000167455349474E"), new FileIdentifier(0xC500));
+        final SimulatedCard card = new SimulatedCard().withFile(EF_PD, ReadCommandSafeExecutorTest.content(40))
+                .withFile(efNfd, ReadCommandSafeExecutorTest.content(20)).withFile(efEsign, ReadCommandSafeExecutorTest.content(30));
+
+        ReadCommandSafeExecutorTest.valueOf(engineOf(card).readAll(Mockito.mock(IHealthCard.class), Arrays.asList(efNfd, efEsign, EF_PD)));
+
+        Assert.assertEquals(Arrays.asList("SELECT DF A000000167455349474E", "SELECT EF C500", "READ 0 30", "SELECT DF D27600000102", "SELECT EF D001",
+                "READ 0 40", "SELECT DF D27600014407", "SELECT EF D010", "READ 0 20"), card.getCommands());
+    }
+
+    @Test
+    public void shouldNegotiateMaxResponseLengthOncePerCard() {
+        // extended length information with max command length 0x0100 and max response length 0x0082 including the status word
+        final byte[] atr = Hex.decode("7F660802020100020200820000");
+        final SimulatedCard card = new SimulatedCard().withFile(EfPath.of(new FileIdentifier(0x2F01)).withSfi(0x1D), atr)
+                .withFile(EF_VD, ReadCommandSafeExecutorTest.content(300));
+        final ICardChannel channel = Mockito.mock(ICardChannel.class);
+        Mockito.when(channel.isExtendedLengthSupported()).thenReturn(true);
+        final IHealthCard healthCard = Mockito.mock(IHealthCard.class);
+        Mockito.when(healthCard.getCurrentCardChannel()).thenReturn(channel);
+        final EfReadEngine engine = new EfReadEngine(-1, new EfContentCache(1024), createdHealthCard -> card);
+
+        Assert.assertArrayEquals(ReadCommandSafeExecutorTest.content(300), ReadCommandSafeExecutorTest.valueOf(engine.read(healthCard, EF_VD)));
+        card.clearCommands();
+        Assert.assertArrayEquals(ReadCommandSafeExecutorTest.content(300), ReadCommandSafeExecutorTest.valueOf(engine.read(healthCard, EF_VD)));
+        // EF.ATR is taken from the cache, the chunks keep the negotiated length
+        Assert.assertEquals(Arrays.asList("SELECT DF D27600000102", "SELECT EF D002", "READ 0 128", "READ 128 128", "READ 256 44"),
+                card.getCommands());
+    }
+
+    @Test
+    public void shouldFailBatchWithErrorOfFailedEf() {
+        final SimulatedCard card = new SimulatedCard().withFile(EF_PD, ReadCommandSafeExecutorTest.content(40))
+                .withFile(EF_VD, ReadCommandSafeExecutorTest.content(50)).failRead(0, ResponseStatus.SECURITY_STATUS_NOT_SATISFIED, 100);
+
+        final Throwable error = ReadCommandSafeExecutorTest.errorOf(engineOf(card).readAll(Mockito.mock(IHealthCard.class), Arrays.asList(EF_PD, EF_VD)));
+
+        Assert.assertTrue(error instanceof EfReadException);
+        Assert.assertEquals(EF_PD, ((EfReadException) error).getEfPath());
+        Assert.assertEquals(0, card.count("SELECT EF D002"));
+    }
+
+    @Test
+    public void shouldSerializeBatchesOfHealthCardsOfSameCard() throws Exception {
+        final ICardChannel channel = Mockito.mock(ICardChannel.class);
+        final IHealthCard healthCard = Mockito.mock(IHealthCard.class);
+        final IHealthCard otherHealthCard = Mockito.mock(IHealthCard.class);
+        Mockito.when(healthCard.getCurrentCardChannel()).thenReturn(channel);
+        Mockito.when(otherHealthCard.getCurrentCardChannel()).thenReturn(channel);
+        final SimulatedCard card = new SimulatedCard().withFile(EF_PD, ReadCommandSafeExecutorTest.content(40))
+                .withFile(EF_VD, ReadCommandSafeExecutorTest.content(50));
+        final CountDownLatch firstRead = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        card.setReadHook(() -> {
+            firstRead.countDown();
+            await(release);
+        });
+        final EfReadEngine engine = engineOf(card);
+        final ExecutorService executorService = Executors.newFixedThreadPool(2);
+        try {
+            final Future<?> first = executorService.submit(() -> ReadCommandSafeExecutorTest.valueOf(engine.read(healthCard, EF_PD)));
+            Assert.assertTrue(firstRead.await(5, TimeUnit.SECONDS));
+            final Future<?> second = executorService.submit(() -> ReadCommandSafeExecutorTest.valueOf(engine.read(otherHealthCard, EF_VD)));
+            final ReentrantLock lock = HealthCardLocks.getLock(otherHealthCard);
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!lock.hasQueuedThreads()) {
+                Assert.assertTrue("second batch not waiting for the card", System.nanoTime() < deadline);
+                Thread.yield();
+            }
+            release.countDown();
+            first.get(5, TimeUnit.SECONDS);
+            second.get(5, TimeUnit.SECONDS);
+        } finally {
+            release.countDown();
+            executorService.shutdownNow();
+        }
+        // the second batch starts after the first batch released the card
+        Assert.assertEquals(Arrays.asList("SELECT DF D27600000102", "SELECT EF D001", "READ 0 40", "SELECT DF D27600000102", "SELECT EF D002",
+                "READ 0 50"), card.getCommands());
+    }
+
+    @Test
+    public void shouldReadDifferentCardsInParallel() throws Exception {
+        final SimulatedCard blockedCard = new SimulatedCard().withFile(EF_PD, ReadCommandSafeExecutorTest.content(40));
+        final SimulatedCard otherCard = new SimulatedCard().withFile(EF_PD, ReadCommandSafeExecutorTest.content(30));
+        final IHealthCard blockedHealthCard = Mockito.mock(IHealthCard.class);
+        final IHealthCard otherHealthCard = Mockito.mock(IHealthCard.class);
+        final CountDownLatch blockedRead = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        blockedCard.setReadHook(() -> {
+            blockedRead.countDown();
+            await(release);
+        });
+        final EfReadEngine engine = new EfReadEngine(256, null, healthCard -> healthCard == blockedHealthCard ? blockedCard : otherCard);
+        final ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            final Future<byte[]> blocked = executorService.submit(() -> ReadCommandSafeExecutorTest.valueOf(engine.read(blockedHealthCard, EF_PD)));
+            Assert.assertTrue(blockedRead.await(5, TimeUnit.SECONDS));
+            Assert.assertArrayEquals(ReadCommandSafeExecutorTest.content(30), ReadCommandSafeExecutorTest.valueOf(engine.read(otherHealthCard, EF_PD)));
+            Assert.assertFalse(blocked.isDone());
+            release.countDown();
+            Assert.assertArrayEquals(ReadCommandSafeExecutorTest.content(40), blocked.get(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            executorService.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldShareReadOfSameEfBetweenConcurrentBatches() throws Exception {
+        final SimulatedCard card = new SimulatedCard().withFile(EF_PD, ReadCommandSafeExecutorTest.content(40));
+        final IHealthCard healthCard = Mockito.mock(IHealthCard.class);
+        final CountDownLatch release = blockReads(card);
+        final EfReadEngine engine = engineOf(card);
+
+        final Batch<byte[]> owner = Batch.start(() -> ReadCommandSafeExecutorTest.valueOf(engine.read(healthCard, EF_PD)));
+        // blocked in its first READ command
+        owner.awaitWaiting();
+        final Batch<byte[]> follower = Batch.start(() -> ReadCommandSafeExecutorTest.valueOf(engine.read(healthCard, EF_PD)));
+        follower.awaitWaiting();
+        release.countDown();
+
+        Assert.assertArrayEquals(ReadCommandSafeExecutorTest.content(40), owner.get());
+        Assert.assertArrayEquals(ReadCommandSafeExecutorTest.content(40), follower.get());
+        Assert.assertEquals(1, card.count("READ"));
+    }
+
+    @Test
+    public void shouldFailFollowerWithErrorOfOwner() throws Exception {
+        final SimulatedCard card = new SimulatedCard().withFile(EF_PD, ReadCommandSafeExecutorTest.content(40))
+                .failRead(0, ResponseStatus.SECURITY_STATUS_NOT_SATISFIED, 3);
+        final IHealthCard healthCard = Mockito.mock(IHealthCard.class);
+        final CountDownLatch release = blockReads(card);
+        final EfReadEngine engine = engineOf(card);
+
+        final Batch<Throwable> owner = Batch.start(() -> ReadCommandSafeExecutorTest.errorOf(engine.read(healthCard, EF_PD)));
+        // blocked in its first READ command
+        owner.awaitWaiting();
+        final Batch<Throwable> follower = Batch.start(() -> ReadCommandSafeExecutorTest.errorOf(engine.read(healthCard, EF_PD)));
+        follower.awaitWaiting();
+        release.countDown();
+
+        final Throwable error = owner.get();
+        Assert.assertTrue(error instanceof EfReadException);
+        Assert.assertSame(error, follower.get());
+        // all READ commands are the attempts of the owner
+        Assert.assertEquals(3, card.count("READ"));
+    }
+
+    @Test
+    public void shouldReadEfsAgainWhichFailedOwnerLeftUnread() throws Exception {
+        final SimulatedCard card = new SimulatedCard().withFile(EF_PD, ReadCommandSafeExecutorTest.content(40))
+                .withFile(EF_VD, ReadCommandSafeExecutorTest.content(50)).failRead(0, ResponseStatus.SECURITY_STATUS_NOT_SATISFIED, 3);
+        final IHealthCard healthCard = Mockito.mock(IHealthCard.class);
+        final CountDownLatch release = blockReads(card);
+        final EfReadEngine engine = engineOf(card);
+
+        final Batch<Throwable> owner = Batch.start(() -> ReadCommandSafeExecutorTest.errorOf(engine.readAll(healthCard, Arrays.asList(EF_PD, EF_VD))));
+        // blocked in its first READ command
+        owner.awaitWaiting();
+        final Batch<byte[]> follower = Batch.start(() -> ReadCommandSafeExecutorTest.valueOf(engine.read(healthCard, EF_VD)));
+        follower.awaitWaiting();
+        release.countDown();
+
+        Assert.assertEquals(EF_PD, ((EfReadException) owner.get()).getEfPath());
+        Assert.assertArrayEquals(ReadCommandSafeExecutorTest.content(50), follower.get());
+        Assert.assertEquals(1, card.count("SELECT EF D002"));
+    }
+
+    @Test
+    public void shouldFinishBatchesWithCrossingEfs() throws Exception {
+        final SimulatedCard card = new SimulatedCard().withFile(EF_PD, ReadCommandSafeExecutorTest.content(40))
+                .withFile(EF_VD, ReadCommandSafeExecutorTest.content(50));
+        final IHealthCard healthCard = Mockito.mock(IHealthCard.class);
+        final CountDownLatch release = blockReads(card);
+        final EfReadEngine engine = engineOf(card);
+
+        final Batch<byte[]> first = Batch.start(() -> ReadCommandSafeExecutorTest.valueOf(engine.read(healthCard, EF_PD)));
+        first.awaitWaiting();
+        // reads EF.VD and waits for EF.PD of the first batch
+        final Batch<Map<EfPath, byte[]>> second = Batch.start(() -> ReadCommandSafeExecutorTest.valueOf(engine.readAll(healthCard,
+                Arrays.asList(EF_VD, EF_PD))));
+        final ReentrantLock lock = HealthCardLocks.getLock(healthCard);
+        second.awaitCondition(lock::hasQueuedThreads);
+        // waits for EF.PD of the first and EF.VD of the second batch
+        final Batch<Map<EfPath, byte[]>> third = Batch.start(() -> ReadCommandSafeExecutorTest.valueOf(engine.readAll(healthCard,
+                Arrays.asList(EF_PD, EF_VD))));
+        third.awaitWaiting();
+        release.countDown();
+
+        Assert.assertArrayEquals(ReadCommandSafeExecutorTest.content(40), first.get());
+        Assert.assertArrayEquals(ReadCommandSafeExecutorTest.content(40), second.get().get(EF_PD));
+        Assert.assertArrayEquals(ReadCommandSafeExecutorTest.content(50), second.get().get(EF_VD));
+        Assert.assertArrayEquals(ReadCommandSafeExecutorTest.content(40), third.get().get(EF_PD));
+        Assert.assertArrayEquals(ReadCommandSafeExecutorTest.content(50), third.get().get(EF_VD));
+        Assert.assertEquals(Arrays.asList("READ 0 40", "READ 0 50"), card.getCommands().stream().filter(command -> command.startsWith("READ"))
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     * Block every READ command until the returned latch is released
+     */
+    private static CountDownLatch blockReads(final SimulatedCard card) {
+        final CountDownLatch release = new CountDownLatch(1);
+        card.setReadHook(() -> await(release));
+        return release;
+    }
+
+    static void await(final CountDownLatch latch) {
+        try {
+            Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Batch read on an own thread
+     */
+    private static final class Batch<T> {
+        private final FutureTask<T> task;
+        private final Thread thread;
+
+        private Batch(final Callable<T> callable) {
+            task = new FutureTask<>(callable);
+            thread = new Thread(task, "batch");
+            thread.setDaemon(true);
+        }
+
+        static <T> Batch<T> start(final Callable<T> callable) {
+            final Batch<T> batch = new Batch<>(callable);
+            batch.thread.start();
+            return batch;
+        }
+
+        /**
+         * Wait until the batch waits in a blocked READ command or for the read of another batch
+         */
+        void awaitWaiting() throws InterruptedException {
+            awaitCondition(() -> thread.getState() == Thread.State.WAITING || thread.getState() == Thread.State.TIMED_WAITING);
+        }
+
+        void awaitCondition(final BooleanSupplier condition) throws InterruptedException {
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!condition.getAsBoolean()) {
+                Assert.assertTrue("batch not waiting", System.nanoTime() < deadline);
+                Thread.sleep(1);
+            }
+        }
+
+        T get() throws Exception {
+            return task.get(5, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -16,11 +16,412 @@
 
 package de.gematik.ti.healthcard.control.common.integration.card;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import de.gematik.ti.healthcard.control.common.HealthcardCommonRuntimeException;
+import de.gematik.ti.healthcard.control.common.exceptions.EfReadException;
+import de.gematik.ti.healthcardaccess.IHealthCard;
+import de.gematik.ti.healthcardaccess.cardobjects.ApplicationIdentifier;
+import de.gematik.ti.healthcardaccess.cardobjects.FileIdentifier;
+import de.gematik.ti.healthcardaccess.operation.ResultOperation;
+import de.gematik.ti.healthcardaccess.operation.Subscriber;
+import de.gematik.ti.healthcardaccess.result.Response.ResponseStatus;
 
 /**
  * tests of {@link ReadCommandSafeExecutor}
  */
-
 public class ReadCommandSafeExecutorTest {
+    private static final ApplicationIdentifier DF_HCA = new ApplicationIdentifier("D27600000102");
+    private static final EfPath EF_VD = EfPath.of(DF_HCA, new FileIdentifier(0xD002));
+    private static final EfPath EF_PD = EfPath.of(DF_HCA, new FileIdentifier(0xD001));
+    private static final EfPath EF_ATR = EfPath.of(new FileIdentifier(0x2F01));
+    private static final EfPath EF_VD_SFI = EF_VD.withSfi(2);
+
+    static byte[] content(final int length) {
+        final byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) (i * 7 + 3);
+        }
+        return content;
+    }
+
+    static <T> T valueOf(final ResultOperation<T> resultOperation) {
+        final Object[] value = new Object[1];
+        resultOperation.subscribe(new Subscriber<T>() {
+            @Override
+            public void onSuccess(final T t) {
+                value[0] = t;
+            }
+
+            @Override
+            public void onError(final Throwable t) {
+                throw new AssertionError("read failed", t);
+            }
+        });
+        @SuppressWarnings("unchecked")
+        final T result = (T) value[0];
+        return result;
+    }
+
+    static <T> Throwable errorOf(final ResultOperation<T> resultOperation) {
+        final Throwable[] error = new Throwable[1];
+        resultOperation.subscribe(new Subscriber<T>() {
+            @Override
+            public void onSuccess(final T value) {
+                throw new AssertionError("read succeeded unexpectedly");
+            }
+
+            @Override
+            public void onError(final Throwable t) {
+                error[0] = t;
+            }
+        });
+        return error[0];
+    }
+
+    private static ReadCommandSafeExecutor executorOf(final SimulatedCard card, final int maxResponseLength) {
+        return new ReadCommandSafeExecutor(Mockito.mock(IHealthCard.class), card, maxResponseLength);
+    }
+
+    @Test
+    public void shouldSelectFolderAndEfOncePerRead() {
+        final byte[] vd = content(600);
+        final SimulatedCard card = new SimulatedCard().withFile(EF_VD, vd);
+
+        Assert.assertArrayEquals(vd, valueOf(executorOf(card, 256).readSafe(DF_HCA, EF_VD.getEfFid())));
+        Assert.assertEquals(Arrays.asList("SELECT DF D27600000102", "SELECT EF D002", "READ 0 256", "READ 256 256", "READ 512 88"),
+                card.getCommands());
+    }
+
+    @Test
+    public void shouldForgetSelectionBetweenReads() {
+        final byte[] vd = content(100);
+        final SimulatedCard card = new SimulatedCard().withFile(EF_VD, vd);
+        final ReadCommandSafeExecutor executor = executorOf(card, 256);
+
+        Assert.assertArrayEquals(vd, valueOf(executor.readSafe(EF_VD)));
+        // other commands may have changed the selection on the card
+        card.selectMf();
+        card.clearCommands();
+        Assert.assertArrayEquals(vd, valueOf(executor.readSafe(EF_VD)));
+        Assert.assertEquals(Arrays.asList("SELECT DF D27600000102", "SELECT EF D002", "READ 0 100"), card.getCommands());
+    }
+
+    @Test
+    public void shouldSelectMfForEfUnderMf() {
+        final byte[] atr = content(30);
+        final SimulatedCard card = new SimulatedCard().withFile(EF_ATR, atr).withFile(EF_VD, content(10));
+        card.selectDf(DF_HCA);
+        card.clearCommands();
+
+        Assert.assertArrayEquals(atr, valueOf(executorOf(card, 256).readSafe(EF_ATR.getEfFid())));
+        Assert.assertEquals(Arrays.asList("SELECT MF", "SELECT EF 2F01", "READ 0 30"), card.getCommands());
+    }
+
+    @Test
+    public void shouldSelectAgainAfterFailedRead() {
+        final byte[] vd = content(300);
+        final SimulatedCard card = new SimulatedCard().withFile(EF_VD, vd).failRead(256, ResponseStatus.NO_CURRENT_EF, 1);
+
+        Assert.assertArrayEquals(vd, valueOf(executorOf(card, 256).readSafe(EF_VD)));
+        Assert.assertEquals(2, card.count("SELECT EF"));
+    }
+
+    @Test
+    public void shouldReadIntoArrayOfFileLengthFromFcp() {
+        final byte[] vd = content(600);
+        // C5 with one byte: the logical end of file is before the end of the content
+        final SimulatedCard card = new SimulatedCard().withFile(EF_VD, vd).withFcp(EF_VD, new byte[] { 0x62, 0x03, (byte) 0xC5, 0x01, 0x50 });
+
+        Assert.assertArrayEquals(Arrays.copyOf(vd, 0x50), valueOf(executorOf(card, 256).readSafe(EF_VD)));
+        Assert.assertEquals(Arrays.asList("SELECT DF D27600000102", "SELECT EF D002", "READ 0 80"), card.getCommands());
+    }
+
+    @Test
+    public void shouldFailWithoutFileLengthInFcp() {
+        final SimulatedCard card = new SimulatedCard().withFile(EF_VD, content(10)).withFcp(EF_VD, new byte[] { 0x62, 0x03, (byte) 0x82, 0x01, 0x01 });
+
+        final Throwable error = errorOf(executorOf(card, 256).readSafe(EF_VD));
+        Assert.assertTrue(error instanceof EfReadException);
+        Assert.assertEquals(0, card.count("READ"));
+    }
+
+    @Test
+    public void shouldFailReadIfChunkFails() {
+        final SimulatedCard card = new SimulatedCard().withFile(EF_VD, content(600)).failRead(256, ResponseStatus.SECURITY_STATUS_NOT_SATISFIED, 100);
+
+        final Throwable error = errorOf(executorOf(card, 256).readSafe(EF_VD));
+        Assert.assertTrue(error instanceof EfReadException);
+        Assert.assertEquals(256, ((EfReadException) error).getOffset());
+        Assert.assertEquals(600, ((EfReadException) error).getFileLength());
+    }
+
+    @Test
+    public void shouldReadIntoBufferOfCaller() {
+        final byte[] vd = content(300);
+        final SimulatedCard card = new SimulatedCard().withFile(EF_VD, vd);
+        final byte[] target = new byte[310];
+
+        Assert.assertEquals(Integer.valueOf(300), valueOf(executorOf(card, 256).readSafe(EF_VD, target, 10)));
+        Assert.assertArrayEquals(vd, Arrays.copyOfRange(target, 10, 310));
+        Assert.assertEquals(0, target[9]);
+
+        final ByteBuffer buffer = ByteBuffer.allocate(400);
+        buffer.position(50);
+        Assert.assertEquals(Integer.valueOf(300), valueOf(executorOf(card, 256).readSafe(EF_VD, buffer)));
+        Assert.assertEquals(350, buffer.position());
+    }
+
+    @Test
+    public void shouldFailIfBufferOfCallerTooSmall() {
+        final SimulatedCard card = new SimulatedCard().withFile(EF_VD, content(300));
+
+        final Throwable error = errorOf(executorOf(card, 256).readSafe(EF_VD, new byte[300], 1));
+        Assert.assertTrue(error instanceof HealthcardCommonRuntimeException);
+        Assert.assertEquals(0, card.count("READ"));
+    }
+
+    @Test
+    public void shouldFailReadIntoBufferOfCallerIfChunkFails() {
+        final SimulatedCard card = new SimulatedCard().withFile(EF_VD, content(300)).failRead(256, ResponseStatus.SECURITY_STATUS_NOT_SATISFIED, 100);
+
+        final Throwable error = errorOf(executorOf(card, 256).readSafe(EF_VD, ByteBuffer.allocate(300)));
+        Assert.assertTrue(error instanceof EfReadException);
+        Assert.assertEquals(256, ((EfReadException) error).getOffset());
+    }
+
+    @Test
+    public void shouldRetryFailedChunk() {
+        final byte[] vd = content(300);
+        final SimulatedCard card = new SimulatedCard().withFile(EF_VD, vd).failRead(256, ResponseStatus.NO_CURRENT_EF, 2);
+
+        Assert.assertArrayEquals(vd, valueOf(executorOf(card, 256).readSafe(EF_VD)));
+        Assert.assertEquals(Arrays.asList("READ 0 256", "READ 256 44", "READ 256 44", "READ 256 44"), readCommandsOf(card));
+        // the EF is selected again before every retry
+        Assert.assertEquals(3, card.count("SELECT EF"));
+    }
+
+    @Test
+    public void shouldBoundAllAttemptsOfChunkByRetries() {
+        final SimulatedCard card = new SimulatedCard().withFile(EF_VD, content(300)).withMaxResponseLength(10).failRead(0, null, 1);
+        final ReadCommandSafeExecutor executor = executorOf(card, 256);
+        executor.setChunkRetries(3);
+
+        final Throwable error = errorOf(executor.readSafe(EF_VD));
+        Assert.assertTrue(error instanceof EfReadException);
+        Assert.assertEquals(0, ((EfReadException) error).getOffset());
+        // transmission error and length errors together
+        Assert.assertEquals(4, card.count("READ"));
+    }
+
+    @Test
+    public void shouldResumeReadAtFailedOffset() {
+        final byte[] vd = content(600);
+        final SimulatedCard card = new SimulatedCard().withFile(EF_VD, vd).failRead(256, ResponseStatus.SECURITY_STATUS_NOT_SATISFIED, 3);
+
+        final EfReadException error = (EfReadException) errorOf(executorOf(card, 256).readSafe(EF_VD));
+        card.clearCommands();
+        Assert.assertArrayEquals(vd, valueOf(error.getReadHandle().resume()));
+        Assert.assertEquals(Arrays.asList("READ 256 256", "READ 512 88"), readCommandsOf(card));
+    }
+
+    @Test
+    public void shouldResumeReadIntoBufferOfCallerAtFailedOffset() {
+        final byte[] vd = content(600);
+        final SimulatedCard card = new SimulatedCard().withFile(EF_VD, vd).failRead(512, ResponseStatus.SECURITY_STATUS_NOT_SATISFIED, 3);
+        final ByteBuffer target = ByteBuffer.allocate(700);
+        target.position(100);
+
+        final EfReadException error = (EfReadException) errorOf(executorOf(card, 256).readSafe(EF_VD, target));
+        Assert.assertEquals(512, error.getOffset());
+        Assert.assertEquals(512, error.getReadHandle().getOffset());
+        Assert.assertArrayEquals(Arrays.copyOf(vd, 512), Arrays.copyOfRange(target.array(), 100, 612));
+        card.clearCommands();
+        Assert.assertArrayEquals(vd, valueOf(error.getReadHandle().resume()));
+        Assert.assertEquals(Arrays.asList("READ 512 88"), readCommandsOf(card));
+    }
+
+    @Test
+    public void shouldDecodeGzipStreamOfEf() throws IOException {
+        final byte[] plain = content(2000);
+        final ByteArrayOutputStream ef = new ByteArrayOutputStream();
+        ef.write(new byte[] { 0x07, (byte) 0xD0 });
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(ef)) {
+            gzipOutputStream.write(plain);
+        }
+        final byte[] content = ef.toByteArray();
+        final SimulatedCard card = new SimulatedCard().withFile(EF_VD, content);
+
+        try (InputStream inputStream = executorOf(card, 64).openGzipStream(EF_VD, 2, content.length - 2)) {
+            Assert.assertArrayEquals(plain, readFully(inputStream));
+        }
+        // every chunk selects the EF again, the first selection reads the FCP
+        Assert.assertEquals(card.count("READ") + 1, card.count("SELECT EF"));
+        Assert.assertEquals("READ 2 64", readCommandsOf(card).get(0));
+    }
+
+    @Test
+    public void shouldReadStreamFromItsEfIfOtherEfIsReadBetweenChunks() throws IOException {
+        final byte[] vd = content(300);
+        final byte[] pd = new byte[300];
+        Arrays.fill(pd, (byte) 0x55);
+        final SimulatedCard card = new SimulatedCard().withFile(EF_VD, vd).withFile(EF_PD, pd);
+        final IHealthCard healthCard = Mockito.mock(IHealthCard.class);
+        final byte[] streamed = new byte[300];
+
+        try (InputStream inputStream = new ReadCommandSafeExecutor(healthCard, card, 128).openStream(EF_VD)) {
+            Assert.assertEquals(128, inputStream.read(streamed, 0, 128));
+            Assert.assertArrayEquals(pd, valueOf(new ReadCommandSafeExecutor(healthCard, card, 128).readSafe(EF_PD)));
+            Assert.assertEquals(128, inputStream.read(streamed, 128, 172));
+            Assert.assertEquals(44, inputStream.read(streamed, 256, 44));
+            Assert.assertEquals(-1, inputStream.read());
+        }
+        Assert.assertArrayEquals(vd, streamed);
+    }
+
+    @Test
+    public void shouldFailStreamIfChunkFails() throws IOException {
+        final SimulatedCard card = new SimulatedCard().withFile(EF_VD, content(300)).failRead(128, ResponseStatus.SECURITY_STATUS_NOT_SATISFIED, 100);
+        final byte[] buffer = new byte[64];
+
+        try (InputStream inputStream = executorOf(card, 64).openStream(EF_VD)) {
+            int total = 0;
+            try {
+                int count;
+                while ((count = inputStream.read(buffer)) > 0) {
+                    total += count;
+                }
+                Assert.fail("stream ended after " + total + " bytes");
+            } catch (final IOException e) {
+                Assert.assertEquals(128, total);
+            }
+        }
+    }
+
+    @Test
+    public void shouldReadChannelOfEf() throws IOException {
+        final byte[] vd = content(300);
+        final SimulatedCard card = new SimulatedCard().withFile(EF_VD, vd);
+        final ByteBuffer target = ByteBuffer.allocate(400);
+
+        try (ReadableByteChannel channel = executorOf(card, 256).openChannel(EF_VD)) {
+            while (channel.read(target) >= 0) {
+                Assert.assertTrue(target.hasRemaining());
+            }
+        }
+        Assert.assertEquals(300, target.position());
+        Assert.assertArrayEquals(vd, Arrays.copyOf(target.array(), 300));
+    }
+
+    @Test
+    public void shouldShrinkChunkAfterWrongLength() {
+        final byte[] vd = content(300);
+        final SimulatedCard card = new SimulatedCard().withFile(EF_VD, vd).withMaxResponseLength(100);
+
+        Assert.assertArrayEquals(vd, valueOf(executorOf(card, 256).readSafe(EF_VD)));
+        Assert.assertEquals(Arrays.asList("READ 0 256", "READ 0 128", "READ 0 64", "READ 64 64", "READ 128 64", "READ 192 64", "READ 256 44"),
+                readCommandsOf(card));
+    }
+
+    @Test
+    public void shouldReadChunkWithExactLengthAfterWrongLe() {
+        final byte[] vd = content(600);
+        final SimulatedCard card = new SimulatedCard().withFile(EF_VD, vd).withWrongLeAbove(200);
+
+        Assert.assertArrayEquals(vd, valueOf(executorOf(card, 256).readSafe(EF_VD)));
+        Assert.assertEquals(Arrays.asList("READ 0 256", "READ 0 200", "READ 200 200", "READ 400 200"), readCommandsOf(card));
+    }
+
+    @Test
+    public void shouldShrinkChunkAfterTransmissionError() {
+        final byte[] vd = content(200);
+        final SimulatedCard card = new SimulatedCard().withFile(EF_VD, vd).failRead(0, null, 1);
+
+        Assert.assertArrayEquals(vd, valueOf(executorOf(card, 256).readSafe(EF_VD)));
+        Assert.assertEquals(Arrays.asList("READ 0 200", "READ 0 100", "READ 100 100"), readCommandsOf(card));
+    }
+
+    @Test
+    public void shouldKeepChunkSizeAfterOtherErrors() {
+        final SimulatedCard card = new SimulatedCard().withFile(EF_VD, content(300)).failRead(0, ResponseStatus.SECURITY_STATUS_NOT_SATISFIED, 100);
+
+        Assert.assertTrue(errorOf(executorOf(card, 256).readSafe(EF_VD)) instanceof EfReadException);
+        Assert.assertTrue(readCommandsOf(card).stream().allMatch("READ 0 256"::equals));
+    }
+
+    @Test
+    public void shouldReadBySfiInChunksUntilEndOfFile() {
+        final byte[] vd = content(600);
+        final SimulatedCard card = new SimulatedCard().withFile(EF_VD_SFI, vd);
+
+        Assert.assertArrayEquals(vd, valueOf(executorOf(card, 256).readSafe(EF_VD_SFI)));
+        Assert.assertEquals(Arrays.asList("SELECT DF D27600000102", "READ SFI 2 0 256", "READ 256 256", "READ 512 256"), card.getCommands());
+    }
+
+    @Test
+    public void shouldContinueSfiReadAfterShortResponse() {
+        final byte[] vd = content(300);
+        final SimulatedCard card = new SimulatedCard().withFile(EF_VD_SFI, vd).withTruncatedResponses(100);
+
+        Assert.assertArrayEquals(vd, valueOf(executorOf(card, 256).readSafe(EF_VD_SFI)));
+        Assert.assertEquals(Arrays.asList("READ SFI 2 0 256", "READ 100 256", "READ 200 256"), readCommandsOf(card));
+    }
+
+    @Test
+    public void shouldTakeFileLengthFromFcpIfEndOfFileIsNotReported() {
+        final byte[] vd = content(512);
+        // the card answers 6B00 instead of 6282 behind the end of the file
+        final SimulatedCard card = new SimulatedCard().withFile(EF_VD_SFI, vd).failRead(512, ResponseStatus.OFFSET_TOO_BIG, 1);
+
+        Assert.assertArrayEquals(vd, valueOf(executorOf(card, 256).readSafe(EF_VD_SFI)));
+        Assert.assertEquals(Arrays.asList("SELECT DF D27600000102", "READ SFI 2 0 256", "READ 256 256", "READ 512 256", "SELECT DF D27600000102",
+                "SELECT EF D002"),
+                card.getCommands());
+    }
+
+    @Test
+    public void shouldNotRememberFileLengthOfTruncatedSfiRead() {
+        final byte[] vd = content(300);
+        final SimulatedCard card = new SimulatedCard().withFile(EF_VD_SFI, vd).withTruncatedResponses(100).failRead(100, null, 1);
+        final ReadCommandSafeExecutor executor = executorOf(card, 256);
+
+        Assert.assertArrayEquals(vd, valueOf(executor.readSafe(EF_VD_SFI)));
+        Assert.assertArrayEquals(vd, valueOf(executor.readSafe(EF_VD_SFI)));
+    }
+
+    @Test
+    public void shouldSelectEfIfSfiReadFails() {
+        final byte[] vd = content(100);
+        final SimulatedCard card = new SimulatedCard().withFile(EF_VD_SFI, vd).failRead(0, ResponseStatus.SECURITY_STATUS_NOT_SATISFIED, 1);
+
+        Assert.assertArrayEquals(vd, valueOf(executorOf(card, 256).readSafe(EF_VD_SFI)));
+        Assert.assertEquals(Arrays.asList("SELECT DF D27600000102", "READ SFI 2 0 256", "SELECT DF D27600000102", "SELECT EF D002", "READ 0 100"),
+                card.getCommands());
+    }
+
+    private static List<String> readCommandsOf(final SimulatedCard card) {
+        return card.getCommands().stream().filter(command -> command.startsWith("READ")).collect(Collectors.toList());
+    }
 
+    private static byte[] readFully(final InputStream inputStream) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[100];
+        int count;
+        while ((count = inputStream.read(buffer)) > 0) {
+            bytes.write(buffer, 0, count);
+        }
+        return bytes.toByteArray();
+    }
 }
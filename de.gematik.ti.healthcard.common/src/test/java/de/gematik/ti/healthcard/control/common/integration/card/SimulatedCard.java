@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.integration.card;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.mockito.Mockito;
+
+import de.gematik.ti.healthcardaccess.cardobjects.ApplicationIdentifier;
+import de.gematik.ti.healthcardaccess.cardobjects.FileIdentifier;
+import de.gematik.ti.healthcardaccess.operation.ResultOperation;
+import de.gematik.ti.healthcardaccess.result.Response;
+import de.gematik.ti.healthcardaccess.result.Response.ResponseStatus;
+
+/**
+ * File system of a card for tests, which answers the {@link EfCommands} like a health card and records them, e.g. "SELECT DF D27600000102",
+ * "SELECT EF D001", "READ 0 256" or "READ SFI 1 0 256". Public for the tests of other packages, which read with {@link #newEngine}.
+ */
+public class SimulatedCard implements EfCommands {
+    private final Map<EfPath, byte[]> files = new HashMap<>();
+    private final Map<EfPath, byte[]> fcps = new HashMap<>();
+    private final List<String> commands = Collections.synchronizedList(new ArrayList<>());
+    private final List<Fault> faults = new ArrayList<>();
+    private int maxResponseLength = Integer.MAX_VALUE;
+    private int truncatedResponseLength = Integer.MAX_VALUE;
+    private int wrongLeLength = Integer.MAX_VALUE;
+    private final Map<Response, Integer> exactLengths = Collections.synchronizedMap(new IdentityHashMap<>());
+    private ApplicationIdentifier currentDf;
+    private ApplicationIdentifier currentSubDf;
+    private EfPath currentEf;
+    private volatile Runnable readHook;
+
+    /**
+     * Add an EF, its SFI is taken from the path
+     */
+    public SimulatedCard withFile(final EfPath efPath, final byte[] content) {
+        files.put(efPath, content);
+        return this;
+    }
+
+    /**
+     * Answer the SELECT of the EF with the FCP instead of an FCP with the length of the content in tag C5
+     */
+    SimulatedCard withFcp(final EfPath efPath, final byte[] fcp) {
+        fcps.put(efPath, fcp);
+        return this;
+    }
+
+    /**
+     * READ commands with a longer expected length fail with 6700 (wrong length), which maps to {@link ResponseStatus#UNKNOWN_STATUS}
+     */
+    SimulatedCard withMaxResponseLength(final int maxResponseLength) {
+        this.maxResponseLength = maxResponseLength;
+        return this;
+    }
+
+    /**
+     * READ commands with a longer expected length fail with wrong Le (6Cxx), which reports the length as exact length
+     */
+    SimulatedCard withWrongLeAbove(final int wrongLeLength) {
+        this.wrongLeLength = wrongLeLength;
+        return this;
+    }
+
+    /**
+     * Answer READ commands with at most the number of bytes with 9000, like a card which sends less than the expected length
+     */
+    SimulatedCard withTruncatedResponses(final int truncatedResponseLength) {
+        this.truncatedResponseLength = truncatedResponseLength;
+        return this;
+    }
+
+    /**
+     * Answer the next READ commands at the offset with the status instead of the content
+     * @param offset offset of the READ command
+     * @param status status to answer or null to fail like a transport error
+     * @param times number of READ commands to fail
+     */
+    SimulatedCard failRead(final int offset, final ResponseStatus status, final int times) {
+        synchronized (faults) {
+            faults.add(new Fault(offset, status, times));
+        }
+        return this;
+    }
+
+    /**
+     * Run the hook before every READ command, e.g. to block a reading thread
+     */
+    void setReadHook(final Runnable readHook) {
+        this.readHook = readHook;
+    }
+
+    /**
+     * Create an engine which sends its commands to this card, whatever card it reads
+     * @param cache cache of the engine or null
+     */
+    public EfReadEngine newEngine(final EfContentCache cache) {
+        return new EfReadEngine(256, cache, healthCard -> this);
+    }
+
+    public List<String> getCommands() {
+        synchronized (commands) {
+            return new ArrayList<>(commands);
+        }
+    }
+
+    public int count(final String commandPrefix) {
+        return (int) getCommands().stream().filter(command -> command.startsWith(commandPrefix)).count();
+    }
+
+    public void clearCommands() {
+        commands.clear();
+    }
+
+    @Override
+    public synchronized ResultOperation<Response> selectMf() {
+        commands.add("SELECT MF");
+        currentDf = null;
+        currentSubDf = null;
+        currentEf = null;
+        return ResultOperation.unitRo(response(ResponseStatus.SUCCESS, new byte[0]));
+    }
+
+    @Override
+    public synchronized ResultOperation<Response> selectDf(final ApplicationIdentifier aid) {
+        commands.add("SELECT DF " + hex(aid));
+        currentEf = null;
+        for (final EfPath efPath : files.keySet()) {
+            if (sameAid(efPath.getDfAid(), aid)) {
+                currentDf = aid;
+                currentSubDf = null;
+                return ResultOperation.unitRo(response(ResponseStatus.SUCCESS, new byte[0]));
+            }
+        }
+        for (final EfPath efPath : files.keySet()) {
+            if (sameAid(efPath.getDfAid(), currentDf) && sameAid(efPath.getSubDfAid(), aid)) {
+                currentSubDf = aid;
+                return ResultOperation.unitRo(response(ResponseStatus.SUCCESS, new byte[0]));
+            }
+        }
+        return ResultOperation.unitRo(response(ResponseStatus.FILE_NOT_FOUND, new byte[0]));
+    }
+
+    @Override
+    public synchronized ResultOperation<Response> selectEf(final FileIdentifier fid) {
+        commands.add("SELECT EF " + hex(fid.getFid()));
+        currentEf = null;
+        final EfPath efPath = inCurrentFolder(fid);
+        final byte[] content = files.get(efPath);
+        if (content == null) {
+            return ResultOperation.unitRo(response(ResponseStatus.FILE_NOT_FOUND, new byte[0]));
+        }
+        currentEf = efPath;
+        byte[] fcp = fcps.get(efPath);
+        if (fcp == null) {
+            fcp = new byte[] { 0x62, 0x04, (byte) 0xC5, 0x02, (byte) (content.length >> 8), (byte) content.length };
+        }
+        return ResultOperation.unitRo(response(ResponseStatus.SUCCESS, fcp));
+    }
+
+    @Override
+    public ResultOperation<Response> read(final int offset, final int length) {
+        runReadHook();
+        synchronized (this) {
+            commands.add("READ " + offset + " " + length);
+            return read(currentEf, offset, length);
+        }
+    }
+
+    @Override
+    public ResultOperation<Response> read(final int sfi, final int offset, final int length) {
+        runReadHook();
+        synchronized (this) {
+            commands.add("READ SFI " + sfi + " " + offset + " " + length);
+            currentEf = null;
+            for (final EfPath efPath : files.keySet()) {
+                if (efPath.hasSfi() && efPath.getSfi() == sfi && efPath.isInSameFolder(inCurrentFolder(efPath.getEfFid()))) {
+                    currentEf = efPath;
+                }
+            }
+            if (currentEf == null) {
+                return ResultOperation.unitRo(response(ResponseStatus.FILE_NOT_FOUND, new byte[0]));
+            }
+            return read(currentEf, offset, length);
+        }
+    }
+
+    @Override
+    public int getExactLength(final Response response) {
+        final Integer exactLength = exactLengths.get(response);
+        return exactLength != null ? exactLength : -1;
+    }
+
+    private void runReadHook() {
+        final Runnable hook = readHook;
+        if (hook != null) {
+            hook.run();
+        }
+    }
+
+    private ResultOperation<Response> read(final EfPath efPath, final int offset, final int length) {
+        final Fault fault = takeFault(offset);
+        if (fault != null) {
+            if (fault.status == null) {
+                return ResultOperation.<Response> unitRo(null).map(__ -> {
+                    throw new IllegalStateException("transmission failed");
+                });
+            }
+            return ResultOperation.unitRo(response(fault.status, new byte[0]));
+        }
+        if (efPath == null) {
+            return ResultOperation.unitRo(response(ResponseStatus.NO_CURRENT_EF, new byte[0]));
+        }
+        if (length > maxResponseLength) {
+            return ResultOperation.unitRo(response(ResponseStatus.UNKNOWN_STATUS, new byte[0]));
+        }
+        if (length > wrongLeLength) {
+            final Response wrongLe = response(ResponseStatus.UNKNOWN_STATUS, new byte[0]);
+            exactLengths.put(wrongLe, wrongLeLength);
+            return ResultOperation.unitRo(wrongLe);
+        }
+        final byte[] content = files.get(efPath);
+        if (offset > content.length) {
+            return ResultOperation.unitRo(response(ResponseStatus.OFFSET_TOO_BIG, new byte[0]));
+        }
+        if (length == 0) {
+            return ResultOperation.unitRo(response(ResponseStatus.SUCCESS, Arrays.copyOfRange(content, offset, content.length)));
+        }
+        final int end = Math.min(content.length, offset + length);
+        if (end - offset > truncatedResponseLength) {
+            return ResultOperation.unitRo(response(ResponseStatus.SUCCESS, Arrays.copyOfRange(content, offset, offset + truncatedResponseLength)));
+        }
+        final ResponseStatus status = offset + length > content.length ? ResponseStatus.END_OF_FILE_WARNING : ResponseStatus.SUCCESS;
+        return ResultOperation.unitRo(response(status, Arrays.copyOfRange(content, offset, end)));
+    }
+
+    private Fault takeFault(final int offset) {
+        synchronized (faults) {
+            final Iterator<Fault> iterator = faults.iterator();
+            while (iterator.hasNext()) {
+                final Fault fault = iterator.next();
+                if (fault.offset == offset) {
+                    if (--fault.remaining == 0) {
+                        iterator.remove();
+                    }
+                    return fault;
+                }
+            }
+            return null;
+        }
+    }
+
+    private EfPath inCurrentFolder(final FileIdentifier fid) {
+        if (currentDf == null) {
+            return EfPath.of(fid);
+        }
+        return currentSubDf == null ? EfPath.of(currentDf, fid) : EfPath.of(currentDf, currentSubDf, fid);
+    }
+
+    private static Response response(final ResponseStatus status, final byte[] data) {
+        final Response response = Mockito.mock(Response.class);
+        Mockito.when(response.getResponseStatus()).thenReturn(status);
+        Mockito.when(response.getResponseData()).thenReturn(data);
+        return response;
+    }
+
+    private static boolean sameAid(final ApplicationIdentifier aid, final ApplicationIdentifier other) {
+        return aid == null ? other == null : other != null && Arrays.equals(aid.getAid(), other.getAid());
+    }
+
+    private static String hex(final ApplicationIdentifier aid) {
+        return hex(aid.getAid());
+    }
+
+    private static String hex(final byte[] bytes) {
+        final StringBuilder builder = new StringBuilder();
+        for (final byte b : bytes) {
+            builder.append(String.format("%02X", b));
+        }
+        return builder.toString();
+    }
+
+    private static final class Fault {
+        private final int offset;
+        private final ResponseStatus status;
+        private int remaining;
+
+        private Fault(final int offset, final ResponseStatus status, final int times) {
+            this.offset = offset;
+            this.status = status;
+            this.remaining = times;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.pace;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test {@link EphemeralKeyPairPool}
+ */
+public class EphemeralKeyPairPoolTest {
+
+    private final PaceCurve paceCurve = PaceCurve.getInstance("BrainpoolP256r1");
+
+    @Test
+    public void shouldHandOutMatchingKeyPairs() {
+        final EphemeralKeyPairPool pool = new EphemeralKeyPairPool(2);
+        for (int i = 0; i < 4; i++) {
+            final EphemeralKeyPairPool.KeyPair keyPair = pool.take(paceCurve);
+            Assert.assertEquals(paceCurve.getParameterSpec().getG().multiply(keyPair.getPrivateKey()).normalize(), keyPair.getPublicKey());
+        }
+    }
+
+    @Test
+    public void shouldHandOutEveryKeyPairOnce() {
+        final EphemeralKeyPairPool pool = new EphemeralKeyPairPool(2);
+        final EphemeralKeyPairPool.KeyPair first = pool.take(paceCurve);
+        Assert.assertNotEquals(first.getPrivateKey(), pool.take(paceCurve).getPrivateKey());
+    }
+
+    @Test
+    public void shouldRefillInBackground() throws InterruptedException {
+        final EphemeralKeyPairPool pool = new EphemeralKeyPairPool(3);
+        Assert.assertEquals(0, pool.size(paceCurve));
+        pool.take(paceCurve);
+        for (int i = 0; i < 100 && pool.size(paceCurve) < 3; i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(3, pool.size(paceCurve));
+    }
+
+    @Test
+    public void shouldFillPoolOnWarmUp() throws InterruptedException {
+        final EphemeralKeyPairPool pool = new EphemeralKeyPairPool(2);
+        pool.warmUp(paceCurve);
+        awaitSize(pool, 2);
+    }
+
+    @Test
+    public void shouldWarmUpSharedPoolWithFirstUseOfCurve() throws InterruptedException {
+        final PaceCurve otherCurve = PaceCurve.getInstance("BrainpoolP384r1");
+        awaitSize(EphemeralKeyPairPool.getInstance(), otherCurve, 1);
+    }
+
+    @Test
+    public void shouldRefillAfterRepeatedTakes() throws InterruptedException {
+        final EphemeralKeyPairPool pool = new EphemeralKeyPairPool(2);
+        pool.warmUp(paceCurve);
+        for (int round = 0; round < 20; round++) {
+            awaitSize(pool, 2);
+            pool.take(paceCurve);
+            awaitSize(pool, 2);
+            pool.take(paceCurve);
+            pool.take(paceCurve);
+        }
+        awaitSize(pool, 2);
+    }
+
+    private void awaitSize(final EphemeralKeyPairPool pool, final int size) throws InterruptedException {
+        awaitSize(pool, paceCurve, size);
+    }
+
+    private static void awaitSize(final EphemeralKeyPairPool pool, final PaceCurve paceCurve, final int size) throws InterruptedException {
+        for (int i = 0; i < 200 && pool.size(paceCurve) < size; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(pool.size(paceCurve) >= size);
+    }
+}
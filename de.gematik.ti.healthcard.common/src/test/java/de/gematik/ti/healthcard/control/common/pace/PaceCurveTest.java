@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.pace;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test {@link PaceCurve}
+ */
+public class PaceCurveTest {
+
+    private static final String[] CURVES = { "BrainpoolP256r1", "BrainpoolP384r1", "BrainpoolP512r1" };
+
+    @Test
+    public void shouldCacheCurve() {
+        for (final String parameter : CURVES) {
+            Assert.assertSame(PaceCurve.getInstance(parameter), PaceCurve.getInstance(parameter));
+        }
+    }
+
+    @Test
+    public void shouldMultiplyGeneratorLikeGenericMultiplication() {
+        final Random random = new Random(0);
+        for (final String parameter : CURVES) {
+            final PaceCurve paceCurve = PaceCurve.getInstance(parameter);
+            final int fieldSize = paceCurve.getParameterSpec().getCurve().getFieldSize();
+            for (int i = 0; i < 8; i++) {
+                final BigInteger k = new BigInteger(fieldSize, random);
+                Assert.assertEquals(paceCurve.getParameterSpec().getG().multiply(k).normalize(), paceCurve.multiplyGenerator(k).normalize());
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectUnknownCurve() {
+        PaceCurve.getInstance("unknown");
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.pace;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test {@link PaceRandomSource}
+ */
+public class PaceRandomSourceTest {
+
+    @Test
+    public void shouldProduceDifferentBytesAcrossReseed() {
+        final PaceRandomSource randomSource = PaceRandomSource.sharedDrbg();
+        byte[] previous = new byte[32];
+        for (int i = 0; i < 2048; i++) {
+            final byte[] bytes = new byte[32];
+            randomSource.nextBytes(bytes);
+            Assert.assertFalse(Arrays.equals(previous, bytes));
+            previous = bytes;
+        }
+    }
+
+    @Test
+    public void shouldUseOwnInstancePerThread() throws InterruptedException {
+        final PaceRandomSource randomSource = PaceRandomSource.perThreadDrbg();
+        final byte[] bytes = new byte[32];
+        randomSource.nextBytes(bytes);
+        final AtomicReference<byte[]> otherThread = new AtomicReference<>();
+        final Thread thread = new Thread(() -> {
+            final byte[] otherBytes = new byte[32];
+            randomSource.nextBytes(otherBytes);
+            otherThread.set(otherBytes);
+        });
+        thread.start();
+        thread.join();
+        Assert.assertFalse(Arrays.equals(bytes, otherThread.get()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldRejectMissingRandomSource() {
+        TrustedChannelPaceKeyExchange.setRandomSource(null);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.pace;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+
+import de.gematik.ti.healthcardaccess.AbstractHealthCardCommand;
+import de.gematik.ti.healthcardaccess.commands.GeneralAuthenticateCommand;
+import de.gematik.ti.healthcardaccess.commands.ManageSecurityEnvironmentCommand;
+import de.gematik.ti.healthcardaccess.commands.ReadCommand;
+import de.gematik.ti.healthcardaccess.operation.ResultOperation;
+import de.gematik.ti.healthcardaccess.result.Response;
+import de.gematik.ti.healthcardaccess.result.Response.ResponseStatus;
+import de.gematik.ti.utils.codec.Hex;
+
+/**
+ * Card for the tests of the key exchange, which answers the commands of {@link TrustedChannelPaceKeyExchange#prepare()} and records the
+ * commands by their class name, e.g. "SelectCommand". The key agreement is not simulated, the command after the encrypted nonce fails.
+ */
+class SimulatedPaceCard implements Function<AbstractHealthCardCommand, ResultOperation<Response>> {
+    static final List<String> PREPARATION = Collections.unmodifiableList(Arrays.asList("SelectCommand", "SelectCommand", "ReadCommand",
+            "ManageSecurityEnvironmentCommand", "GeneralAuthenticateCommand"));
+    private static final byte[] CARD_ACCESS = Hex.decode("31143012060A04007F0007020204020202010202010D");
+    private static final byte[] ENCRYPTED_NONCE = Hex.decode("7C12801000112233445566778899AABBCCDDEEFF");
+
+    private final List<String> commands = Collections.synchronizedList(new ArrayList<>());
+    private volatile ResponseStatus nonceStatus = ResponseStatus.SUCCESS;
+    private boolean nonceRequested;
+
+    /**
+     * Answer the request of the encrypted nonce with the status
+     */
+    SimulatedPaceCard withNonceStatus(final ResponseStatus nonceStatus) {
+        this.nonceStatus = nonceStatus;
+        return this;
+    }
+
+    @Override
+    public synchronized ResultOperation<Response> apply(final AbstractHealthCardCommand command) {
+        commands.add(command.getClass().getSimpleName());
+        if (command instanceof ReadCommand) {
+            return ResultOperation.unitRo(new Response(ResponseStatus.SUCCESS, CARD_ACCESS));
+        }
+        if (command instanceof ManageSecurityEnvironmentCommand) {
+            nonceRequested = true;
+        } else if (command instanceof GeneralAuthenticateCommand) {
+            if (nonceRequested) {
+                nonceRequested = false;
+                return ResultOperation.unitRo(new Response(nonceStatus, ENCRYPTED_NONCE));
+            }
+            return ResultOperation.unitRo(new Response(ResponseStatus.SECURITY_STATUS_NOT_SATISFIED, new byte[0]));
+        }
+        return ResultOperation.unitRo(new Response(ResponseStatus.SUCCESS, new byte[0]));
+    }
+
+    List<String> getCommands() {
+        synchronized (commands) {
+            return new ArrayList<>(commands);
+        }
+    }
+
+    void clearCommands() {
+        commands.clear();
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.pace;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import de.gematik.ti.cardreader.provider.api.card.ICard;
+import de.gematik.ti.healthcard.control.common.integration.card.EfPath;
+import de.gematik.ti.healthcard.control.common.integration.card.HealthCardLocks;
+import de.gematik.ti.healthcard.control.common.integration.card.SimulatedCard;
+import de.gematik.ti.healthcardaccess.IHealthCard;
+import de.gematik.ti.healthcardaccess.cardobjects.FileIdentifier;
+import de.gematik.ti.healthcardaccess.operation.Subscriber;
+import de.gematik.ti.healthcardaccess.result.Response.ResponseStatus;
+import de.gematik.ti.openhealthcard.events.request.RequestPaceKeyEvent;
+import de.gematik.ti.openhealthcard.events.response.callbacks.IPaceKeyResponseListener;
+import de.gematik.ti.openhealthcard.events.response.entities.CardAccessNumber;
+
+/**
+ * Test {@link TrustedChannelConstructor}
+ */
+public class TrustedChannelConstructorTest {
+    private final SimulatedPaceCard card = new SimulatedPaceCard();
+    private final IPaceKeyResponseListener responseListener = Mockito.mock(IPaceKeyResponseListener.class);
+    private final CardAccessNumberRequester cardAccessNumberRequester = new CardAccessNumberRequester();
+    private volatile IHealthCard healthCard;
+
+    @Test
+    public void shouldReleaseLockOfCardWhileWaitingForCardAccessNumber() throws InterruptedException {
+        final Thread worker = new Thread(() -> constructor(TimeUnit.SECONDS.toMillis(5)).construct(cardAccessNumberRequester));
+        worker.setDaemon(true);
+        worker.start();
+        awaitWaiting(worker);
+        Assert.assertEquals(SimulatedPaceCard.PREPARATION, card.getCommands());
+        Assert.assertFalse(HealthCardLocks.getLock(healthCard).isLocked());
+
+        cardAccessNumberRequester.handleCan(new CardAccessNumber("123456"));
+        worker.join(TimeUnit.SECONDS.toMillis(5));
+        Assert.assertFalse(worker.isAlive());
+        Assert.assertFalse(HealthCardLocks.getLock(healthCard).isLocked());
+    }
+
+    @Test
+    public void shouldNotBlockEfReadWhileWaitingAndRepeatAllStepsAfterIt() throws InterruptedException {
+        final EfPath efPath = EfPath.of(new FileIdentifier(0x2F02));
+        final byte[] content = { 1, 2, 3 };
+        final SimulatedCard efCard = new SimulatedCard().withFile(efPath, content);
+        final Thread worker = new Thread(() -> constructor(TimeUnit.SECONDS.toMillis(5)).construct(cardAccessNumberRequester));
+        worker.setDaemon(true);
+        worker.start();
+        awaitWaiting(worker);
+
+        final byte[][] read = new byte[1][];
+        final Thread reader = new Thread(() -> efCard.newEngine(null).read(healthCard, efPath).subscribe(new Subscriber<byte[]>() {
+            @Override
+            public void onSuccess(final byte[] value) {
+                read[0] = value;
+            }
+
+            @Override
+            public void onError(final Throwable t) {
+                throw new AssertionError("read failed", t);
+            }
+        }));
+        reader.start();
+        reader.join(TimeUnit.SECONDS.toMillis(1));
+        Assert.assertFalse("EF read blocked by the key exchange", reader.isAlive());
+        Assert.assertArrayEquals(content, read[0]);
+
+        cardAccessNumberRequester.handleCan(new CardAccessNumber("123456"));
+        worker.join(TimeUnit.SECONDS.toMillis(5));
+        Assert.assertFalse(worker.isAlive());
+        // preparation, then all steps without the key agreement with the discarded nonce
+        Assert.assertEquals(2, Collections.frequency(card.getCommands(), "ManageSecurityEnvironmentCommand"));
+        Assert.assertEquals(3, Collections.frequency(card.getCommands(), "GeneralAuthenticateCommand"));
+    }
+
+    @Test
+    public void shouldRepeatAllStepsOnceIfNegotiationWithPreparedNonceFails() {
+        cardAccessNumberRequester.handleCan(new CardAccessNumber("123456"));
+        constructor(TimeUnit.SECONDS.toMillis(5)).construct(cardAccessNumberRequester);
+
+        // preparation, key agreement with the prepared nonce, all steps again
+        Assert.assertEquals(2, Collections.frequency(card.getCommands(), "ManageSecurityEnvironmentCommand"));
+        Assert.assertEquals(4, Collections.frequency(card.getCommands(), "GeneralAuthenticateCommand"));
+        Mockito.verifyZeroInteractions(responseListener);
+        Assert.assertFalse(HealthCardLocks.getLock(healthCard).isLocked());
+    }
+
+    @Test
+    public void shouldNotRepeatStepsIfPreparationFailed() {
+        card.withNonceStatus(ResponseStatus.SECURITY_STATUS_NOT_SATISFIED);
+        cardAccessNumberRequester.handleCan(new CardAccessNumber("123456"));
+        constructor(TimeUnit.SECONDS.toMillis(5)).construct(cardAccessNumberRequester);
+
+        Assert.assertEquals(2, Collections.frequency(card.getCommands(), "ManageSecurityEnvironmentCommand"));
+    }
+
+    @Test
+    public void shouldSelectMfAndReleaseLockIfCardAccessNumberDoesNotArrive() {
+        constructor(50).construct(cardAccessNumberRequester);
+
+        final List<String> commands = card.getCommands();
+        Assert.assertEquals(SimulatedPaceCard.PREPARATION.size() + 1, commands.size());
+        Assert.assertEquals("SelectCommand", commands.get(commands.size() - 1));
+        Assert.assertFalse(HealthCardLocks.getLock(healthCard).isLocked());
+    }
+
+    @Test
+    public void shouldSelectMfAndReleaseLockIfInterruptedWhileWaiting() throws InterruptedException {
+        final Thread worker = new Thread(() -> constructor(TimeUnit.SECONDS.toMillis(5)).construct(cardAccessNumberRequester));
+        worker.setDaemon(true);
+        worker.start();
+        awaitWaiting(worker);
+
+        worker.interrupt();
+        worker.join(TimeUnit.SECONDS.toMillis(5));
+        Assert.assertFalse(worker.isAlive());
+        final List<String> commands = card.getCommands();
+        Assert.assertEquals("SelectCommand", commands.get(commands.size() - 1));
+        Assert.assertFalse(HealthCardLocks.getLock(healthCard).isLocked());
+    }
+
+    private TrustedChannelConstructor constructor(final long timeoutMillis) {
+        final RequestPaceKeyEvent request = Mockito.mock(RequestPaceKeyEvent.class);
+        Mockito.when(request.getCard()).thenReturn(Mockito.mock(ICard.class));
+        Mockito.when(request.getResponseListener()).thenReturn(responseListener);
+        return new TrustedChannelConstructor(request, createdHealthCard -> {
+            healthCard = createdHealthCard;
+            return new TrustedChannelPaceKeyExchange(createdHealthCard, card);
+        }, timeoutMillis);
+    }
+
+    /**
+     * Wait until the worker waits for the CardAccessNumber
+     */
+    private static void awaitWaiting(final Thread worker) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (worker.getState() != Thread.State.TIMED_WAITING) {
+            Assert.assertTrue("worker does not wait for the CardAccessNumber", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2020 gematik GmbH
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package de.gematik.ti.healthcard.control.common.pace;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import de.gematik.ti.healthcardaccess.IHealthCard;
+import de.gematik.ti.healthcardaccess.operation.ResultOperation;
+import de.gematik.ti.healthcardaccess.operation.Subscriber;
+import de.gematik.ti.healthcardaccess.result.Response.ResponseStatus;
+
+/**
+ * Test {@link TrustedChannelPaceKeyExchange}
+ */
+public class TrustedChannelPaceKeyExchangeTest {
+    private final SimulatedPaceCard card = new SimulatedPaceCard();
+    private final TrustedChannelPaceKeyExchange paceKeyExchange = new TrustedChannelPaceKeyExchange(Mockito.mock(IHealthCard.class), card);
+
+    @Test
+    public void shouldPrepareWithoutCardAccessNumber() {
+        Assert.assertNull(errorOf(paceKeyExchange.prepare()));
+        Assert.assertEquals(SimulatedPaceCard.PREPARATION, card.getCommands());
+        Assert.assertTrue(paceKeyExchange.isPrepared());
+    }
+
+    @Test
+    public void shouldStartNegotiationWithPreparedNonce() {
+        paceKeyExchange.prepare();
+        card.clearCommands();
+
+        Assert.assertNotNull(errorOf(paceKeyExchange.negotiatePaceKey("123456")));
+        Assert.assertEquals(Arrays.asList("GeneralAuthenticateCommand"), card.getCommands());
+        Assert.assertFalse(paceKeyExchange.isPrepared());
+    }
+
+    @Test
+    public void shouldRunAllStepsIfNotPrepared() {
+        Assert.assertNotNull(errorOf(paceKeyExchange.negotiatePaceKey("123456")));
+        final List<String> expected = new ArrayList<>(SimulatedPaceCard.PREPARATION);
+        expected.add("GeneralAuthenticateCommand");
+        Assert.assertEquals(expected, card.getCommands());
+    }
+
+    @Test
+    public void shouldRunAllStepsIfPreparationFailed() {
+        card.withNonceStatus(ResponseStatus.SECURITY_STATUS_NOT_SATISFIED);
+        Assert.assertNotNull(errorOf(paceKeyExchange.prepare()));
+        Assert.assertFalse(paceKeyExchange.isPrepared());
+        card.withNonceStatus(ResponseStatus.SUCCESS).clearCommands();
+
+        paceKeyExchange.negotiatePaceKey("123456");
+        Assert.assertEquals(SimulatedPaceCard.PREPARATION, card.getCommands().subList(0, SimulatedPaceCard.PREPARATION.size()));
+    }
+
+    @Test
+    public void shouldSelectMfOnCancel() {
+        paceKeyExchange.prepare();
+        card.clearCommands();
+
+        Assert.assertNull(errorOf(paceKeyExchange.cancel()));
+        Assert.assertEquals(Arrays.asList("SelectCommand"), card.getCommands());
+        Assert.assertFalse(paceKeyExchange.isPrepared());
+    }
+
+    static <T> Throwable errorOf(final ResultOperation<T> resultOperation) {
+        final Throwable[] error = new Throwable[1];
+        resultOperation.subscribe(new Subscriber<T>() {
+            @Override
+            public void onSuccess(final T value) {
+            }
+
+            @Override
+            public void onError(final Throwable t) throws RuntimeException {
+                error[0] = t;
+            }
+        });
+        return error[0];
+    }
+}